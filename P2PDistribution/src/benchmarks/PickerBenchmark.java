@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.ChunkPicker;
+import p2pdistribute.client.filemanager.PeerChunks;
+import p2pdistribute.client.filemanager.RandomChunkPicker;
+import p2pdistribute.client.filemanager.RarestFirstChunkPicker;
+import p2pdistribute.client.filemanager.Status;
+
+/**
+ * Measures the time taken by {@link AcquisitionStatus#pickUsefulChunk} for files of many chunks.
+ *
+ * We have half of the chunks, and the peer has a random half. Each picked chunk is released again, so every pick
+ * 		sees the same number of useful chunks. "list" is the previous approach for comparison:
+ * 		building a LinkedList of every useful chunk, then taking a random one.
+ *
+ * Usage: PickerBenchmark [chunks...]
+ * 		Defaults to 10000 100000 1000000 chunks.
+ */
+public class PickerBenchmark {
+	
+	// Each measurement runs for about this long
+	private static final long RUN_NANOS = 1000L * 1000 * 1000;
+	
+	// Stops the JIT removing the list picks as unused
+	private static volatile long sink;
+	
+	public static void main(String[] args) {
+		int[] sizes = { 10000, 100000, 1000000 };
+		if(args.length > 0) {
+			sizes = new int[args.length];
+			for(int i=0; i<args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		
+		System.out.println("picker\tchunks\tns per pick");
+		
+		for(int size : sizes) {
+			Random random = new Random(size);
+			
+			Status[] ours = new Status[size];
+			PeerChunks theirs = new PeerChunks(new int[] { size });
+			for(int i=0; i<size; i++) {
+				ours[i] = random.nextBoolean() ? Status.COMPLETE : Status.INCOMPLETE;
+				
+				if(random.nextBoolean()) {
+					theirs.add(0, i);
+				}
+			}
+			
+			AcquisitionStatus status = new AcquisitionStatus(1);
+			status.setStatus(0, ours);
+			for(int i=0; i<size; i++) {
+				if(theirs.has(0, i)) {
+					status.addAvailability(0, i);
+				}
+			}
+			
+			measure("random", size, status, theirs, new RandomChunkPicker());
+			measure("rarest", size, status, theirs, new RarestFirstChunkPicker());
+			measureList(size, ours, theirs);
+		}
+	}
+	
+	private static void measure(String name, int size, AcquisitionStatus status, PeerChunks theirs, ChunkPicker picker) {
+		status.setPicker(picker);
+		
+		// Warm up
+		run(status, theirs, RUN_NANOS / 4);
+		
+		long start = System.nanoTime();
+		long picks = run(status, theirs, RUN_NANOS);
+		
+		System.out.println(name + "\t" + size + "\t" + (System.nanoTime() - start) / picks);
+	}
+	
+	private static long run(AcquisitionStatus status, PeerChunks theirs, long nanos) {
+		long end = System.nanoTime() + nanos;
+		long picks = 0;
+		
+		while(System.nanoTime() < end) {
+			for(int i=0; i<100; i++) {
+				int[] chunk = status.pickUsefulChunk(theirs);
+				status.releaseChunk(chunk[0], chunk[1]);
+			}
+			picks += 100;
+		}
+		
+		return picks;
+	}
+	
+	private static void measureList(int size, Status[] ours, PeerChunks theirs) {
+		Random random = new Random();
+		
+		long start = System.nanoTime();
+		long end = start + RUN_NANOS;
+		long picks = 0;
+		
+		while(System.nanoTime() < end) {
+			List<int[]> chunks = new LinkedList<>();
+			
+			for(int j=0; j<size; j++) {
+				if(theirs.has(0, j) && ours[j] != Status.COMPLETE && ours[j] != Status.INPROGRESS) {
+					chunks.add(new int[] { 0, j });
+				}
+			}
+			
+			sink += chunks.get(random.nextInt(chunks.size()))[1];
+			picks++;
+		}
+		
+		System.out.println("list\t" + size + "\t" + (System.nanoTime() - start) / picks);
+	}
+}
@@ -0,0 +1,176 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import p2pdistribute.client.FlushStatistics;
+import p2pdistribute.client.OutgoingQueue;
+import p2pdistribute.client.PeerConnectionWriteTask;
+import p2pdistribute.client.SerialisedMessage;
+import p2pdistribute.common.Threads;
+
+/**
+ * Compares platform and virtual threads for many idle-ish connections.
+ *
+ * Each server side connection is handled like a {@link p2pdistribute.client.ThreadedTransport}:
+ * 		a read thread blocked on the socket, and a write thread blocked on an {@link OutgoingQueue}.
+ * The client side sends one small message on every connection, then reads every echo.
+ *
+ * Reports the time to open the connections, the time for every connection to echo once,
+ * 		the platform thread count and the heap used.
+ *
+ * Usage: ThreadBenchmark [platform|virtual|both] [connections...]
+ * 		Defaults to both, with 1000 5000 10000 connections. Each connection uses two file descriptors per side,
+ * 		so large counts may need a higher open file limit (ulimit -n).
+ */
+public class ThreadBenchmark {
+	
+	private static final int MESSAGE = 0x12345678;
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String mode = "both";
+		List<Integer> counts = new ArrayList<>();
+		
+		for(String arg : args) {
+			if(arg.equals("platform") || arg.equals("virtual") || arg.equals("both")) {
+				mode = arg;
+			} else {
+				counts.add(Integer.parseInt(arg));
+			}
+		}
+		
+		if(counts.isEmpty()) {
+			counts.add(1000);
+			counts.add(5000);
+			counts.add(10000);
+		}
+		
+		if(!mode.equals("platform") && !Threads.virtualSupported()) {
+			System.out.println("Virtual threads are not supported by this JVM (Java 21+ required). Only platform threads will be measured.");
+			mode = "platform";
+		}
+		
+		System.out.println("threads\tconnections\tconnect ms\techo ms\tplatform threads\theap MB");
+		
+		for(int count : counts) {
+			if(!mode.equals("virtual")) {
+				run(false, count);
+			}
+			if(!mode.equals("platform")) {
+				run(true, count);
+			}
+		}
+	}
+	
+	private static void run(boolean virtual, int count) throws InterruptedException {
+		Threads.VIRTUAL = virtual;
+		String name = virtual ? "virtual" : "platform";
+		
+		ServerSocket server;
+		try {
+			server = ServerSocketChannel.open().socket();
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), count);
+		} catch (IOException e) {
+			System.out.println(name + "\t" + count + "\tUnable to listen: " + e.getMessage());
+			return;
+		}
+		
+		List<Socket> clients = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		
+		try {
+			long start = System.nanoTime();
+			
+			for(int i=0; i<count; i++) {
+				Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+				clients.add(client);
+				
+				accept(server.accept(), threads);
+			}
+			
+			long connected = System.nanoTime();
+			
+			for(Socket client : clients) {
+				new DataOutputStream(client.getOutputStream()).writeInt(MESSAGE);
+			}
+			for(Socket client : clients) {
+				if(new DataInputStream(client.getInputStream()).readInt() != MESSAGE) {
+					throw new IOException("Echo did not match");
+				}
+			}
+			
+			long echoed = System.nanoTime();
+			
+			System.gc();
+			Runtime runtime = Runtime.getRuntime();
+			long heap = runtime.totalMemory() - runtime.freeMemory();
+			
+			System.out.println(name + "\t" + count + "\t" + (connected - start) / 1000000 + "\t" + (echoed - connected) / 1000000
+					+ "\t" + ManagementFactory.getThreadMXBean().getThreadCount() + "\t" + heap / (1024 * 1024));
+		} catch (IOException e) {
+			System.out.println(name + "\t" + count + "\tFailed after " + clients.size() + " connections: " + e.getMessage());
+		} finally {
+			for(Socket client : clients) {
+				close(client);
+			}
+			close(server);
+			
+			for(Thread thread : threads) {
+				thread.join();
+			}
+		}
+	}
+	
+	/**
+	 * Starts a read thread, echoing each message through a write thread, for an accepted socket.
+	 */
+	private static void accept(final Socket sock, List<Thread> threads) throws IOException {
+		final OutgoingQueue queue = new OutgoingQueue(Long.MAX_VALUE);
+		
+		Thread writeThread = Threads.newThread(new PeerConnectionWriteTask(queue, sock.getChannel(), new FlushStatistics()));
+		Thread readThread = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					DataInputStream in = new DataInputStream(sock.getInputStream());
+					
+					while(true) {
+						int message = in.readInt();
+						
+						queue.addControl(new SerialisedMessage(new byte[] {
+								(byte)(message >>> 24), (byte)(message >>> 16), (byte)(message >>> 8), (byte)message }));
+					}
+				} catch (IOException e) {
+					// Client closed
+				}
+				
+				queue.close();
+				close(sock);
+			}
+		});
+		
+		writeThread.start();
+		readThread.start();
+		
+		threads.add(writeThread);
+		threads.add(readThread);
+	}
+	
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+}
@@ -1,31 +1,68 @@
 package p2pdistribute.client;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import p2pdistribute.client.filemanager.FileManager;
 import p2pdistribute.common.Peer;
+import p2pdistribute.common.Threads;
 
 /**
  * Keeps track of all active peer connections
  * Used to ensure we only connect to peers we aren't already connected to
  * 		and to close the program properly by ending all threads.
+ * 
+ * Also keeps a {@link PeerScore} for every peer we have been connected to, used to:
+ * 	- Give faster peers more outstanding requests, up to {@link #FAST_PEER_WINDOW_FACTOR} times as many.
+ * 	- Find the slowest connection to drop, see {@link #dropSlowest(double)}
+ * 	- Choose peers to connect to, see {@link PeerManager}
  */
 public class ActiveConnectionManager {
+	
+	// A peer scoring n times the average of our connections may have n times as many requests outstanding, up to this.
+	public static double FAST_PEER_WINDOW_FACTOR = 4; // TODO Future Task: Settings file
+	
+	// A connection must have been scored this many times before it may be dropped for being slow.
+	public static int MIN_SAMPLES_TO_DROP = 10; // TODO Future Task: Settings file
+	
 	private PeerConnectionListener listener;
 	private Thread listenThread;
+	
+	// Provides the threads which read and write peer sockets
+	public final NetworkEngine engine;
 
 	private List<PeerConnection> connections;
+	
+	// Decides which connections we upload to
+	private ChokeManager chokeManager;
+	
+	// Score of every peer we have connected to, including ones we are no longer connected to
+	private Map<Peer, PeerScore> scores;
+	// Score of each connection. Peers which connected to us can't be told apart (we don't know their listening port),
+	// 		so are scored per connection.
+	private Map<PeerConnection, PeerScore> connectionScores;
+	
+	// Bytes of chunk data received on connections which have since closed
+	private long closedReceivedBytes;
+	
+	// Called whenever a connection closes, see setCloseListener
+	private volatile Runnable closeListener;
 
-	public ActiveConnectionManager(FileManager fileManager) throws IOException {
-		listener = new PeerConnectionListener(this, fileManager);
+	public ActiveConnectionManager(FileManager fileManager, NetworkEngine engine) throws IOException {
+		this.engine = engine;
+		listener = new PeerConnectionListener(this, fileManager, engine);
 		
-		listenThread = new Thread(listener);
+		listenThread = Threads.newThread(listener);
 		listenThread.start();
 		
 		connections = new LinkedList<>();
+		chokeManager = new ChokeManager(fileManager);
+		scores = new HashMap<>();
+		connectionScores = new HashMap<>();
 	}
 	
 	/**
@@ -35,6 +72,117 @@ public class ActiveConnectionManager {
 		System.out.println("Added Peer: " + peer.sock.getInetAddress() + ":" + peer.sock.getLocalPort());
 		connections.add(peer);
 		
+		PeerScore score = peer.isInitiator() ? getScore(peer.peer) : new PeerScore();
+		score.connected(System.nanoTime());
+		connectionScores.put(peer, score);
+		
+		Runnable listener = closeListener;
+		if(listener != null) {
+			peer.setCloseListener(listener);
+			
+			if(!peer.isAlive()) {
+				// Closed before the listener was set
+				listener.run();
+			}
+		}
+	}
+	
+	/**
+	 * Sets a task to run whenever a connection closes, so it can be removed by {@link #pruneConnections()} straight away.
+	 * Run on the closed connection's thread. Only applies to peers added afterwards.
+	 */
+	public void setCloseListener(Runnable listener) {
+		closeListener = listener;
+	}
+	
+	/**
+	 * Returns the number of bytes of chunk data received from all peers, including those no longer connected.
+	 */
+	public synchronized long getReceivedBytes() {
+		long bytes = closedReceivedBytes;
+		for(PeerConnection conn : connections) {
+			bytes += conn.getReceivedBytes();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Returns the score of a peer from the Swarm Manager, which is untried if we have never connected to it.
+	 */
+	public synchronized PeerScore getScore(Peer peer) {
+		PeerScore score = scores.get(peer);
+		if(score == null) {
+			score = new PeerScore();
+			scores.put(peer, score);
+		}
+		return score;
+	}
+	
+	/**
+	 * Updates the score of every connected peer, and gives each a request window in proportion to its score.
+	 */
+	public synchronized void updateScores() {
+		long now = System.nanoTime();
+		
+		double total = 0;
+		int scored = 0;
+		
+		for(PeerConnection conn : connections) {
+			PeerScore score = sampleScore(conn, now);
+			
+			if(score.getScore() > 0) {
+				total += score.getScore();
+				scored++;
+			}
+		}
+		
+		if(scored == 0) {
+			return;
+		}
+		double average = total / scored;
+		
+		for(PeerConnection conn : connections) {
+			double factor = Math.min(connectionScores.get(conn).getScore() / average, FAST_PEER_WINDOW_FACTOR);
+			
+			conn.setRequestCapacity((int)Math.max(PeerConnection.REQUEST_WINDOW, Math.round(PeerConnection.REQUEST_WINDOW * factor)));
+		}
+	}
+	
+	/**
+	 * Stops the connection with the lowest score, of those scored at least {@link #MIN_SAMPLES_TO_DROP} times.
+	 * It is removed by the next {@link #pruneConnections()}.
+	 * @param replacementScore - Score of the peer which will replace it. Nothing is dropped unless it scores lower.
+	 * @return false if no connection has been scored enough yet, or the replacement is no better.
+	 */
+	public synchronized boolean dropSlowest(double replacementScore) {
+		PeerConnection slowest = null;
+		double lowest = Double.MAX_VALUE;
+		
+		for(PeerConnection conn : connections) {
+			PeerScore score = connectionScores.get(conn);
+			
+			if(conn.isAlive() && score.getSamples() >= MIN_SAMPLES_TO_DROP && score.getScore() < lowest) {
+				slowest = conn;
+				lowest = score.getScore();
+			}
+		}
+		
+		if(slowest == null || lowest >= replacementScore) {
+			return false;
+		}
+		
+		System.out.println("Dropping slowest peer: " + slowest.sock.getInetAddress() + ":" + slowest.sock.getLocalPort() 
+				+ String.format(" (%.0f bytes/s)", connectionScores.get(slowest).getBytesPerSecond()));
+		slowest.stop();
+		
+		return true;
+	}
+	
+	private PeerScore sampleScore(PeerConnection conn, long now) {
+		PeerScore score = connectionScores.get(conn);
+		score.sample(conn.getReceivedBytes(), conn.getFailedChunks(), conn.getLatencyNanos(), now);
+		
+		return score;
 	}
 	
 	/**
@@ -59,7 +207,7 @@ public class ActiveConnectionManager {
 		return listener.getPort();
 	}
 	
-	public int getNumPeers() {
+	public synchronized int getNumPeers() {
 		return connections.size();
 	}
 	
@@ -67,15 +215,27 @@ public class ActiveConnectionManager {
 		Iterator<PeerConnection> iter = connections.iterator();
 		while(iter.hasNext()) {
 			PeerConnection conn = iter.next();
-			if(!conn.readThread.isAlive()) {
+			if(!conn.isAlive()) {
 				conn.stop();
-				System.out.println("Removed Peer: " + conn.sock.getInetAddress() + ":" + conn.sock.getLocalPort());
+				// Keep any chunks which failed verification against the peer
+				sampleScore(conn, System.nanoTime());
+				connectionScores.remove(conn);
+				closedReceivedBytes += conn.getReceivedBytes();
+				System.out.println("Removed Peer: " + conn.sock.getInetAddress() + ":" + conn.sock.getLocalPort() + ". Sent " + conn.writeStats 
+						+ ". Peak queued bytes: " + conn.getPeakQueuedBytes());
 				
 				iter.remove();
 			}
 		}
 	}
 	
+	/**
+	 * Chooses which peers to upload to, if it is time to. See {@link ChokeManager}
+	 */
+	public synchronized void updateChokes() {
+		chokeManager.update(connections);
+	}
+	
 	/**
 	 * Stops all PeerConnection threads.
 	 */
@@ -85,6 +245,8 @@ public class ActiveConnectionManager {
 		for(PeerConnection conn : connections) {
 			conn.stop();
 		}
+		
+		engine.stop();
 	}
 	
 	/**
@@ -0,0 +1,132 @@
+package p2pdistribute.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import p2pdistribute.client.filemanager.FileManager;
+
+/**
+ * Decides which peers we upload to (tit-for-tat).
+ *
+ * Every {@link #CHOKE_INTERVAL_MS} each connected peer's rate over the last interval is measured:
+ * 	- While we are downloading, how fast the peer sends us chunk data. Peers which upload to us are uploaded to.
+ * 	- Once we are complete, how fast we send the peer data. Upload slots go to the peers which can use them best.
+ *
+ * The {@link #UPLOAD_SLOTS} fastest peers are unchoked, along with one optimistic slot. The optimistic slot moves to
+ * 		a random choked peer every {@link #OPTIMISTIC_ROUNDS} rounds, so new peers get the chance to prove themselves.
+ * 		Every other peer is choked, and its requests are not served (see {@link PeerConnection#choke()}).
+ *
+ * @note Only peers which are missing chunks and understand choke messages (see {@link PeerConnection#canChoke()})
+ * 		are considered. Older peers are always served, as they would wait for choked requests forever.
+ */
+public class ChokeManager {
+	
+	// Number of peers unchoked for their rate, not counting the optimistic slot.
+	public static int UPLOAD_SLOTS = 4; // TODO Future Task: Settings file
+	
+	// How often the peers to unchoke are chosen again.
+	public static int CHOKE_INTERVAL_MS = 10000; // TODO Future Task: Settings file
+	
+	// Rounds between moving the optimistic unchoke to another peer.
+	public static int OPTIMISTIC_ROUNDS = 3; // TODO Future Task: Settings file
+	
+	private final FileManager fileManager;
+	private final Random random;
+	
+	// Bytes received from (or sent to) each connection when last measured
+	private Map<PeerConnection, Long> lastBytes;
+	private long lastRound;
+	private int rounds;
+	
+	private PeerConnection optimistic;
+	
+	public ChokeManager(FileManager fileManager) {
+		this.fileManager = fileManager;
+		random = new Random();
+		
+		lastBytes = new HashMap<>();
+		lastRound = System.nanoTime();
+		rounds = 0;
+	}
+	
+	/**
+	 * Chooses which peers to unchoke, if a round is due. Peers connected since the last round start unchoked,
+	 * 		so a round is also run early once they take us over the number of slots.
+	 * @param connections - Every connected peer
+	 */
+	public void update(List<PeerConnection> connections) {
+		long now = System.nanoTime();
+		
+		if(now - lastRound < CHOKE_INTERVAL_MS * 1000000L && countUnchoked(connections) <= UPLOAD_SLOTS + 1) {
+			return;
+		}
+		
+		rechoke(connections, now);
+	}
+	
+	private void rechoke(List<PeerConnection> connections, long now) {
+		boolean seeding = fileManager.complete();
+		double seconds = Math.max(now - lastRound, 1) / 1e9;
+		
+		final Map<PeerConnection, Double> rates = new HashMap<>();
+		Map<PeerConnection, Long> bytes = new HashMap<>();
+		List<PeerConnection> candidates = new ArrayList<>();
+		
+		for(PeerConnection conn : connections) {
+			long total = seeding ? conn.getSentBytes() : conn.getReceivedBytes();
+			Long last = lastBytes.get(conn);
+			
+			bytes.put(conn, total);
+			rates.put(conn, (total - ((last == null) ? 0 : last)) / seconds);
+			
+			if(conn.canChoke() && !conn.peerComplete()) {
+				candidates.add(conn);
+			}
+		}
+		
+		lastBytes = bytes;
+		lastRound = now;
+		rounds++;
+		
+		// Fastest first
+		Collections.sort(candidates, new Comparator<PeerConnection>() {
+			@Override
+			public int compare(PeerConnection a, PeerConnection b) {
+				return Double.compare(rates.get(b), rates.get(a));
+			}
+		});
+		
+		List<PeerConnection> unchoke = new ArrayList<>(candidates.subList(0, Math.min(UPLOAD_SLOTS, candidates.size())));
+		
+		if(optimistic == null || !candidates.contains(optimistic) || unchoke.contains(optimistic) || rounds % OPTIMISTIC_ROUNDS == 0) {
+			List<PeerConnection> choked = new ArrayList<>(candidates.subList(unchoke.size(), candidates.size()));
+			optimistic = choked.isEmpty() ? null : choked.get(random.nextInt(choked.size()));
+		}
+		if(optimistic != null) {
+			unchoke.add(optimistic);
+		}
+		
+		for(PeerConnection conn : candidates) {
+			if(unchoke.contains(conn)) {
+				conn.unchoke();
+			} else {
+				conn.choke();
+			}
+		}
+	}
+	
+	private int countUnchoked(List<PeerConnection> connections) {
+		int count = 0;
+		for(PeerConnection conn : connections) {
+			if(conn.canChoke() && !conn.peerComplete() && !conn.isChoking()) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,164 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import p2pdistribute.client.filemanager.FileManager;
+import p2pdistribute.client.message.P2PMessageParser;
+
+/**
+ * A Data message which is sent without reading the chunk into memory.
+ * 
+ * The Data message header is gathered from the writer's reused scratch buffer, then the chunk
+ * 		is transferred straight from the file to the socket using {@link FileManager#transferChunkData}.
+ * 
+ * If a frame size is given, the chunk is sent as several version 1 Data messages of at most that many bytes,
+ * 		so other messages can be sent in between frames. Frames can also send just a block of the chunk.
+ *
+ */
+public class ChunkUploadMessage extends OutgoingMessage {
+	
+	private final FileManager files;
+	private final int fileid;
+	private final int chunkid;
+	private final int chunkSize;
+	
+	// Range of the chunk to send. The whole chunk unless a block was requested.
+	private final int start;
+	private final int end;
+	
+	// Maximum bytes of chunk data per frame. 0 to send the whole chunk in one version 0 Data message.
+	private final int frameSize;
+	
+	// Bytes of the chunk already sent
+	private int position;
+	
+	// Position the frame currently being sent ends at
+	private int frameEnd;
+	
+	/**
+	 * Sends the whole chunk as a single Data message (understood by every protocol version)
+	 * @throws IOException thrown if fileid or chunkid are not valid for files.
+	 */
+	public ChunkUploadMessage(FileManager files, int fileid, int chunkid) throws IOException {
+		this(files, fileid, chunkid, 0);
+	}
+	
+	/**
+	 * Sends the chunk as version 1 Data frames of at most frameSize bytes
+	 * @param frameSize - 0 to send the whole chunk in one version 0 Data message
+	 * @throws IOException thrown if fileid or chunkid are not valid for files.
+	 */
+	public ChunkUploadMessage(FileManager files, int fileid, int chunkid, int frameSize) throws IOException {
+		this(files, fileid, chunkid, 0, files.getChunkSize(fileid, chunkid), frameSize);
+	}
+	
+	/**
+	 * Sends length bytes at offset within the chunk (a block) as version 1 Data frames of at most frameSize bytes
+	 * @throws IOException thrown if fileid or chunkid are not valid for files, or the block is not within the chunk.
+	 */
+	public ChunkUploadMessage(FileManager files, int fileid, int chunkid, int offset, int length, int frameSize) throws IOException {
+		this.files = files;
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+		this.frameSize = frameSize;
+		
+		this.chunkSize = files.getChunkSize(fileid, chunkid);
+		if(offset < 0 || length <= 0 || length > chunkSize - offset) {
+			throw new IOException("Block is not within chunk " + fileid + "/" + chunkid);
+		}
+		if(frameSize <= 0 && length != chunkSize) {
+			throw new IOException("Blocks can only be sent as Data frames");
+		}
+		
+		this.start = offset;
+		this.end = offset + length;
+		this.position = start;
+		this.frameEnd = start;
+	}
+
+	/**
+	 * Returns true if this message will upload the whole of (fileid, chunkid)
+	 */
+	public boolean isChunk(int fileid, int chunkid) {
+		return isBlock(fileid, chunkid, 0, chunkSize);
+	}
+
+	/**
+	 * Returns true if this message will upload length bytes at offset within (fileid, chunkid)
+	 */
+	public boolean isBlock(int fileid, int chunkid, int offset, int length) {
+		return this.fileid == fileid && this.chunkid == chunkid && start == offset && end - start == length;
+	}
+
+	@Override
+	public boolean isUpload(int fileid, int chunkid, int offset, int length) {
+		return isBlock(fileid, chunkid, offset, length);
+	}
+
+	@Override
+	public void gather(List<ByteBuffer> buffers, ByteBuffer scratch) {
+		ByteBuffer header = scratch.slice();
+		frameEnd = position + nextFrameLength();
+		
+		if(frameSize > 0) {
+			P2PMessageParser.serialiseDataFrameHeader(header, files.metadata.metaHash, fileid, chunkid, position, nextFrameLength());
+		} else {
+			P2PMessageParser.serialiseDataHeader(header, files.metadata.metaHash, fileid, chunkid, chunkSize);
+		}
+		header.flip();
+		
+		scratch.position(scratch.position() + header.limit());
+		buffers.add(header);
+	}
+	
+	@Override
+	public boolean hasTransfer() {
+		return true;
+	}
+	
+	@Override
+	public boolean transfer(WritableByteChannel channel) throws IOException {
+		while(position < frameEnd) {
+			int sent = files.transferChunkData(fileid, chunkid, position, frameEnd - position, channel);
+			if(sent == 0) {
+				// Non-blocking channel is full
+				return false;
+			}
+			position += sent;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public boolean isFinished() {
+		return position >= end;
+	}
+
+	@Override
+	public int length() {
+		if(frameSize > 0) {
+			return P2PMessageParser.getDataFrameHeaderLength(files.metadata.metaHash) + nextFrameLength();
+		}
+		return P2PMessageParser.getDataHeaderLength(files.metadata.metaHash) + chunkSize;
+	}
+	
+	@Override
+	public int remainingLength() {
+		if(frameSize > 0) {
+			int frames = (end - position + frameSize - 1) / frameSize;
+			return frames * P2PMessageParser.getDataFrameHeaderLength(files.metadata.metaHash) + end - position;
+		}
+		return length();
+	}
+	
+	private int nextFrameLength() {
+		if(frameSize > 0) {
+			return Math.min(frameSize, end - position);
+		}
+		return end - position;
+	}
+}
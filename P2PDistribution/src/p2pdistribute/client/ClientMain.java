@@ -2,12 +2,25 @@ package p2pdistribute.client;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.ChunkPicker;
 import p2pdistribute.client.filemanager.ChunkStatusChangeHandler;
 import p2pdistribute.client.filemanager.FileManager;
 import p2pdistribute.client.filemanager.FileManagerSetupException;
+import p2pdistribute.client.filemanager.RandomChunkPicker;
+import p2pdistribute.client.filemanager.RarestFirstChunkPicker;
+import p2pdistribute.client.filemanager.StreamingChunkPicker;
+import p2pdistribute.common.Threads;
 import p2pdistribute.common.p2pmeta.FileParser;
 import p2pdistribute.common.p2pmeta.P2PMetadata;
 import p2pdistribute.common.p2pmeta.ParserException;
@@ -22,6 +35,23 @@ public class ClientMain implements ChunkStatusChangeHandler {
 	private static String p2pMetaFile;
 	private static String outputDir;
 	
+	// Networking engine: "threads" (two threads per peer), "virtual" (two virtual threads per peer)
+	// 		or "nio" (selector threads shared by all peers)
+	private static String engineName = "threads";
+	private static int selectorThreads = SelectorEngine.DEFAULT_THREADS;
+	private static int workerThreads = SelectorEngine.DEFAULT_WORKER_THREADS;
+	
+	// Chunk picking strategy: "rarest" (least available chunk first) or "random"
+	private static String pickerName = "rarest";
+	
+	// Download chunks roughly in order, using the picker outside the streaming window
+	private static boolean stream = false;
+	
+	// Only files matching one of these are downloaded. Every file if empty.
+	private static List<PathMatcher> fileFilter = new ArrayList<>();
+	// Priority of files matching each pattern. Later patterns take precedence.
+	private static Map<PathMatcher, Integer> filePriorities = new LinkedHashMap<>();
+	
 	public static void main(String[] args) throws InterruptedException {
 		
 		if(!checkArgs(args)) {
@@ -40,11 +70,17 @@ public class ClientMain implements ChunkStatusChangeHandler {
 		
 		System.out.println("Download status: " + calculatePercentageCompletion() + "%");
 		
+		NetworkEngine engine = createEngine();
+		if(engine == null) {
+			return;
+		}
+		
 		PeerManager peerManager;
 		try {
-			peerManager = new PeerManager(metadata.swarmManagerHostname, SM_PORT, fileManager);
+			peerManager = new PeerManager(metadata.swarmManagerHostname, SM_PORT, fileManager, engine);
 		} catch (PeerManagerException e) {
 			System.err.println(e.getMessage());
+			engine.stop();
 			return;
 		}
 		
@@ -58,9 +94,8 @@ public class ClientMain implements ChunkStatusChangeHandler {
 				break;
 			}
 			
-			// Rate limit registering / retrieving peer list.
-			// TODO Future Task: Remove this sleep value when Swarm Manager registering etc is in a new thread.
-			Thread.sleep(500);
+			// Until a chunk completes, a connection closes, the peer list changes etc.
+			peerManager.awaitEvent();
 		}
 		
 		peerManager.waitForPeers();
@@ -68,16 +103,30 @@ public class ClientMain implements ChunkStatusChangeHandler {
 
 	@Override
 	public void onChunkComplete(int fileid, int chunkid) {
+		if(fileManager.status.getPriority(fileid) == AcquisitionStatus.SKIP) {
+			// Verified from disk, not downloaded
+			return;
+		}
+		
 		System.out.println("Acquired chunk: " + fileid + "/" + chunkid + ". "  + calculatePercentageCompletion() + "% complete");
+		
+		if(stream) {
+			try {
+				System.out.println("File " + fileid + ": " + fileManager.getContiguousBytes(fileid) + " bytes readable from start");
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
 	}
 
 	private static float calculatePercentageCompletion() {
-		return ((float)fileManager.status.numChunksComplete() / fileManager.numChunks()) * 100;
+		return ((float)fileManager.status.numWantedChunksComplete() / fileManager.status.numWantedChunks()) * 100;
 	}
 	
 	private static FileManager setupFileManager(P2PMetadata metadata, String outputDir) {
 		FileManager fileManager = new FileManager(metadata, outputDir);
 		try {
+			setFilePriorities(fileManager);
 			fileManager.setup();
 		} catch(FileManagerSetupException e) {
 			System.err.println("Error occured when preparing files: " + e.getMessage());
@@ -87,34 +136,181 @@ public class ClientMain implements ChunkStatusChangeHandler {
 		// Just used to print message on chunk acquisition
 		fileManager.status.registerHandler(new ClientMain());
 		
+		ChunkPicker picker;
+		if(pickerName.equals("random")) {
+			picker = new RandomChunkPicker();
+		} else {
+			picker = new RarestFirstChunkPicker();
+		}
+		
+		if(stream) {
+			picker = new StreamingChunkPicker(picker);
+		}
+		fileManager.status.setPicker(picker);
+		
 		return fileManager;
 	}
 
+	/**
+	 * Applies --files and --priority to each file.
+	 */
+	private static void setFilePriorities(FileManager fileManager) throws FileManagerSetupException {
+		for(int i=0; i<fileManager.numFiles(); i++) {
+			String filename = fileManager.metadata.files[i].filename;
+			int priority = AcquisitionStatus.NORMAL;
+			
+			if(!fileFilter.isEmpty() && !matchesAny(fileFilter, filename)) {
+				priority = AcquisitionStatus.SKIP;
+			} else {
+				for(Map.Entry<PathMatcher, Integer> entry : filePriorities.entrySet()) {
+					if(entry.getKey().matches(Paths.get(filename))) {
+						priority = entry.getValue();
+					}
+				}
+			}
+			
+			if(priority == AcquisitionStatus.SKIP) {
+				System.out.println("Skipping file: " + filename);
+			}
+			
+			try {
+				fileManager.setPriority(i, priority);
+			} catch (IOException e) {
+				throw new FileManagerSetupException(e.getMessage());
+			}
+		}
+	}
+	
+	private static boolean matchesAny(List<PathMatcher> matchers, String filename) {
+		for(PathMatcher matcher : matchers) {
+			if(matcher.matches(Paths.get(filename))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	private static boolean checkArgs(String[] args) {
 		// If releasing this as a product a proper argument parsing library should be used.
 		
-		if(args.length < 2 || args.length > 3) {
-			printHelp();
-			return false;
-		}
-		p2pMetaFile = args[0];
-		outputDir = args[1];
+		List<String> positional = new ArrayList<>();
 		
-		if(args.length == 3) {
-			if(args[0].equals("--seed")) {
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("--seed")) {
 				System.out.println("Seeding. Manual program exit required.");
 				shouldSeed = true;
+				
+			} else if(args[i].equals("--stream")) {
+				stream = true;
+				
+			} else if(args[i].equals("--engine") && i + 1 < args.length) {
+				engineName = args[++i];
+				
+				if(!engineName.equals("threads") && !engineName.equals("virtual") && !engineName.equals("nio")) {
+					printHelp();
+					return false;
+				}
+			} else if(args[i].equals("--picker") && i + 1 < args.length) {
+				pickerName = args[++i];
+				
+				if(!pickerName.equals("rarest") && !pickerName.equals("random")) {
+					printHelp();
+					return false;
+				}
+			} else if(args[i].equals("--files") && i + 1 < args.length) {
+				try {
+					fileFilter.add(FileSystems.getDefault().getPathMatcher("glob:" + args[++i]));
+				} catch(IllegalArgumentException e) {
+					printHelp();
+					return false;
+				}
+			} else if(args[i].equals("--priority") && i + 1 < args.length) {
+				String[] parts = args[++i].split("=");
+				
+				try {
+					int priority = Integer.parseInt(parts[parts.length - 1]);
+					if(parts.length != 2 || priority < AcquisitionStatus.SKIP) {
+						printHelp();
+						return false;
+					}
+					
+					filePriorities.put(FileSystems.getDefault().getPathMatcher("glob:" + parts[0]), priority);
+				} catch(IllegalArgumentException e) {
+					printHelp();
+					return false;
+				}
+			} else if(args[i].equals("--selector-threads") && i + 1 < args.length) {
+				try {
+					selectorThreads = Integer.parseInt(args[++i]);
+				} catch(NumberFormatException e) {
+					printHelp();
+					return false;
+				}
+			} else if(args[i].equals("--worker-threads") && i + 1 < args.length) {
+				try {
+					workerThreads = Integer.parseInt(args[++i]);
+				} catch(NumberFormatException e) {
+					printHelp();
+					return false;
+				}
+			} else if(args[i].startsWith("--")) {
+				printHelp();
+				return false;
+				
+			} else {
+				positional.add(args[i]);
 			}
-			p2pMetaFile = args[1];
-			outputDir = args[2];
 		}
 		
+		if(positional.size() != 2) {
+			printHelp();
+			return false;
+		}
+		p2pMetaFile = positional.get(0);
+		outputDir = positional.get(1);
+		
 		return true;
 	}
 
 	private static void printHelp() {
-		System.out.println("Usage: <P2PMeta File> <Destination Folder>");
-		System.out.println("Optional Usage: --seed <P2PMeta File> <Destination Folder>");
+		System.out.println("Usage: [options] <P2PMeta File> <Destination Folder>");
+		System.out.println("Options:");
+		System.out.println("  --seed                   Keep running once download is complete");
+		System.out.println("  --engine <threads|virtual|nio>");
+		System.out.println("                           threads: two threads per peer (default). virtual: two virtual threads per peer.");
+		System.out.println("                           nio: selector threads shared by all peers");
+		System.out.println("  --selector-threads <n>   Number of threads used by the nio engine (default " + SelectorEngine.DEFAULT_THREADS + ")");
+		System.out.println("  --worker-threads <n>     Number of threads the nio engine writes received chunks to disk on (default " 
+				+ SelectorEngine.DEFAULT_WORKER_THREADS + ").");
+		System.out.println("                           0 uses the selector threads, so a slow disk holds up other peers");
+		System.out.println("  --picker <rarest|random> Which chunk to request next. rarest: the chunk fewest connected peers have (default).");
+		System.out.println("                           random: any chunk at random");
+		System.out.println("  --stream                 Download the start of each file first, so it can be read before the download");
+		System.out.println("                           completes. The picker is used when no chunks near the start are available");
+		System.out.println("  --files <pattern>        Only download files matching the glob pattern (e.g. \"*.iso\"). Can be repeated.");
+		System.out.println("                           Other files are not created, but are uploaded if already present.");
+		System.out.println("  --priority <pattern>=<n> Priority of files matching the glob pattern. Higher priority files are downloaded");
+		System.out.println("                           first. Default " + AcquisitionStatus.NORMAL + ", " + AcquisitionStatus.SKIP + " skips the file. Can be repeated.");
+	}
+	
+	private static NetworkEngine createEngine() {
+		if(engineName.equals("nio")) {
+			try {
+				return new SelectorEngine(selectorThreads, workerThreads);
+			} catch(IOException | IllegalArgumentException e) {
+				System.err.println("Unable to start nio engine: " + e.getMessage());
+				return null;
+			}
+		}
+		
+		if(engineName.equals("virtual")) {
+			if(!Threads.virtualSupported()) {
+				System.out.println("Virtual threads are not supported by this JVM (Java 21+ required). Using platform threads.");
+			}
+			Threads.VIRTUAL = true;
+		}
+		
+		return new ThreadedEngine();
 	}
 
 	private static P2PMetadata readP2PMetaFile(String filename) {
@@ -0,0 +1,131 @@
+package p2pdistribute.client;
+
+/**
+ * Chooses how many peers to be connected to while downloading, from how fast we are downloading.
+ *
+ * Every {@link #ADJUST_INTERVAL_MS} the download rate from all peers is compared with the previous interval's:
+ * 	- Rate rose: more peers helped (or fewer didn't hurt), so carry on in the same direction.
+ * 	- Rate fell: the last change hurt, so change direction.
+ * 	- No real change: extra connections are not helping, so shed {@link #STEP} peers.
+ * The target moves by {@link #STEP} peers each interval, between {@link #MIN_PEERS} and {@link #MAX_PEERS}.
+ *
+ * While fewer peers are connected than the target (e.g. the swarm is small), the target is held.
+ *
+ * @note Can be used across threads.
+ */
+public class ConnectionController {
+	
+	public static int MIN_PEERS = 4; // TODO Future Task: Settings file
+	public static int MAX_PEERS = 50; // TODO Future Task: Settings file
+	public static int INITIAL_PEERS = 10; // TODO Future Task: Settings file
+	
+	// Peers added or shed at once
+	public static int STEP = 2; // TODO Future Task: Settings file
+	
+	public static int ADJUST_INTERVAL_MS = 5000; // TODO Future Task: Settings file
+	
+	// Relative change in download rate which counts as a real change, rather than noise
+	public static double RATE_THRESHOLD = 0.05; // TODO Future Task: Settings file
+	
+	private int target;
+	// +1 while adding peers, -1 while shedding them
+	private int direction;
+	
+	// Bytes/s over the last interval, negative until measured
+	private double lastRate;
+	private double rate;
+	private int connected;
+	private String decision;
+	
+	private long lastBytes;
+	private long lastTime;
+	
+	public ConnectionController(long now) {
+		target = Math.max(MIN_PEERS, Math.min(INITIAL_PEERS, MAX_PEERS));
+		direction = 1;
+		
+		lastRate = -1;
+		rate = 0;
+		decision = "starting";
+		lastTime = now;
+	}
+	
+	/**
+	 * Returns the number of peers we should be connected to.
+	 */
+	public synchronized int getTarget() {
+		return target;
+	}
+	
+	/**
+	 * Returns what was decided at the last adjustment. e.g. "adding peers"
+	 */
+	public synchronized String getDecision() {
+		return decision;
+	}
+	
+	/**
+	 * Returns the download rate from all peers over the last interval, in bytes/s.
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+	
+	/**
+	 * Adjusts the target, if {@link #ADJUST_INTERVAL_MS} has passed since the last adjustment.
+	 * @param receivedBytes - Bytes of chunk data received from all peers so far
+	 * @param connected - Number of peers connected
+	 * @param now - System.nanoTime()
+	 * @return true if an adjustment was made (though the target may be unchanged)
+	 */
+	public synchronized boolean update(long receivedBytes, int connected, long now) {
+		long elapsed = now - lastTime;
+		if(elapsed < ADJUST_INTERVAL_MS * 1000000L) {
+			return false;
+		}
+		
+		rate = (receivedBytes - lastBytes) * 1e9 / elapsed;
+		this.connected = connected;
+		lastBytes = receivedBytes;
+		lastTime = now;
+		
+		if(connected < target - STEP) {
+			// The last change hasn't taken effect, so there is nothing to judge it by
+			decision = "holding, too few peers available";
+			lastRate = rate;
+			return true;
+		}
+		
+		if(lastRate < 0) {
+			decision = "first measurement";
+		} else if(rate > lastRate * (1 + RATE_THRESHOLD)) {
+			decision = "rate rose";
+		} else if(rate < lastRate * (1 - RATE_THRESHOLD)) {
+			decision = "rate fell";
+			direction = -direction;
+		} else {
+			decision = "rate unchanged";
+			direction = -1;
+		}
+		
+		int previous = target;
+		target = Math.max(MIN_PEERS, Math.min(MAX_PEERS, target + direction * STEP));
+		
+		if(target > previous) {
+			decision += ", adding peers";
+		} else if(target < previous) {
+			decision += ", shedding peers";
+		} else {
+			decision += ", at " + ((direction > 0) ? "upper" : "lower") + " bound";
+		}
+		
+		lastRate = rate;
+		return true;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("target %d peers (bounds %d-%d), %d connected, %.0f bytes/s: %s",
+				target, MIN_PEERS, MAX_PEERS, connected, rate, decision);
+	}
+}
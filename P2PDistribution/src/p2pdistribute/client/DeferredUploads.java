@@ -0,0 +1,198 @@
+package p2pdistribute.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Uploads requested by a single remote peer which have not been queued to be sent yet, in the order they were requested.
+ *
+ * Each upload is [fileid, chunkid, offset, length, count]. length is {@link RequestWindow#WHOLE_CHUNK} for a range
+ * 		of count consecutive whole chunks, otherwise it is a block of length bytes at offset within the chunk.
+ *
+ * However the remote peer requests them, no more than {@link #capacity} uploads are held:
+ * 		- A whole chunk is only held once, whether it was requested alone or as part of a range.
+ * 			Parts of a range which are already held are left out, so repeating a request adds nothing.
+ * 		- A block is only held once.
+ * 		- Once capacity uploads are held, further requests are refused.
+ *
+ * @note Can be used across threads.
+ */
+public class DeferredUploads {
+	
+	// Most uploads held at once. A range counts as one.
+	private final int capacity;
+	
+	private final LinkedList<int[]> uploads;
+	
+	public DeferredUploads(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Must allow at least one deferred upload");
+		}
+		
+		this.capacity = capacity;
+		uploads = new LinkedList<>();
+	}
+	
+	/**
+	 * Adds an upload of the whole of (fileid, chunkid), unless it is already held.
+	 * @return false if the upload would take the number held over capacity. Nothing was added.
+	 */
+	public boolean addChunk(int fileid, int chunkid) {
+		return addRange(fileid, chunkid, 1);
+	}
+	
+	/**
+	 * Adds uploads of count consecutive whole chunks of fileid starting at chunkid, leaving out any already held.
+	 * 		The rest are added as one range, or several if chunks in the middle are already held.
+	 * @return false if the uploads would take the number held over capacity. Nothing was added.
+	 */
+	public synchronized boolean addRange(int fileid, int chunkid, int count) {
+		boolean[] held = new boolean[count];
+		
+		for(int[] upload : uploads) {
+			if(upload[0] != fileid || upload[3] != RequestWindow.WHOLE_CHUNK) {
+				continue;
+			}
+			
+			int end = Math.min(chunkid + count, upload[1] + upload[4]);
+			for(int i=Math.max(chunkid, upload[1]); i<end; i++) {
+				held[i - chunkid] = true;
+			}
+		}
+		
+		List<int[]> ranges = new ArrayList<>();
+		int i = 0;
+		while(i < count) {
+			if(held[i]) {
+				i++;
+				continue;
+			}
+			
+			int start = i;
+			while(i < count && !held[i]) {
+				i++;
+			}
+			ranges.add(new int[] { fileid, chunkid + start, 0, RequestWindow.WHOLE_CHUNK, i - start });
+		}
+		
+		if(uploads.size() + ranges.size() > capacity) {
+			return false;
+		}
+		
+		uploads.addAll(ranges);
+		return true;
+	}
+	
+	/**
+	 * Adds an upload of length bytes at offset within (fileid, chunkid), unless it is already held.
+	 * @return false if the upload would take the number held over capacity. Nothing was added.
+	 */
+	public synchronized boolean addBlock(int fileid, int chunkid, int offset, int length) {
+		int[] block = new int[] { fileid, chunkid, offset, length, 1 };
+		
+		for(int[] upload : uploads) {
+			if(Arrays.equals(upload, block)) {
+				return true;
+			}
+		}
+		
+		if(uploads.size() >= capacity) {
+			return false;
+		}
+		
+		uploads.add(block);
+		return true;
+	}
+	
+	/**
+	 * Removes and returns the oldest upload. A range gives up its first chunk, and stays held until its last chunk is taken.
+	 * @return [fileid, chunkid, offset, length], or null if none are held.
+	 */
+	public synchronized int[] poll() {
+		if(uploads.isEmpty()) {
+			return null;
+		}
+		
+		int[] first = uploads.getFirst();
+		int[] upload = new int[] { first[0], first[1], first[2], first[3] };
+		
+		if(first[4] > 1) {
+			first[1]++;
+			first[4]--;
+		} else {
+			uploads.removeFirst();
+		}
+		
+		return upload;
+	}
+	
+	/**
+	 * Removes uploads of the count whole chunks of fileid from chunkid. Ranges which include them are cut short, or split in two.
+	 */
+	public synchronized void cancelChunks(int fileid, int chunkid, int count) {
+		int end = chunkid + count;
+		
+		ListIterator<int[]> iter = uploads.listIterator();
+		while(iter.hasNext()) {
+			int[] upload = iter.next();
+			int uploadEnd = upload[1] + upload[4];
+			
+			if(upload[0] != fileid || upload[3] != RequestWindow.WHOLE_CHUNK || uploadEnd <= chunkid || upload[1] >= end) {
+				continue;
+			}
+			iter.remove();
+			
+			// Keep the parts of the range either side
+			if(upload[1] < chunkid) {
+				iter.add(new int[] { fileid, upload[1], 0, RequestWindow.WHOLE_CHUNK, chunkid - upload[1] });
+			}
+			if(uploadEnd > end) {
+				iter.add(new int[] { fileid, end, 0, RequestWindow.WHOLE_CHUNK, uploadEnd - end });
+			}
+		}
+	}
+	
+	/**
+	 * Removes the upload of length bytes at offset within (fileid, chunkid).
+	 * @return true if it was held
+	 */
+	public synchronized boolean cancelBlock(int fileid, int chunkid, int offset, int length) {
+		int[] block = new int[] { fileid, chunkid, offset, length, 1 };
+		
+		Iterator<int[]> iter = uploads.iterator();
+		while(iter.hasNext()) {
+			if(Arrays.equals(iter.next(), block)) {
+				iter.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public synchronized void clear() {
+		uploads.clear();
+	}
+	
+	/**
+	 * Returns the number of uploads held. A range counts as one.
+	 */
+	public synchronized int size() {
+		return uploads.size();
+	}
+	
+	/**
+	 * Returns the number of chunks and blocks held, counting each chunk of a range.
+	 */
+	public synchronized int numUploads() {
+		int total = 0;
+		
+		for(int[] upload : uploads) {
+			total += upload[4];
+		}
+		return total;
+	}
+}
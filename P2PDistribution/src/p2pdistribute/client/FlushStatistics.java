@@ -0,0 +1,50 @@
+package p2pdistribute.client;
+
+/**
+ * Counts how many messages and bytes are sent in each write (flush) to a peer socket.
+ * 
+ * @note Can be used across threads.
+ */
+public class FlushStatistics {
+	
+	private long flushes;
+	private long messages;
+	private long bytes;
+	
+	/**
+	 * Records one write to the socket.
+	 * @param numMessages - The number of messages completed by this write
+	 * @param numBytes - The number of bytes written
+	 */
+	public synchronized void recordFlush(int numMessages, long numBytes) {
+		flushes++;
+		messages += numMessages;
+		bytes += numBytes;
+	}
+	
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+	
+	public synchronized long getMessages() {
+		return messages;
+	}
+	
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public synchronized double getMessagesPerFlush() {
+		return flushes == 0 ? 0 : (double)messages / flushes;
+	}
+	
+	public synchronized double getBytesPerFlush() {
+		return flushes == 0 ? 0 : (double)bytes / flushes;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("%d messages, %d bytes in %d flushes (%.1f messages/flush, %.0f bytes/flush)", 
+				messages, bytes, flushes, getMessagesPerFlush(), getBytesPerFlush());
+	}
+}
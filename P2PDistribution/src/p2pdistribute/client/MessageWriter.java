@@ -0,0 +1,165 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import p2pdistribute.client.message.P2PMessageParser;
+
+/**
+ * Writes messages from an OutgoingQueue onto a P2P connection socket.
+ *
+ * Every control message already waiting in the queue is sent together in one gathering write,
+ * 		so many small control messages cost a single system call.
+ * Control messages always go first. At most one part of one bulk message (e.g. one frame of a chunk upload)
+ * 		is sent before the queue is checked for control messages again.
+ *
+ * Works with blocking and non-blocking channels. On a non-blocking channel a write which
+ * 		could not be completed is carried on by the next call to {@link #write()}.
+ *
+ * @note Only one thread should call {@link #write()}.
+ */
+public class MessageWriter {
+	
+	// Upper limit on the number of queued messages sent in one write.
+	public static final int MAX_BATCH_MESSAGES = 256;
+	
+	private OutgoingQueue queue;
+	private WritableByteChannel out;
+	private FlushStatistics stats;
+	
+	// Reused for Data message headers, so uploading a chunk needs no allocation.
+	private ByteBuffer scratch;
+	
+	private List<OutgoingMessage> batch;
+	private List<ByteBuffer> buffers;
+	private ByteBuffer[] gathered;
+	
+	// Bulk message being sent in the current write, or null
+	private OutgoingMessage bulk;
+	
+	// True if messages have been taken from the queue and not completely written yet
+	private boolean writing;
+	private int flushMessages;
+	private long flushBytes;
+	
+	public MessageWriter(OutgoingQueue queue, WritableByteChannel out, FlushStatistics stats) {
+		this.queue = queue;
+		this.out = out;
+		this.stats = stats;
+		
+		this.scratch = ByteBuffer.allocateDirect(P2PMessageParser.MAX_DATA_HEADER_LENGTH);
+		
+		this.batch = new ArrayList<>();
+		this.buffers = new ArrayList<>();
+		this.writing = false;
+	}
+	
+	/**
+	 * Writes queued messages until the queue is empty, or the (non-blocking) channel will not accept any more data.
+	 * @return true if everything queued has been written. false if the channel is full.
+	 * @throws IOException thrown on socket (or disk) error.
+	 */
+	public boolean write() throws IOException {
+		while(true) {
+			if(!writing && !prepare()) {
+				// Nothing left in the queue
+				return true;
+			}
+			
+			if(!writeBuffers()) {
+				return false;
+			}
+			
+			if(bulk != null && bulk.hasTransfer() && !bulk.transfer(out)) {
+				return false;
+			}
+			
+			finish();
+		}
+	}
+	
+	/**
+	 * Takes every queued control message and the next part of one bulk message, and gathers them to be written.
+	 * @return false if there is nothing queued.
+	 */
+	private boolean prepare() {
+		batch.clear();
+		queue.drainControl(batch, MAX_BATCH_MESSAGES);
+		bulk = queue.nextBulk();
+		
+		if(batch.isEmpty() && bulk == null) {
+			return false;
+		}
+		
+		for(OutgoingMessage message : batch) {
+			add(message);
+		}
+		
+		if(bulk != null) {
+			add(bulk);
+		}
+		
+		gathered = buffers.toArray(new ByteBuffer[buffers.size()]);
+		writing = true;
+		return true;
+	}
+	
+	private void add(OutgoingMessage message) {
+		flushMessages++;
+		flushBytes += message.length();
+		
+		message.gather(buffers, scratch);
+	}
+	
+	/**
+	 * Called once the current write has been completely sent.
+	 */
+	private void finish() {
+		stats.recordFlush(flushMessages, flushBytes);
+		
+		buffers.clear();
+		scratch.clear();
+		gathered = null;
+		flushMessages = 0;
+		flushBytes = 0;
+		writing = false;
+		
+		queue.finishWrite(bulk);
+	}
+	
+	/**
+	 * Writes all gathered buffers, using a single gathering write if possible.
+	 * @return false if the channel is full before all buffers were written
+	 */
+	private boolean writeBuffers() throws IOException {
+		if(gathered.length == 0) {
+			return true;
+		}
+		
+		ByteBuffer last = gathered[gathered.length - 1];
+		
+		if(out instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) out;
+			
+			while(last.hasRemaining()) {
+				if(gathering.write(gathered) == 0 && last.hasRemaining()) {
+					return false;
+				}
+			}
+		} else {
+			for(ByteBuffer buffer : gathered) {
+				while(buffer.hasRemaining()) {
+					if(out.write(buffer) == 0) {
+						return false;
+					}
+				}
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,26 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Provides the threads which read and write peer sockets.
+ * 
+ * 	- {@link ThreadedEngine}: Two threads per connection, using blocking IO.
+ * 	- {@link SelectorEngine}: A small fixed number of threads for all connections, using non-blocking IO.
+ *
+ */
+public interface NetworkEngine {
+	
+	/**
+	 * Creates a transport which will carry messages for conn over sock, once started.
+	 * @param sock - A connected socket. Must have been opened from a SocketChannel for some engines.
+	 * @throws IOException thrown if the socket cannot be used by this engine.
+	 */
+	public PeerTransport open(PeerConnection conn, Socket sock) throws IOException;
+	
+	/**
+	 * Stops any threads shared between connections.
+	 */
+	public void stop();
+}
@@ -0,0 +1,73 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * A message queued to be written onto a P2P connection socket by a {@link MessageWriter}.
+ * 
+ * Messages are written in two parts, so that several queued messages can be sent in one gathering write:
+ * 		1. {@link #gather} - The parts of the message held in memory (e.g. serialised control messages, Data headers)
+ * 		2. {@link #transfer} - Any part which is sent straight from elsewhere (e.g. chunk data from disk)
+ *
+ */
+public abstract class OutgoingMessage {
+	
+	/**
+	 * Adds the in-memory part of this message to buffers.
+	 * @param buffers - The buffers to be written in the next gathering write.
+	 * @param scratch - Buffer owned by the writing thread, which may be used for small headers. 
+	 * 		Has at least {@link p2pdistribute.client.message.P2PMessageParser#MAX_DATA_HEADER_LENGTH} bytes remaining.
+	 */
+	public abstract void gather(List<ByteBuffer> buffers, ByteBuffer scratch);
+	
+	/**
+	 * Returns true if {@link #transfer} must be called after the gathered buffers have been written.
+	 */
+	public boolean hasTransfer() {
+		return false;
+	}
+	
+	/**
+	 * Writes the part of the message which is not held in memory.
+	 * On a blocking channel this writes everything. On a non-blocking channel it writes as much as the channel 
+	 * 		will accept, and must be called again (once the channel is writable) until it returns true.
+	 * @return true once the whole transfer part has been written.
+	 * @throws IOException thrown on socket (or disk) error.
+	 */
+	public boolean transfer(WritableByteChannel channel) throws IOException {
+		return true;
+	}
+	
+	/**
+	 * Returns true once every part of this message has been written.
+	 * Messages which are sent in several parts (e.g. a chunk upload split into frames) are 
+	 * 		gathered and transferred once per part, until this returns true.
+	 */
+	public boolean isFinished() {
+		return true;
+	}
+	
+	/**
+	 * Returns the number of bytes the next part of this message will take up on the wire.
+	 */
+	public abstract int length();
+	
+	/**
+	 * Returns true if this message uploads exactly length bytes at offset within (fileid, chunkid),
+	 * 		so it can be cancelled if the remote peer no longer wants them.
+	 */
+	public boolean isUpload(int fileid, int chunkid, int offset, int length) {
+		return false;
+	}
+	
+	/**
+	 * Returns the number of bytes of this message (all parts) still to be written.
+	 * Only meaningful until {@link #isFinished()} returns true.
+	 */
+	public int remainingLength() {
+		return length();
+	}
+}
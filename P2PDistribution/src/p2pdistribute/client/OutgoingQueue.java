@@ -0,0 +1,355 @@
+package p2pdistribute.client;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages waiting to be written onto a P2P connection socket.
+ *
+ * Split into two lanes:
+ * 		- Control: advertise, request and have messages. Always sent before any bulk data.
+ * 		- Bulk: chunk uploads. Sent one part at a time (see {@link OutgoingMessage#isFinished()}),
+ * 			so queued control messages are only ever held up by one part of one upload.
+ *
+ * The number of bytes waiting to be written is tracked against a budget. Callers should check {@link #hasSpace()}
+ * 		before queuing more bulk data, and will be told via the space listener when the queue drains below budget.
+ *
+ * @note Can be added to from multiple threads. Only one thread (the {@link MessageWriter}) should take messages.
+ * @note Uses a ReentrantLock rather than synchronized/wait, so a virtual writer thread waiting for messages
+ * 		does not pin its carrier thread.
+ */
+public class OutgoingQueue {
+	
+	private final ReentrantLock lock;
+	private final Condition messageQueued;
+	
+	private final LinkedList<OutgoingMessage> control;
+	private final LinkedList<OutgoingMessage> bulk;
+	
+	// Bulk message which has been partly written. Must be finished before any other bulk message is started.
+	private OutgoingMessage sending;
+	
+	// OutgoingMessage#remainingLength() of sending when it was taken from the queue
+	private int sendingLength;
+	
+	private boolean closed;
+	
+	// Bytes queued and not yet written. See {@link OutgoingMessage#remainingLength()}
+	private final long budget;
+	private long queuedBytes;
+	private long peakQueuedBytes;
+	
+	// Called (outside of any lock) whenever a bulk message is sent while the queue is within budget
+	private Runnable spaceListener;
+	
+	// Called (outside of any lock) whenever a message is queued
+	private Runnable messageListener;
+	
+	/**
+	 * @param budget - Number of queued bytes above which {@link #hasSpace()} returns false
+	 */
+	public OutgoingQueue(long budget) {
+		lock = new ReentrantLock();
+		messageQueued = lock.newCondition();
+		
+		control = new LinkedList<>();
+		bulk = new LinkedList<>();
+		
+		sending = null;
+		closed = false;
+		
+		this.budget = budget;
+		queuedBytes = 0;
+		peakQueuedBytes = 0;
+	}
+	
+	/**
+	 * Sets the Runnable to call on the writing thread when the queue has space for more bulk messages.
+	 */
+	public void setSpaceListener(Runnable listener) {
+		lock.lock();
+		try {
+			spaceListener = listener;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sets the Runnable to call (on the queuing thread) each time a message is queued.
+	 * Used by writers which do not wait on the queue, see {@link #waitForMessages()}.
+	 */
+	public void setMessageListener(Runnable listener) {
+		lock.lock();
+		try {
+			messageListener = listener;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns true if fewer than budget bytes are waiting to be written.
+	 */
+	public boolean hasSpace() {
+		lock.lock();
+		try {
+			return queuedBytes < budget;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes queued and not yet written.
+	 */
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the largest value {@link #getQueuedBytes()} has reached.
+	 */
+	public long getPeakQueuedBytes() {
+		lock.lock();
+		try {
+			return peakQueuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues a message to be sent ahead of all bulk messages.
+	 * Control messages must be held entirely in memory (no {@link OutgoingMessage#transfer} part).
+	 */
+	public void addControl(OutgoingMessage message) {
+		Runnable listener;
+		
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+			
+			control.add(message);
+			addQueuedBytes(message.remainingLength());
+			messageQueued.signalAll();
+			
+			listener = messageListener;
+		} finally {
+			lock.unlock();
+		}
+		
+		if(listener != null) {
+			listener.run();
+		}
+	}
+	
+	/**
+	 * Queues a message to be sent once every queued control message has been sent.
+	 */
+	public void addBulk(OutgoingMessage message) {
+		Runnable listener;
+		
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+			
+			bulk.add(message);
+			addQueuedBytes(message.remainingLength());
+			messageQueued.signalAll();
+			
+			listener = messageListener;
+		} finally {
+			lock.unlock();
+		}
+		
+		if(listener != null) {
+			listener.run();
+		}
+	}
+	
+	/**
+	 * Stops the writer. Any messages still queued are discarded.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			
+			control.clear();
+			bulk.clear();
+			queuedBytes = 0;
+			messageQueued.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Blocks until there is a message to send.
+	 * @return false if the queue has been closed (or the thread interrupted)
+	 */
+	public boolean waitForMessages() {
+		lock.lock();
+		try {
+			while(!closed && control.isEmpty() && bulk.isEmpty()) {
+				try {
+					messageQueued.await();
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves up to max queued control messages into messages.
+	 */
+	public void drainControl(List<OutgoingMessage> messages, int max) {
+		lock.lock();
+		try {
+			for(int i=0; i<max && !control.isEmpty(); i++) {
+				OutgoingMessage message = control.removeFirst();
+				
+				queuedBytes -= message.remainingLength();
+				messages.add(message);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the bulk message to send the next part of, or null if there are none.
+	 * The message stays queued until {@link #finishWrite(OutgoingMessage)} finds it finished.
+	 */
+	public OutgoingMessage nextBulk() {
+		lock.lock();
+		try {
+			if(bulk.isEmpty()) {
+				return null;
+			}
+			
+			sending = bulk.getFirst();
+			sendingLength = sending.remainingLength();
+			return sending;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Called after each write, once part of message (from {@link #nextBulk()}) has been written.
+	 * Removes message from the queue if it has been completely sent, then calls the space listener if within budget.
+	 * @param message - The bulk message written, or null if only control messages were written
+	 */
+	public void finishWrite(OutgoingMessage message) {
+		Runnable listener;
+		
+		lock.lock();
+		try {
+			if(message != null) {
+				finishSending(message);
+			}
+			
+			listener = (!closed && queuedBytes < budget) ? spaceListener : null;
+		} finally {
+			lock.unlock();
+		}
+		
+		if(listener != null) {
+			listener.run();
+		}
+	}
+	
+	private void finishSending(OutgoingMessage message) {
+		int remaining = message.isFinished() ? 0 : message.remainingLength();
+		queuedBytes -= sendingLength - remaining;
+		sendingLength = remaining;
+		
+		if(message.isFinished()) {
+			bulk.remove(message);
+			sending = null;
+		}
+	}
+	
+	/**
+	 * Removes a queued upload of length bytes at offset within (fileid, chunkid), unless part of it has already been sent.
+	 * @return true if the upload was removed
+	 */
+	public boolean cancelUpload(int fileid, int chunkid, int offset, int length) {
+		lock.lock();
+		try {
+			Iterator<OutgoingMessage> iter = bulk.iterator();
+			while(iter.hasNext()) {
+				OutgoingMessage message = iter.next();
+				
+				if(message == sending) {
+					continue;
+				}
+				
+				if(message.isUpload(fileid, chunkid, offset, length)) {
+					iter.remove();
+					queuedBytes -= message.remainingLength();
+					return true;
+				}
+			}
+			
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes every queued upload which has not started being sent yet.
+	 * @return the number of uploads removed
+	 */
+	public int cancelUploads() {
+		lock.lock();
+		try {
+			int removed = 0;
+			
+			Iterator<OutgoingMessage> iter = bulk.iterator();
+			while(iter.hasNext()) {
+				OutgoingMessage message = iter.next();
+				
+				if(message == sending) {
+					continue;
+				}
+				
+				iter.remove();
+				queuedBytes -= message.remainingLength();
+				removed++;
+			}
+			
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void addQueuedBytes(int length) {
+		queuedBytes += length;
+		
+		if(queuedBytes > peakQueuedBytes) {
+			peakQueuedBytes = queuedBytes;
+		}
+	}
+}
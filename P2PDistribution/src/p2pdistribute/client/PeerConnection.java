@@ -3,164 +3,391 @@ package p2pdistribute.client;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.ChunkReceiver;
 import p2pdistribute.client.filemanager.ChunkStatusChangeHandler;
 import p2pdistribute.client.filemanager.FileManager;
+import p2pdistribute.client.filemanager.PeerChunks;
 import p2pdistribute.client.filemanager.Status;
 import p2pdistribute.client.message.AdvertiseJSONMessage;
+import p2pdistribute.client.message.BinaryCommand;
+import p2pdistribute.client.message.BinaryControlMessage;
+import p2pdistribute.client.message.BitfieldAdvertiseMessage;
+import p2pdistribute.client.message.BlockRequestMessage;
+import p2pdistribute.client.message.ChunkRequestMessage;
 import p2pdistribute.client.message.ControlMessage;
 import p2pdistribute.client.message.DataMessage;
+import p2pdistribute.client.message.HaveMessage;
 import p2pdistribute.client.message.Message;
 import p2pdistribute.client.message.MessageType;
 import p2pdistribute.client.message.P2PMessageParser;
+import p2pdistribute.client.message.RangeRequestMessage;
 import p2pdistribute.client.message.RequestChunkJSONMessage;
 import p2pdistribute.common.Peer;
-import p2pdistribute.common.p2pmeta.ParserException;
 
 /**
  * Handles all communication between peers.
  * 
  * 	- Sends and receives advertise_chunks messages
- * 		- Opposing peer's fileStatus is stored in {@link #peerStatus}
+ * 		- Opposing peer's chunks are stored in {@link #peerChunks}
  *  - Sends and receives request_chunk messages
  *  	- Sending data if we receive the message, and passing the data to the {@link #localFiles} if we receive the data.
+ *  	- Up to {@link #REQUEST_WINDOW} requests are kept outstanding at once, tracked in {@link #requests}.
+ *  	- The oldest request must arrive before a deadline worked out from the peer's latency and throughput
+ *  		(see {@link TransferEstimator}). Otherwise it is released for other peers, and the window is demoted.
+ *  	- In the endgame, chunks already requested from other peers are requested from this peer too
+ *  		(see {@link p2pdistribute.client.filemanager.AcquisitionStatus#getEndgameChunks}). The copy which starts
+ *  		arriving first is kept and any other is discarded, even if it would have finished sooner, so the endgame
+ *  		only helps with chunks a slow peer has not started sending. Chunks already arriving are not requested again.
+ *  		Requests still outstanding once a chunk has arrived are cancelled.
+ *  	- Chunks larger than {@link FileManager#BLOCK_SIZE} are requested in blocks from version 2 peers. Blocks of one
+ *  		chunk are spread across peers, and the chunk is verified once every block has been written.
+ *  	- Seeds (version 3) are asked for up to {@link #RANGE_CHUNKS} consecutive chunks in one request, which they send
+ *  		back-to-back. Chunks of the range which arrive from other peers first are cancelled individually.
+ *  - Version 4 peers may be choked by the {@link ChokeManager}, which decides which peers we upload to.
+ *  	- Requests from a peer we are choking are not served. A peer which chokes us releases every request we made
+ *  		to it, and we request nothing more from it until it unchokes us.
+ *  - Control messages are queued ahead of chunk uploads, which are sent in frames of {@link #UPLOAD_FRAME_SIZE}
+ *  	- Once {@link #MAX_QUEUED_BYTES} are waiting to be sent, further request_chunk messages are put aside 
+ *  		(in {@link #deferredUploads}) until the remote peer has read enough of what is already queued.
+ * 
+ * Reading and writing the socket is done by a {@link PeerTransport}, provided by the {@link NetworkEngine}.
+ * 		The transport calls {@link #onOpen()}, then {@link #onMessage(Message)} for each message received 
+ * 		and finally {@link #onClose()}.
  *
  */
-public class PeerConnection implements Runnable, ChunkStatusChangeHandler {
+public class PeerConnection implements ChunkStatusChangeHandler {
 	
 	// Low-ish timeout used to quickly disconnect when a problem occurs. This prevents blocking progress.
 	public static final int PEER_SOCKET_TIMEOUT = 5000;
 	
+	// Number of request_chunk messages which may be outstanding to a single peer at once.
+	// Larger values keep high bandwidth-delay links busy, at the cost of reserving more chunks per peer.
+	public static int REQUEST_WINDOW = 4; // TODO Future Task: Settings file
+	
+	// Upload mode: when true, chunk data is sent straight from disk to the socket with FileChannel.transferTo
+	// instead of being read into a byte array and copied into a Data message.
+	public static boolean ZERO_COPY_UPLOAD = true; // TODO Future Task: Settings file
+	
+	// Chunks completed within this many milliseconds of each other are announced to peers in a single have message.
+	public static int HAVE_COALESCE_MS = 100; // TODO Future Task: Settings file
+	
+	// Uploads to version 1 peers are split into Data frames of at most this many bytes. Queued control messages
+	// (e.g. our requests) are sent between frames, so never wait behind more than this much chunk data.
+	public static int UPLOAD_FRAME_SIZE = 64 * 1024; // TODO Future Task: Settings file
+	
+	// Outgoing bytes which may be queued for a single peer before we stop handling its chunk requests.
+	// Bounds the memory (and disk reads) a peer which requests faster than it reads can cause us to use.
+	public static long MAX_QUEUED_BYTES = 1024 * 1024; // TODO Future Task: Settings file
+	
+	// Most chunk, block and range requests a single peer may have waiting for the outgoing queue (see deferredUploads).
+	// Well above what REQUEST_WINDOW lets a peer ask for at once. A peer which requests more is disconnected.
+	public static int MAX_DEFERRED_UPLOADS = 256; // TODO Future Task: Settings file
+	
+	// Requests are given REQUEST_TIMEOUT_SLACK times as long as the peer is expected to take to send the chunk,
+	// but at least MIN_REQUEST_TIMEOUT_MS. Until the peer's speed is known, MAX_REQUEST_TIMEOUT_MS is allowed.
+	public static double REQUEST_TIMEOUT_SLACK = 4; // TODO Future Task: Settings file
+	public static int MIN_REQUEST_TIMEOUT_MS = 500; // TODO Future Task: Settings file
+	public static int MAX_REQUEST_TIMEOUT_MS = 4000; // TODO Future Task: Settings file
+	
+	// Most consecutive chunks requested from a seed in one range request. Larger ranges mean fewer requests,
+	// at the cost of reserving more chunks for a single peer. Larger range requests from other peers are refused.
+	public static int RANGE_CHUNKS = 16; // TODO Future Task: Settings file
+	
+	// How often each connection checks whether its oldest request is overdue.
+	public static int DEADLINE_CHECK_MS = 100; // TODO Future Task: Settings file
+	
+	// Shared by every connection to send coalesced have messages, and to check request deadlines.
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "peer-timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	public final Peer peer;
-	private AcquisitionStatus peerStatus;
+	private PeerChunks peerChunks;
 	
 	private FileManager localFiles;
 	
+	// Streams received chunk data to disk in small slices
+	private ChunkReceiver receiver;
+	// Data message whose chunk data is being received, or null
+	private DataMessage receiving;
+	
 	Socket sock;
-	Thread readThread;
+	private PeerTransport transport;
+	
+	OutgoingQueue queue;
 	
-	Thread writeThread;
-	BlockingQueue<byte[]> queue;
+	// Messages and bytes sent per socket write
+	public final FlushStatistics writeStats = new FlushStatistics();
 
 	private boolean shouldStop;
 	
 	/**
-	 * requestedChunk, currentFileID, currentChunkID used to ensure we only request 
-	 * one chunk at a time from the remote peer.
-	 * 
-	 * requestedChunk should only be accessed using requestChunkLock and requestChunkUnlock.
-	 * TODO Future Task: Encapsulating this functionality in a different class would reduce the scope for errors.
+	 * Chunks we have requested from the remote peer and not yet received.
+	 * Every chunk in here is INPROGRESS in {@link #localFiles} and reserved for this peer,
+	 * 		unless it is an endgame chunk reserved for another peer (see {@link RequestWindow#isEndgame}),
+	 * 		which this connection must never release.
 	 */
-	private boolean requestedChunk;
-	private int currentFileID;
-	private int currentChunkID;
+	private RequestWindow requests;
+	
+	// How quickly the remote peer sends us chunks, to set request deadlines
+	private TransferEstimator estimator;
+	// System.nanoTime() at which the first data of the chunk being received arrived
+	private long chunkStartNanos;
+	// [fileid, chunkid, offset] of the request whose data is arriving, or null. Changed with requests locked.
+	// Its deadline no longer applies: a peer which stops part way through is left to the socket timeout.
+	private int[] receivingRequest;
+	private ScheduledFuture<?> deadlineCheck;
+	
+	/**
+	 * Protocol version used to encode control messages to the remote peer.
+	 * -1 until the first message from the remote peer has been received.
+	 */
+	private volatile int remoteVersion;
+	
+	// True if we opened this connection. The peer which opened the connection advertises its chunks first.
+	private final boolean initiator;
+	private volatile boolean advertised;
+	// True once our first advertise is queued. Nothing else which depends on the remote version may be queued ahead
+	// 		of it, as the initiator learns which version we understand from the first message it receives.
+	private volatile boolean advertiseQueued;
+	
+	// Chunks completed since we last told the remote peer about our chunks. [fileid, chunkid]
+	// Sent as one have message after HAVE_COALESCE_MS.
+	private List<int[]> pendingHaves;
+	
+	// Chunks (or blocks) requested by the remote peer while the outgoing queue was over budget. 
+	// Each chunk and block is held at most once, and no more than MAX_DEFERRED_UPLOADS requests at all.
+	private DeferredUploads deferredUploads;
+	
+	// True while uploadDeferred is waiting to be run by the transport, see scheduleUploads
+	private AtomicBoolean uploadsScheduled;
+	
+	// True while we refuse the remote peer's requests. Changed with deferredUploads locked.
+	private volatile boolean choking;
+	// True while the remote peer refuses our requests. Changed with requests locked.
+	private volatile boolean choked;
+	
+	// Bytes of chunk data received from the remote peer, to measure how fast it uploads to us
+	private AtomicLong receivedBytes;
+	// Chunks received from the remote peer which did not match their hash
+	private volatile int failedChunks;
+	
+	// Set once onClose has tidied up, which may be before the transport's threads have finished.
+	private volatile boolean closed;
+	// Called once the connection has closed, see setCloseListener
+	private volatile Runnable closeListener;
 
-	public PeerConnection(Socket client, FileManager fileManager) throws IOException {
+	public PeerConnection(Socket client, FileManager fileManager, NetworkEngine engine) throws IOException {
 		sock = client;
+		initiator = false;
 		
 		this.peer = new Peer(client.getInetAddress(), client.getLocalPort());
 		
-		initialise(fileManager);
+		initialise(fileManager, engine);
 	}
 
-	public PeerConnection(Peer peer, FileManager fileManager) throws IOException {
-		sock = new Socket();
+	public PeerConnection(Peer peer, FileManager fileManager, NetworkEngine engine) throws IOException {
+		// Open via a SocketChannel so uploads can be sent using FileChannel.transferTo
+		sock = SocketChannel.open().socket();
 		this.peer = peer;
+		initiator = true;
 		
 		sock.connect(new InetSocketAddress(peer.address, peer.port), PEER_SOCKET_TIMEOUT);
 		
-		initialise(fileManager);
+		initialise(fileManager, engine);
 	}
 	
-	private void initialise(FileManager fileManager) throws IOException {
+	private void initialise(FileManager fileManager, NetworkEngine engine) throws IOException {
 		
 		localFiles = fileManager;
 
-		requestedChunk = false;
-		currentFileID = currentChunkID = -1;
+		requests = new RequestWindow(REQUEST_WINDOW);
+		estimator = new TransferEstimator();
+		receivingRequest = null;
+		remoteVersion = -1;
+		advertised = false;
+		advertiseQueued = false;
+		pendingHaves = new ArrayList<>();
+		deferredUploads = new DeferredUploads(MAX_DEFERRED_UPLOADS);
+		choking = false;
+		choked = false;
+		receivedBytes = new AtomicLong();
+		failedChunks = 0;
+		closed = false;
+		receiver = new ChunkReceiver(localFiles);
 		
 		// Register a file status change handler so we can advertise new chunks to this remote peer.
 		localFiles.status.registerHandler(this);
 		
-		peerStatus = new AcquisitionStatus(localFiles.status);
+		peerChunks = new PeerChunks(localFiles.status.getChunkCounts());
 		
 		shouldStop = false;
 		
-		sock.setSoTimeout(PEER_SOCKET_TIMEOUT);
-
-		queue = new LinkedBlockingQueue<>();
-		writeThread = new Thread(new PeerConnectionWriteTask(this.queue, sock.getOutputStream()));
-		writeThread.start();
+		queue = new OutgoingQueue(MAX_QUEUED_BYTES);
+		uploadsScheduled = new AtomicBoolean(false);
+		queue.setSpaceListener(new Runnable() {
+			@Override
+			public void run() {
+				scheduleUploads();
+			}
+		});
+		
+		deadlineCheck = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkDeadline();
+			}
+		}, DEADLINE_CHECK_MS, DEADLINE_CHECK_MS, TimeUnit.MILLISECONDS);
 		
-		// Then create new thread for reading from socket.
-		readThread = new Thread(this);
-		readThread.start();
+		// Start reading and writing the socket
+		try {
+			transport = engine.open(this, sock);
+			transport.start();
+		} catch(IOException e) {
+			deadlineCheck.cancel(false);
+			throw e;
+		}
 	}
 
 	/**
-	 * The main loop for Peer communication
+	 * Called by the transport once it is ready to send and receive messages.
 	 * 
-	 * Behaviour:
-	 * 	1. On connection, peers will exchange advertise_chunks messages.
-	 *  
-	 *  Then, until this thread is stopped or an error occures:
-	 *  	2. processSocketMessage (read and dispatch 1 message from the socket).
+	 * On connection, peers will exchange advertise_chunks messages.
+	 * 		The peer which opened the connection sends a JSON advertise_chunks, including the highest protocol 
+	 * 		version it supports. The other peer waits for this, then advertises in the best version both support.
 	 */
-	@Override
-	public void run() {
-		// Advertise chunks!
-		advertiseChunks();
-		
-		while(!stopRequested()) {
-			if(!processSocketMessage()) {
-				// Error
-				break;
-			}
+	void onOpen() {
+		if(initiator) {
+			// Advertise chunks! (and protocol version)
+			// If we accepted the connection, we advertise once we know which version the remote peer understands.
+			advertiseChunks();
 		}
+	}
+	
+	/**
+	 * Returns false once the connection should be closed.
+	 */
+	boolean isRunning() {
+		return !stopRequested() && !transferComplete();
+	}
+	
+	/**
+	 * Called by the transport once the socket has been closed.
+	 */
+	void onClose() {
+		deadlineCheck.cancel(false);
+		receiver.abort();
 		
-		stop();
+		// Make sure that any chunks we had been assigned to download from this peer
+		// get set back to INCOMPLETE (rather than INPROGRESS).
+		tidyIncompleteChunks();
 		
-		try {
-			sock.close();
-		} catch (IOException e) {
-			System.err.println("IOException on peer socket close");
-		}
+		// This peer's chunks are no longer available to us
+		localFiles.status.removeAvailability(peerChunks);
 		
-		// Make sure that if we had been assigned a chunk to download from this peer
-		// It gets set back to INCOMPLETE (rather than INPROGRESS).
-		tidyIncompleteChunk();
+		closed = true;
 		
-		try {
-			writeThread.join();
-		} catch (InterruptedException e) {
-			// Unable to join writeThread...
+		Runnable listener = closeListener;
+		if(listener != null) {
+			listener.run();
 		}
 	}
 	
 	/**
-	 * Use to stop this Peer thread
+	 * Returns false once the connection has been closed.
+	 */
+	public boolean isAlive() {
+		return !closed && transport.isAlive();
+	}
+	
+	/**
+	 * Sets a task to run (on the transport's thread) once the connection has closed and isAlive() returns false.
+	 * @note May not be run if the connection closed before it was set, so check isAlive() after setting it.
+	 */
+	public void setCloseListener(Runnable listener) {
+		closeListener = listener;
+	}
+	
+	/**
+	 * Use to stop this Peer connection
 	 */
 	public synchronized void stop() {
 		this.shouldStop = true;
 		
-		try {
-			this.sock.shutdownInput();
-		} catch (IOException e) {
-			// Means there is data in the buffer but the connection has terminated.
-			// Nothing to be done here really.
-		}
+		queue.close();
 		
-		writeThread.interrupt();
+		if(transport != null) {
+			transport.stop();
+		}
 	}
 
+	/**
+	 * Queues a have message for the newly completed chunk.
+	 * Chunks completed within {@link #HAVE_COALESCE_MS} are sent together.
+	 */
 	@Override
 	public void onChunkComplete(int fileid, int chunkid) {
-		// TODO Future Task: only send new fileid / chunk id, rather than re-send entire advertise chunks message (save bandwidth)
-		advertiseChunks();
+		List<int[]> outstanding = requests.removeChunk(fileid, chunkid);
+		if(!outstanding.isEmpty()) {
+			// Endgame: also requested from this peer, but received from another. Or the rest of its blocks arrived.
+			for(int[] request : outstanding) {
+				cancelRequest(request);
+			}
+			
+			// Use the space in the window, as the remote peer may have nothing else coming to prompt us
+			try {
+				requestChunks();
+			} catch (IOException e) {
+				System.err.println("Unable to request chunks: " + e.getMessage());
+			}
+		}
+		
+		if(!advertised) {
+			// Our first advertise hasn't been sent yet, and will include this chunk.
+			return;
+		}
+		
+		if(transferComplete()) {
+			// We have just completed, and the remote peer already was. Nothing more will be sent either way,
+			// 		so close now rather than waiting for the socket to time out.
+			stop();
+			return;
+		}
+		
+		// Sent even if the remote peer already has this chunk, so it can tell once we are complete and close the connection.
+		synchronized(pendingHaves) {
+			pendingHaves.add(new int[] { fileid, chunkid });
+			
+			if(pendingHaves.size() > 1) {
+				// Flush already scheduled
+				return;
+			}
+		}
+		
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendHaves();
+			}
+		}, HAVE_COALESCE_MS, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
@@ -169,86 +396,356 @@ public class PeerConnection implements Runnable, ChunkStatusChangeHandler {
 	 * @return false if the remote peer has not completed downloading
 	 */
 	public boolean peerComplete() {
-		return peerStatus.complete();
+		return peerChunks.complete();
+	}
+	
+	/**
+	 * Returns the number of bytes queued to be sent to the remote peer.
+	 */
+	public long getQueuedBytes() {
+		return queue.getQueuedBytes();
+	}
+	
+	/**
+	 * Returns the most bytes which have been queued to be sent to the remote peer at once.
+	 */
+	public long getPeakQueuedBytes() {
+		return queue.getPeakQueuedBytes();
+	}
+	
+	/**
+	 * Returns true if we opened this connection, so {@link #peer} is the address the remote peer listens on.
+	 */
+	public boolean isInitiator() {
+		return initiator;
+	}
+	
+	/**
+	 * Returns the number of bytes of chunk data received from the remote peer.
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes.get();
+	}
+	
+	/**
+	 * Returns the number of chunks received from the remote peer which did not match their hash.
+	 */
+	public int getFailedChunks() {
+		return failedChunks;
+	}
+	
+	/**
+	 * Returns the remote peer's estimated request latency in nanoseconds, or -1 if not known yet.
+	 */
+	public long getLatencyNanos() {
+		return estimator.getLatencyNanos();
 	}
 	
-	private boolean processSocketMessage() {
-		if(!writeThread.isAlive()) {
-			// If write thread has died, there's no point continuing.
-			return false;
+	/**
+	 * Changes the most requests which may be outstanding to the remote peer at once, so faster peers can be given
+	 * 		more chunks to send. Takes effect as requests complete.
+	 */
+	public void setRequestCapacity(int capacity) {
+		requests.setCapacity(capacity);
+	}
+	
+	/**
+	 * Returns the number of bytes sent to the remote peer.
+	 */
+	public long getSentBytes() {
+		return writeStats.getBytes();
+	}
+	
+	/**
+	 * Returns true if the remote peer understands choke messages. Other peers are never choked.
+	 * 		False until our first advertise has been queued, so a choke message is never sent ahead of it.
+	 */
+	public boolean canChoke() {
+		return advertiseQueued && remoteVersion >= P2PMessageParser.CHOKE_VERSION;
+	}
+	
+	/**
+	 * Returns true while we are refusing the remote peer's requests.
+	 */
+	public boolean isChoking() {
+		return choking;
+	}
+	
+	/**
+	 * Stops serving the remote peer's requests. Uploads which have not started yet are dropped, as the remote peer
+	 * 		releases its requests when it is choked, and makes them again (to us or others) once unchoked.
+	 * @note Only for peers which {@link #canChoke()}
+	 */
+	void choke() {
+		synchronized(deferredUploads) {
+			if(choking) {
+				return;
+			}
+			choking = true;
+			deferredUploads.clear();
 		}
 		
-		if(transferComplete()) {
-			return false;
+		queue.cancelUploads();
+		queue.addControl(new SerialisedMessage(P2PMessageParser.serialiseCommand(BinaryCommand.CHOKE)));
+	}
+	
+	/**
+	 * Starts serving the remote peer's requests again.
+	 */
+	void unchoke() {
+		synchronized(deferredUploads) {
+			if(!choking) {
+				return;
+			}
+			choking = false;
 		}
 		
-		Message msg;
+		queue.addControl(new SerialisedMessage(P2PMessageParser.serialiseCommand(BinaryCommand.UNCHOKE)));
+	}
+	
+	private boolean transferComplete() {
+		// If we are complete and they are complete, no reason to stay connected.
+		if(peerChunks.complete() && localFiles.complete()) {
+			return true;
+		}
+		
+		return false;
+	}
+
+	/**
+	 * Records when a chunk's (or block's) first data arrived, and if it was the oldest request, 
+	 * 		how long the peer took to start it.
+	 */
+	private void startedReceiving(int fileid, int chunkid, int offset) {
+		chunkStartNanos = System.nanoTime();
+		
+		synchronized(requests) {
+			receivingRequest = new int[] { fileid, chunkid, offset };
+			
+			int[] head = requests.getHead();
+			
+			if(head != null && head[0] == fileid && head[1] == chunkid && head[2] == offset) {
+				estimator.addLatency(chunkStartNanos - requests.getHeadStart());
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if the data of request [fileid, chunkid, offset, length] has started arriving.
+	 * @note Call with requests locked
+	 */
+	private boolean isReceiving(int[] request) {
+		return receivingRequest != null && receivingRequest[0] == request[0] && receivingRequest[1] == request[1] 
+				&& receivingRequest[2] == request[2];
+	}
+	
+	/**
+	 * Releases the oldest request if it has not started arriving by its deadline, so it can be requested from another peer.
+	 * The connection is kept open, but fewer requests are sent to this peer at once until it catches up.
+	 * Once its data has started arriving it is left to finish, as the chunk cannot be written by another connection
+	 * 		until then, so requesting it elsewhere would only have it discarded.
+	 * Called every {@link #DEADLINE_CHECK_MS} on the timer thread.
+	 */
+	private void checkDeadline() {
+		int[] head;
+		long waited;
+		
+		synchronized(requests) {
+			head = requests.getHead();
+			if(head == null || isReceiving(head)) {
+				return;
+			}
+			waited = System.nanoTime() - requests.getHeadStart();
+		}
+		
+		long timeout;
 		try {
-			msg = P2PMessageParser.readMessage(sock.getInputStream());
+			timeout = getRequestTimeout(getRequestLength(head));
 		} catch (IOException e) {
-			return false;
-		} catch (ParserException e) {
-			System.out.println("Peer sent malformed message. Disconnecting");
-			return false;
+			return;
 		}
 		
-		try {
-			handleMessage(msg);
-		} catch(IOException e) {
-			System.out.println("Error occured handling message: " + e.getMessage());
-			return false;
+		if(waited < timeout || !dropRequest(head)) {
+			return;
 		}
 		
-		return true;
+		String block = (head[2] == RequestWindow.WHOLE_CHUNK) ? "" : " (block at " + head[2] + ")";
+		System.out.println("Request for chunk " + head[0] + "/" + head[1] + block + " timed out after " 
+				+ TimeUnit.NANOSECONDS.toMillis(waited) + "ms. Requesting from another peer.");
+		
+		requests.demote();
+		
+		int count = 1;
+		if(head[2] == RequestWindow.WHOLE_CHUNK && remoteVersion >= P2PMessageParser.RANGE_VERSION) {
+			// The chunks requested after it (e.g. the rest of its range) would be as late, so are released now too
+			while(dropRequest(new int[] { head[0], head[1] + count, RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK })) {
+				count++;
+			}
+		}
+		
+		if(count > 1) {
+			queue.addControl(new SerialisedMessage(
+					P2PMessageParser.serialiseRangeRequest(BinaryCommand.CANCEL_RANGE, head[0], head[1], count)));
+		} else {
+			cancelRequest(head);
+		}
 	}
-
-	private boolean transferComplete() {
-		// If we are complete and they are complete, no reason to stay connected.
-		if(peerStatus.complete() && localFiles.complete()) {
-			return true;
+	
+	/**
+	 * Returns the nanoseconds allowed for a chunk of bytes to arrive, once it is the oldest request.
+	 */
+	private long getRequestTimeout(int bytes) {
+		long estimate = estimator.estimateNanos(bytes);
+		if(estimate < 0) {
+			return TimeUnit.MILLISECONDS.toNanos(MAX_REQUEST_TIMEOUT_MS);
 		}
 		
-		return false;
+		long timeout = (long)(estimate * REQUEST_TIMEOUT_SLACK);
+		
+		timeout = Math.max(timeout, TimeUnit.MILLISECONDS.toNanos(MIN_REQUEST_TIMEOUT_MS));
+		return Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(MAX_REQUEST_TIMEOUT_MS));
 	}
-
-	private void tidyIncompleteChunk() {
-		if(currentFileID != -1) {
-			localFiles.status.setStatus(currentFileID, currentChunkID, Status.INCOMPLETE);
+	
+	private void tidyIncompleteChunks() {
+		synchronized(requests) {
+			int[] request;
+			while((request = requests.getHead()) != null) {
+				// Unless another peer has since sent us the chunk
+				dropRequest(request);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes requested by request [fileid, chunkid, offset, length].
+	 */
+	private int getRequestLength(int[] request) throws IOException {
+		if(request[2] == RequestWindow.WHOLE_CHUNK) {
+			return localFiles.getChunkSize(request[0], request[1]);
+		}
+		return request[3];
+	}
+	
+	/**
+	 * Removes request [fileid, chunkid, offset, length] from the request window.
+	 * @return true if it was outstanding
+	 */
+	private boolean removeRequest(int[] request) {
+		if(request[2] == RequestWindow.WHOLE_CHUNK) {
+			return requests.remove(request[0], request[1]);
+		}
+		return requests.removeBlock(request[0], request[1], request[2]);
+	}
+	
+	/**
+	 * Removes request [fileid, chunkid, offset, length] from the request window, and lets it be made to another peer.
+	 * 		An endgame request is only removed, as its chunk is still reserved for the peer it was first requested from.
+	 * @return true if it was outstanding
+	 */
+	private boolean dropRequest(int[] request) {
+		synchronized(requests) {
+			boolean endgame = request[2] == RequestWindow.WHOLE_CHUNK && requests.isEndgame(request[0], request[1]);
+			
+			if(!removeRequest(request)) {
+				return false;
+			}
+			if(endgame) {
+				return true;
+			}
 		}
+		
+		if(request[2] == RequestWindow.WHOLE_CHUNK) {
+			localFiles.status.releaseChunk(request[0], request[1]);
+		} else {
+			localFiles.releaseBlock(request[0], request[1], request[2]);
+		}
+		return true;
 	}
 
+	/**
+	 * Sends an advertise message for all our complete chunks. 
+	 * Encoded as a bitfield if the remote peer supports it, otherwise as JSON (which every version understands).
+	 */
 	private void advertiseChunks() {
-		// Get all the chunks we have from localFiles
-		int[][] completeChunks = localFiles.status.getCompleteFileChunkIDs();
+		byte[] messageBytes;
 		
-		// Make a AdvertiseJSONMessage using this data
-		AdvertiseJSONMessage payload = new AdvertiseJSONMessage(completeChunks, localFiles.metadata.metaHash);
+		if(!initiator && remoteVersion < 0) {
+			// Haven't heard from the remote peer yet. All our chunks will be advertised once we have.
+			return;
+		}
+		advertised = true;
 		
-		byte[] messageBytes = P2PMessageParser.serialiseJSONMessage(payload);
+		if(remoteVersion >= P2PMessageParser.BINARY_VERSION) {
+			messageBytes = P2PMessageParser.serialiseBitfieldAdvertise(localFiles.status.getChunkCounts(), 
+					localFiles.status.getCompleteBitfields());
+		} else {
+			// Get all the chunks we have from localFiles
+			int[][] completeChunks = localFiles.status.getCompleteFileChunkIDs();
+			
+			// Make a AdvertiseJSONMessage using this data. Version 0 peers ignore the version field.
+			AdvertiseJSONMessage payload = new AdvertiseJSONMessage(completeChunks, localFiles.metadata.metaHash, 
+					(int)P2PMessageParser.HIGHEST_VERSION);
+			
+			messageBytes = P2PMessageParser.serialiseJSONMessage(payload);
+		}
 		
 		// Send
-		queue.add(messageBytes);
-	}
-
-	private synchronized boolean stopRequested() {
-		return shouldStop;
+		queue.addControl(new SerialisedMessage(messageBytes));
+		advertiseQueued = true;
 	}
 
-	private synchronized boolean requestChunkLock() {
-		if(requestedChunk) {
-			return false;
+	/**
+	 * Sends every chunk in {@link #pendingHaves} to the remote peer.
+	 * Version 0 peers treat advertise_chunks as additive, so they are sent an advertise_chunks of just these chunks.
+	 */
+	private void sendHaves() {
+		int[][] chunks;
+		
+		synchronized(pendingHaves) {
+			chunks = pendingHaves.toArray(new int[pendingHaves.size()][]);
+			pendingHaves.clear();
 		}
 		
-		requestedChunk = true;
-		return true;
+		if(chunks.length == 0 || stopRequested()) {
+			return;
+		}
+		
+		byte[] messageBytes;
+		if(remoteVersion >= P2PMessageParser.BINARY_VERSION) {
+			messageBytes = P2PMessageParser.serialiseHave(chunks);
+		} else {
+			AdvertiseJSONMessage payload = new AdvertiseJSONMessage(chunks, localFiles.metadata.metaHash, 
+					(int)P2PMessageParser.HIGHEST_VERSION);
+			
+			messageBytes = P2PMessageParser.serialiseJSONMessage(payload);
+		}
+		
+		queue.addControl(new SerialisedMessage(messageBytes));
 	}
 
-	private synchronized void requestChunkUnlock() {
-		requestedChunk = false;
+	private synchronized boolean stopRequested() {
+		return shouldStop;
 	}
 
-	private void handleMessage(Message msg) throws IOException {
-		if(msg.type == MessageType.CONTROL) {
+	/**
+	 * Handles a message received from the remote peer.
+	 * If msg is a Data message whose data is still on the socket (data is null), the transport must then pass
+	 * 		all {@link DataMessage#dataLength} bytes to {@link #onData(ByteBuffer)}, then call {@link #onDataEnd()}.
+	 * @throws IOException thrown if the message could not be handled. The connection should be closed.
+	 */
+	void onMessage(Message msg) throws IOException {
+		if(remoteVersion < 0) {
+			setRemoteVersion(msg);
+		}
+		
+		if(!advertised) {
+			advertiseChunks();
+		}
+		
+		if(msg instanceof BinaryControlMessage) {
+			handleBinaryControlMessage((BinaryControlMessage)msg);
+			
+		} else if(msg.type == MessageType.CONTROL) {
 			handleControlMessage((ControlMessage)msg);
 			
 		} else if(msg.type == MessageType.DATA) {
@@ -259,17 +756,108 @@ public class PeerConnection implements Runnable, ChunkStatusChangeHandler {
 	}
 	
 	private void handleDataMessage(DataMessage msg) throws IOException {
-		boolean result = localFiles.setChunkData(msg.fileid, msg.chunkid, msg.data);
+		receiving = msg;
+		boolean starting = true;
+		
+		if(msg.version >= P2PMessageParser.BINARY_VERSION) {
+			starting = !receiver.continues(msg.fileid, msg.chunkid, msg.offset);
+			
+			if(starting) {
+				// Blocks are recognised by their offset, so a block which arrives after its request timed out
+				// is not mistaken for out of order data. Block 0 only if requested, as it starts where a whole chunk would.
+				int blockLength = localFiles.getBlockLength(msg.fileid, msg.chunkid, msg.offset);
+				
+				if(blockLength > 0 && (msg.offset != 0 || requests.containsBlock(msg.fileid, msg.chunkid, 0))) {
+					receiver.beginBlock(msg.fileid, msg.chunkid, msg.offset, blockLength);
+				}
+			}
+			
+			// One frame of the chunk (or block)
+			receiver.beginFrame(msg.fileid, msg.chunkid, msg.offset, msg.dataLength);
+		} else {
+			// The whole chunk
+			receiver.abort();
+			receiver.begin(msg.fileid, msg.chunkid, msg.dataLength);
+		}
+		
+		if(starting) {
+			startedReceiving(msg.fileid, msg.chunkid, receiver.isBlock() ? msg.offset : RequestWindow.WHOLE_CHUNK);
+		}
+		
+		if(msg.data != null) {
+			onData(ByteBuffer.wrap(msg.data));
+			onDataEnd();
+		}
+	}
+	
+	/**
+	 * Passes the next slice of chunk data for the Data message being received to disk.
+	 */
+	void onData(ByteBuffer data) throws IOException {
+		receivedBytes.addAndGet(data.remaining());
+		receiver.update(data);
+	}
+	
+	/**
+	 * Called once all the chunk data of the Data message being received has been passed to {@link #onData(ByteBuffer)}
+	 */
+	void onDataEnd() throws IOException {
+		DataMessage msg = receiving;
+		receiving = null;
+		
+		int[] request = new int[] { msg.fileid, msg.chunkid, RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK };
+		if(receiver.isBlock()) {
+			request[2] = receiver.getBlockOffset();
+			request[3] = localFiles.getBlockLength(msg.fileid, msg.chunkid, request[2]);
+		}
 		
+		boolean requested = false;
+		boolean endgame = false;
+		if(receiver.remaining() == 0) {
+			// Last of the chunk. Removed before the chunk completes, so onChunkComplete does not cancel it.
+			synchronized(requests) {
+				endgame = !receiver.isBlock() && requests.isEndgame(msg.fileid, msg.chunkid);
+				requested = removeRequest(request);
+			}
+		}
 		
-		if(!result) {
+		Status status = receiver.endFrame();
+		if(status == Status.INPROGRESS) {
+			// Wait for the rest of the chunk
+			return;
+		}
+		
+		synchronized(requests) {
+			receivingRequest = null;
+		}
+		
+		if(requested && receiver.isBlock()) {
+			// Only once the block is written (or discarded), so the chunk stays reserved until then
+			localFiles.releaseBlock(request[0], request[1], request[2]);
+			
+		} else if(requested && !endgame && localFiles.status.getStatus(msg.fileid, msg.chunkid) != Status.COMPLETE) {
+			// Discarded (e.g. another connection was still writing it), or failed its hash check. It is still
+			// 		reserved for us, so release it to be requested again.
+			localFiles.status.releaseChunk(msg.fileid, msg.chunkid);
+		}
+		
+		if(status == Status.COMPLETE) {
+			estimator.addTransfer(getRequestLength(request), System.nanoTime() - chunkStartNanos);
+			
+			if(requested) {
+				// Arrived in time, so the peer may be trusted with more requests again
+				requests.promote();
+			}
+		}
+		
+		if(status == Status.COMPLETE || receiver.isDuplicate()) {
+			// Duplicates are expected in the endgame, and were discarded
+			requestChunks();
+		} else {
+			failedChunks++;
 			stop();
 			// Received invalid chunk data.. Lets disconnect and try again.
 			System.err.println("Chunk data did not match expected checksum: " + msg.fileid + "/" + msg.chunkid);
-		} else {
-			currentFileID = currentChunkID = -1;
-			requestChunkUnlock();
-			requestChunk();
 		}
 	}
 
@@ -279,17 +867,261 @@ public class PeerConnection implements Runnable, ChunkStatusChangeHandler {
 
 			updatePeerStatus(message.chunksComplete);
 			
-			requestChunk();
+			requestChunks();
 			
 		} else if(msg.payload.cmd.equals("request_chunk")) {
 			RequestChunkJSONMessage message = (RequestChunkJSONMessage) msg.payload;
 			
-			byte[] data = localFiles.getChunkData(message.fileid, message.chunkid);
+			uploadChunk(message.fileid, message.chunkid);
+		}
+		
+	}
+	
+	/**
+	 * Works out which protocol version to use with the remote peer from the first message it sent.
+	 * Advertise messages include the highest version the remote peer supports.
+	 */
+	private void setRemoteVersion(Message msg) {
+		int version = msg.version;
+		Integer advertised = null;
+		
+		if(msg instanceof ControlMessage && msg.type == MessageType.CONTROL 
+				&& ((ControlMessage)msg).payload instanceof AdvertiseJSONMessage) {
+			advertised = ((AdvertiseJSONMessage)((ControlMessage)msg).payload).protocolVersion;
+		} else if(msg instanceof BitfieldAdvertiseMessage) {
+			advertised = ((BitfieldAdvertiseMessage)msg).protocolVersion;
+		}
+		
+		if(advertised != null) {
+			version = advertised;
+		}
+		
+		remoteVersion = Math.min(version, P2PMessageParser.HIGHEST_VERSION);
+	}
+	
+	private void handleBinaryControlMessage(BinaryControlMessage msg) throws IOException {
+		switch(msg.cmd) {
+		case ADVERTISE:
+			BitfieldAdvertiseMessage advertise = (BitfieldAdvertiseMessage) msg;
+			
+			for(int i=0; i<advertise.bitfields.length; i++) {
+				setPeerBitfield(i, advertise.chunkCounts[i], advertise.bitfields[i]);
+			}
+			
+			requestChunks();
+			break;
+		case REQUEST:
+			ChunkRequestMessage request = (ChunkRequestMessage) msg;
+			
+			uploadChunk(request.fileid, request.chunkid);
+			break;
+		case CANCEL:
+			ChunkRequestMessage cancel = (ChunkRequestMessage) msg;
+			
+			cancelChunks(cancel.fileid, cancel.chunkid, 1);
+			break;
+		case REQUEST_BLOCK:
+			BlockRequestMessage blockRequest = (BlockRequestMessage) msg;
+			
+			uploadBlock(blockRequest.fileid, blockRequest.chunkid, blockRequest.offset, blockRequest.blockLength);
+			break;
+		case CANCEL_BLOCK:
+			BlockRequestMessage blockCancel = (BlockRequestMessage) msg;
+			
+			cancelUpload(blockCancel.fileid, blockCancel.chunkid, blockCancel.offset, blockCancel.blockLength);
+			break;
+		case REQUEST_RANGE:
+			RangeRequestMessage rangeRequest = (RangeRequestMessage) msg;
+			
+			uploadRange(rangeRequest.fileid, rangeRequest.chunkid, rangeRequest.count);
+			break;
+		case CANCEL_RANGE:
+			RangeRequestMessage rangeCancel = (RangeRequestMessage) msg;
+			
+			cancelChunks(rangeCancel.fileid, rangeCancel.chunkid, rangeCancel.count);
+			break;
+		case HAVE:
+			HaveMessage have = (HaveMessage) msg;
+			
+			for(int i=0; i<have.fileids.length; i++) {
+				setPeerChunkComplete(have.fileids[i], have.chunkids[i]);
+			}
+			
+			requestChunks();
+			break;
+		case CHOKE:
+			synchronized(requests) {
+				choked = true;
+				
+				// The remote peer will not send them, so they can be requested from other peers
+				tidyIncompleteChunks();
+			}
+			break;
+		case UNCHOKE:
+			choked = false;
+			
+			requestChunks();
+			break;
+		}
+	}
+	
+	/**
+	 * Queues an upload of (fileid, chunkid), or defers it if too much data is already queued for this peer.
+	 * @throws IOException thrown if fileid/chunkid are invalid.
+	 */
+	private void uploadChunk(int fileid, int chunkid) throws IOException {
+		// Check the chunk is valid now, rather than when a deferred upload is started
+		localFiles.getChunkSize(fileid, chunkid);
+		
+		synchronized(deferredUploads) {
+			if(choking) {
+				// Refused. The remote peer released its requests when it was choked.
+				return;
+			}
+			if(!deferredUploads.addChunk(fileid, chunkid)) {
+				throw new IOException("Peer has more than " + MAX_DEFERRED_UPLOADS + " requests waiting");
+			}
+		}
+		
+		uploadDeferred();
+	}
+	
+	/**
+	 * Queues uploads of count consecutive chunks of fileid, starting at chunkid. They are sent back-to-back,
+	 * 		so are read from the file sequentially. Chunks already waiting to be uploaded are not queued again.
+	 * @throws IOException thrown if any of the chunks are invalid, or the range is larger than {@link #RANGE_CHUNKS}.
+	 */
+	private void uploadRange(int fileid, int chunkid, int count) throws IOException {
+		if(count <= 0 || count > RANGE_CHUNKS) {
+			throw new IOException("Peer requested a range of " + count + " chunks");
+		}
+		// Check the first and last chunk exist
+		localFiles.getChunkSize(fileid, chunkid);
+		localFiles.getChunkSize(fileid, chunkid + count - 1);
+		
+		synchronized(deferredUploads) {
+			if(choking) {
+				return;
+			}
+			if(!deferredUploads.addRange(fileid, chunkid, count)) {
+				throw new IOException("Peer has more than " + MAX_DEFERRED_UPLOADS + " requests waiting");
+			}
+		}
+		
+		uploadDeferred();
+	}
+	
+	/**
+	 * Queues an upload of length bytes at offset within (fileid, chunkid), or defers it. See {@link #uploadChunk}
+	 * @throws IOException thrown if fileid/chunkid are invalid, or the block is not within the chunk.
+	 */
+	private void uploadBlock(int fileid, int chunkid, int offset, int length) throws IOException {
+		// Check the block is valid now, rather than when a deferred upload is started
+		int chunkSize = localFiles.getChunkSize(fileid, chunkid);
+		if(offset < 0 || length <= 0 || length > chunkSize - offset) {
+			throw new IOException("Peer requested a block outside of chunk " + fileid + "/" + chunkid);
+		}
+		
+		synchronized(deferredUploads) {
+			if(choking) {
+				return;
+			}
+			if(!deferredUploads.addBlock(fileid, chunkid, offset, length)) {
+				throw new IOException("Peer has more than " + MAX_DEFERRED_UPLOADS + " requests waiting");
+			}
+		}
+		
+		// Uploads are started in the order they were requested, once there is space in the queue
+		uploadDeferred();
+	}
+	
+	/**
+	 * Called on the write thread whenever the queue is within budget after a write. Deferred uploads are started by
+	 * 		the transport (see {@link PeerTransport#execute}), as without zero-copy uploads they are read from disk,
+	 * 		which the write thread may not have time for (e.g. a selector thread writing every peer's socket).
+	 */
+	private void scheduleUploads() {
+		if(deferredUploads.size() == 0 || !uploadsScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		
+		transport.execute(new Runnable() {
+			@Override
+			public void run() {
+				// Cleared first, so space which appears while this runs schedules another run
+				uploadsScheduled.set(false);
+				uploadDeferred();
+			}
+		});
+	}
+	
+	/**
+	 * Starts deferred uploads until the outgoing queue is over budget again.
+	 */
+	private void uploadDeferred() {
+		synchronized(deferredUploads) {
+			while(queue.hasSpace()) {
+				// A range stays at the front until its last chunk has been started
+				int[] chunk = deferredUploads.poll();
+				if(chunk == null) {
+					break;
+				}
+				
+				try {
+					startUpload(chunk[0], chunk[1], chunk[2], chunk[3]);
+				} catch(IOException e) {
+					System.err.println("Unable to upload chunk " + chunk[0] + "/" + chunk[1] + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	private void startUpload(int fileid, int chunkid, int offset, int length) throws IOException {
+		if(length != RequestWindow.WHOLE_CHUNK) {
+			// A block, which can only be sent as Data frames
+			queue.addBulk(new ChunkUploadMessage(localFiles, fileid, chunkid, offset, length, UPLOAD_FRAME_SIZE));
+			
+		} else if(ZERO_COPY_UPLOAD) {
+			// Version 0 peers only understand whole chunk Data messages
+			int frameSize = (remoteVersion >= P2PMessageParser.BINARY_VERSION) ? UPLOAD_FRAME_SIZE : 0;
+			
+			queue.addBulk(new ChunkUploadMessage(localFiles, fileid, chunkid, frameSize));
+		} else {
+			byte[] data = localFiles.getChunkData(fileid, chunkid);
 			
-			byte[] messageData = P2PMessageParser.serialiseData(data, localFiles.metadata.metaHash, message.fileid, message.chunkid);
-			queue.add(messageData);
+			byte[] messageData = P2PMessageParser.serialiseData(data, localFiles.metadata.metaHash, fileid, chunkid);
+			queue.addBulk(new SerialisedMessage(messageData, fileid, chunkid, data.length));
 		}
+	}
+	
+	/**
+	 * Removes queued uploads of the count whole chunks of fileid from chunkid, if they have not started being sent yet.
+	 * Ranges which include them are cut short, or split in two.
+	 * @throws IOException thrown if fileid/chunkid are invalid.
+	 */
+	private void cancelChunks(int fileid, int chunkid, int count) throws IOException {
+		localFiles.getChunkSize(fileid, chunkid);
 		
+		// Don't loop over more chunks than the file has
+		count = Math.min(count, localFiles.status.getChunkCounts()[fileid] - chunkid);
+		int end = chunkid + count;
+		
+		deferredUploads.cancelChunks(fileid, chunkid, count);
+		
+		for(int i=chunkid; i<end; i++) {
+			queue.cancelUpload(fileid, i, 0, localFiles.getChunkSize(fileid, i));
+		}
+	}
+	
+	/**
+	 * Removes a queued upload of length bytes at offset within (fileid, chunkid), if it has not started being sent yet.
+	 */
+	private void cancelUpload(int fileid, int chunkid, int offset, int length) {
+		if(deferredUploads.cancelBlock(fileid, chunkid, offset, length)) {
+			return;
+		}
+		
+		queue.cancelUpload(fileid, chunkid, offset, length);
 	}
 
 	private void updatePeerStatus(List<List<Integer>> chunksComplete) {
@@ -298,30 +1130,190 @@ public class PeerConnection implements Runnable, ChunkStatusChangeHandler {
 				System.err.println("Received badly formed message from peer");
 				return;
 			}
-			peerStatus.setStatus(value.get(0), value.get(1), Status.COMPLETE);
+			setPeerChunkComplete(value.get(0), value.get(1));
 		}
 	}
-
-	private void requestChunk() throws IOException {
-		if(!requestChunkLock()) {
-			// We are already in the process of receiving a chunk, don't ask for another one yet.
+	
+	/**
+	 * Marks every chunk of fileid whose bit is set in bitfield as COMPLETE for the remote peer.
+	 * Bit (chunkid % 8) of byte (chunkid / 8), most significant bit first.
+	 * @throws IOException thrown if fileid does not exist or bitfield describes a different number of chunks.
+	 */
+	private void setPeerBitfield(int fileid, int numChunks, byte[] bitfield) throws IOException {
+		if(fileid >= peerChunks.numFiles() || peerChunks.numChunks(fileid) != numChunks || bitfield.length < (numChunks + 7) / 8) {
+			throw new IOException("Peer advertised chunks which do not match our metadata");
+		}
+		
+		for(int j=0; j<numChunks; j++) {
+			if((bitfield[j >>> 3] & (0x80 >>> (j & 7))) != 0) {
+				setPeerChunkComplete(fileid, j);
+			}
+		}
+	}
+	
+	private void setPeerChunkComplete(int fileid, int chunkid) {
+		if(!peerChunks.isValid(fileid, chunkid)) {
+			System.err.println("Peer advertised invalid chunk: " + fileid + "/" + chunkid);
 			return;
 		}
+		
+		if(peerChunks.add(fileid, chunkid)) {
+			// Counted until this connection closes, see onClose
+			localFiles.status.addAvailability(fileid, chunkid);
+		}
+	}
+
+	/**
+	 * Fills the request window with chunks (or blocks) this peer has that we need.
+	 * Each chunk picked is reserved so we will request a different chunk from a different peer, except in the endgame.
+	 * 		Chunks downloaded in blocks are shared between peers, with each block reserved instead.
+	 */
+	private void requestChunks() throws IOException {
+		// Called from other connections' threads too, see onChunkComplete
+		synchronized(requests) {
+			while(requests.hasSpace() && !choked) {
+				int[] chunk = pickRequest();
+				
+				boolean endgame = false;
+				if(chunk == null) {
+					chunk = pickEndgameChunk();
+					endgame = true;
+				}
+				
+				if(chunk == null) {
+					// Peer has no more useful chunks for us
+					if(requests.size() == 0) {
+						System.out.println("Peer has no useful chunks for us");
+					}
+					return;
+				}
+				
+				byte[] messageData;
+				if(chunk[2] != RequestWindow.WHOLE_CHUNK) {
+					requests.addBlock(chunk[0], chunk[1], chunk[2], chunk[3]);
+					
+					messageData = P2PMessageParser.serialiseBlockRequest(BinaryCommand.REQUEST_BLOCK, 
+							chunk[0], chunk[1], chunk[2], chunk[3]);
+					
+				} else if(chunk[4] > 1) {
+					if(!requests.addRange(chunk[0], chunk[1], chunk[4])) {
+						// Some of it is already requested from this peer
+						for(int i=0; i<chunk[4]; i++) {
+							localFiles.status.releaseChunk(chunk[0], chunk[1] + i);
+						}
+						return;
+					}
+					
+					messageData = P2PMessageParser.serialiseRangeRequest(BinaryCommand.REQUEST_RANGE, 
+							chunk[0], chunk[1], chunk[4]);
+					
+				} else if(endgame ? !requests.addEndgame(chunk[0], chunk[1]) : !requests.add(chunk[0], chunk[1])) {
+					// Blocks of it are already requested from this peer. An endgame chunk is reserved for another peer.
+					if(!endgame) {
+						localFiles.status.releaseChunk(chunk[0], chunk[1]);
+					}
+					return;
+					
+				} else if(remoteVersion >= P2PMessageParser.BINARY_VERSION) {
+					messageData = P2PMessageParser.serialiseChunkRequest(BinaryCommand.REQUEST, chunk[0], chunk[1]);
+				} else {
+					RequestChunkJSONMessage payload = new RequestChunkJSONMessage(chunk[0], chunk[1], localFiles.metadata.metaHash);
+					
+					messageData = P2PMessageParser.serialiseJSONMessage(payload);
+				}
+				
+				queue.addControl(new SerialisedMessage(messageData));
+			}
+		}
+	}
 
-		// Choose an interesting chunk and reserve it so we will request a different chunk from a different peer
-		int[] chunk = localFiles.status.pickUsefulChunk(peerStatus);
+	
+	/**
+	 * Picks the next request to send to this peer, reserving it. In order of preference:
+	 * 	- A block of a chunk already being downloaded in blocks, if the peer supports block requests.
+	 * 	- A useful chunk. Its first block if it is larger than {@link FileManager#BLOCK_SIZE} and the peer supports blocks.
+	 * 		If the peer is a seed which supports range requests, along with up to {@link #RANGE_CHUNKS} chunks after it.
+	 * Endgame chunks are not picked here, see {@link #pickEndgameChunk()}
+	 * @return [fileid, chunkid, offset, length, count], with offset and length {@link RequestWindow#WHOLE_CHUNK} 
+	 * 		for count consecutive whole chunks. null if the peer has nothing we need.
+	 */
+	private int[] pickRequest() throws IOException {
+		boolean blocks = remoteVersion >= P2PMessageParser.BLOCK_VERSION;
+		
+		if(blocks) {
+			int[] block = localFiles.pickBlock(peerChunks);
+			if(block != null) {
+				return new int[] { block[0], block[1], block[2], block[3], 1 };
+			}
+		}
+		
+		int[] chunk;
+		if(remoteVersion >= P2PMessageParser.RANGE_VERSION && peerChunks.complete()) {
+			// A seed has every chunk after the one picked, so can send a run of them from one request
+			chunk = localFiles.status.pickUsefulRange(peerChunks, RANGE_CHUNKS);
+			
+			if(chunk != null && localFiles.getBlockLength(chunk[0], chunk[1], 0) <= 0) {
+				return new int[] { chunk[0], chunk[1], RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK, chunk[2] };
+			}
+			
+			// Large chunks are spread across peers in blocks instead, so only keep the first
+			for(int i=1; chunk != null && i<chunk[2]; i++) {
+				localFiles.status.releaseChunk(chunk[0], chunk[1] + i);
+			}
+		} else {
+			chunk = localFiles.status.pickUsefulChunk(peerChunks);
+		}
+		
+		if(chunk != null && blocks && localFiles.getBlockLength(chunk[0], chunk[1], 0) > 0) {
+			int[] block = localFiles.startBlocks(chunk[0], chunk[1]);
+			if(block != null) {
+				return new int[] { block[0], block[1], block[2], block[3], 1 };
+			}
+		}
+		
 		if(chunk == null) {
-			// Peer has no useful chunks for us
-			System.out.println("Peer has no useful chunks for us");
-			return;
+			return null;
 		}
-		currentFileID = chunk[0];
-		currentChunkID = chunk[1];
+		return new int[] { chunk[0], chunk[1], RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK, 1 };
+	}
+	
+	/**
+	 * Returns an endgame chunk this peer has that we have not already requested from it, or null.
+	 * 		The chunk stays reserved for the peer it was first requested from.
+	 * Chunks being downloaded in blocks are left to their blocks' deadlines, rather than requested whole again.
+	 * 		Chunks already arriving from another peer are skipped, as a second copy would be discarded however fast it came.
+	 * @return [fileid, chunkid, offset, length, count] as {@link #pickRequest()}
+	 */
+	private int[] pickEndgameChunk() {
+		List<int[]> chunks = localFiles.status.getEndgameChunks(peerChunks);
+		Collections.shuffle(chunks);
 		
-		RequestChunkJSONMessage payload = new RequestChunkJSONMessage(chunk[0], chunk[1], localFiles.metadata.metaHash);
+		for(int[] chunk : chunks) {
+			if(!requests.contains(chunk[0], chunk[1]) && !localFiles.isPartial(chunk[0], chunk[1]) 
+					&& !localFiles.isBeingWritten(chunk[0], chunk[1])) {
+				return new int[] { chunk[0], chunk[1], RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK, 1 };
+			}
+		}
 		
-		byte[] messageData = P2PMessageParser.serialiseJSONMessage(payload);
+		return null;
+	}
+	
+	/**
+	 * Tells the remote peer we no longer want request [fileid, chunkid, offset, length]. Version 0 peers have no 
+	 * 		cancel message, so will still send it, and it will be discarded.
+	 */
+	private void cancelRequest(int[] request) {
+		if(remoteVersion < P2PMessageParser.BINARY_VERSION || stopRequested()) {
+			return;
+		}
 		
-		queue.add(messageData);
+		byte[] messageData;
+		if(request[2] == RequestWindow.WHOLE_CHUNK) {
+			messageData = P2PMessageParser.serialiseChunkRequest(BinaryCommand.CANCEL, request[0], request[1]);
+		} else {
+			messageData = P2PMessageParser.serialiseBlockRequest(BinaryCommand.CANCEL_BLOCK, 
+					request[0], request[1], request[2], request[3]);
+		}
+		queue.addControl(new SerialisedMessage(messageData));
 	}
 }
@@ -3,6 +3,7 @@ package p2pdistribute.client;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 import p2pdistribute.client.filemanager.FileManager;
 
@@ -15,11 +16,16 @@ public class PeerConnectionListener implements Runnable {
 	private ServerSocket server;
 	private ActiveConnectionManager acManager;
 	private FileManager fileManager;
+	private NetworkEngine engine;
 	
-	public PeerConnectionListener(ActiveConnectionManager connManager, FileManager fileManager) throws IOException {
-		server = new ServerSocket(0);
+	public PeerConnectionListener(ActiveConnectionManager connManager, FileManager fileManager, NetworkEngine engine) throws IOException {
+		// Bound via a ServerSocketChannel so accepted sockets have a SocketChannel (used for zero-copy uploads)
+		server = ServerSocketChannel.open().socket();
+		server.bind(null);
+		
 		acManager = connManager;
 		this.fileManager = fileManager;
+		this.engine = engine;
 		System.out.println("Listening for peers at: " + server.getInetAddress().toString() + ":" + server.getLocalPort());
 	}
 	
@@ -53,7 +59,7 @@ public class PeerConnectionListener implements Runnable {
 		
 			PeerConnection peer;
 			try {
-				peer = new PeerConnection(client, fileManager);
+				peer = new PeerConnection(client, fileManager, engine);
 			} catch (IOException e) {
 				// Error occurred while adding a new client, just move on to the next one
 				System.out.println("Error occured constructing PeerConnection.");
@@ -1,42 +1,41 @@
 package p2pdistribute.client;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.concurrent.BlockingQueue;
+import java.nio.channels.WritableByteChannel;
 
 /**
- * Handles writing messages (byte arrays) onto a P2P connection socket.
- * 
- * The BlockingQueue can be added to from multiple threads.
+ * Handles writing messages onto a P2P connection socket, on a thread dedicated to that socket.
+ *
+ * Waits for messages to be queued, then writes them with a {@link MessageWriter}.
+ *
+ * The OutgoingQueue can be added to from multiple threads.
  *
  */
 public class PeerConnectionWriteTask implements Runnable {
-
-	private BlockingQueue<byte[]> queue;
-	private OutputStream out;
 	
-	public PeerConnectionWriteTask(BlockingQueue<byte[]> queue, OutputStream out) {
+	private OutgoingQueue queue;
+	private MessageWriter writer;
+	
+	/**
+	 * @param out - Blocking channel to write to
+	 */
+	public PeerConnectionWriteTask(OutgoingQueue queue, WritableByteChannel out, FlushStatistics stats) {
 		this.queue = queue;
-		this.out = out;
+		this.writer = new MessageWriter(queue, out, stats);
 	}
 	
 	/**
-	 * Begins waiting for a queue item, and will write that message to the socket
-	 * 
-	 * run() will return when the socket is closed or the thread is interrupted.
+	 * Begins waiting for queued messages, and will write them to the socket
+	 *
+	 * run() will return when the socket is closed or the queue is closed with {@link OutgoingQueue#close()}.
+	 * The thread should not be interrupted, as an interrupt during
+	 * 		{@link java.nio.channels.FileChannel#transferTo} would close the file being uploaded from.
 	 */
 	@Override
 	public void run() {
-		while(!Thread.interrupted()) {
-			byte[] message;
-			try {
-				message = queue.take();
-			} catch (InterruptedException e) {
-				return;
-			}
-			
+		while(queue.waitForMessages()) {
 			try {
-				out.write(message);
+				writer.write();
 			} catch (IOException e) {
 				System.out.println("Unable to write to socket");
 				break;
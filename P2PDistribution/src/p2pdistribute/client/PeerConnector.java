@@ -0,0 +1,163 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import p2pdistribute.client.filemanager.FileManager;
+import p2pdistribute.common.Peer;
+import p2pdistribute.common.Threads;
+
+/**
+ * Opens connections to peers in the background, so a slow or dead peer does not hold up the {@link PeerManager}.
+ * 	- Up to {@link #MAX_PENDING} peers are dialled at once, each on its own thread (see {@link Threads}).
+ * 	- Established connections are handed to the {@link ActiveConnectionManager}.
+ * 	- A peer which could not be connected to is not dialled again until its backoff has passed. This starts at
+ * 		{@link #BACKOFF_MIN_MS} and doubles with each failure in a row, up to {@link #BACKOFF_MAX_MS}.
+ *
+ * @note Can be used across threads.
+ */
+public class PeerConnector {
+	
+	// Most connection attempts in progress at once
+	public static int MAX_PENDING = 4; // TODO Future Task: Settings file
+	
+	public static int BACKOFF_MIN_MS = 1000; // TODO Future Task: Settings file
+	public static int BACKOFF_MAX_MS = 60000; // TODO Future Task: Settings file
+	
+	private final FileManager fileManager;
+	private final ActiveConnectionManager connManager;
+	
+	// Peers being dialled
+	private Set<Peer> pending;
+	
+	// Peers which could not be connected to: [failures in a row, System.nanoTime() at which it may be dialled again]
+	private Map<Peer, long[]> backoff;
+	
+	private boolean stopped;
+	
+	// Called once each connection attempt has finished, see setAttemptListener
+	private volatile Runnable attemptListener;
+	
+	public PeerConnector(FileManager fileManager, ActiveConnectionManager connManager) {
+		this.fileManager = fileManager;
+		this.connManager = connManager;
+		
+		pending = new HashSet<>();
+		backoff = new HashMap<>();
+		stopped = false;
+	}
+	
+	/**
+	 * Returns true if another connection attempt can be started.
+	 */
+	public synchronized boolean hasSpace() {
+		return !stopped && pending.size() < MAX_PENDING;
+	}
+	
+	/**
+	 * Returns the number of connection attempts in progress.
+	 */
+	public synchronized int getNumPending() {
+		return pending.size();
+	}
+	
+	/**
+	 * Returns false if peer is already being dialled, or failed too recently to be dialled again.
+	 */
+	public synchronized boolean canConnect(Peer peer) {
+		if(pending.contains(peer)) {
+			return false;
+		}
+		
+		long[] failures = backoff.get(peer);
+		return failures == null || System.nanoTime() - failures[1] >= 0;
+	}
+	
+	/**
+	 * Starts dialling peer. Returns immediately.
+	 * @return false if there is no space for another attempt (see {@link #hasSpace()}), or peer can't be dialled yet.
+	 */
+	public synchronized boolean connect(final Peer peer) {
+		if(!hasSpace() || !canConnect(peer)) {
+			return false;
+		}
+		
+		pending.add(peer);
+		
+		Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				attempt(peer);
+			}
+		}).start();
+		
+		return true;
+	}
+	
+	/**
+	 * Sets a task to run (on the attempt's thread) once each connection attempt has finished, whether or not it
+	 * 		succeeded. There is then space for another attempt.
+	 */
+	public void setAttemptListener(Runnable listener) {
+		attemptListener = listener;
+	}
+	
+	/**
+	 * Stops handing connections to the {@link ActiveConnectionManager}. Attempts still in progress are closed once open.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+	}
+	
+	private void attempt(Peer peer) {
+		PeerConnection conn = null;
+		try {
+			conn = new PeerConnection(peer, fileManager, connManager.engine);
+		} catch(IOException e) {
+			System.out.println("Could not connect to peer(" + peer.address.toString() + ":" + peer.port + "): " + e.getMessage());
+		}
+		
+		synchronized(this) {
+			if(conn != null && stopped) {
+				conn.stop();
+			
+			} else if(conn != null) {
+				// Before it stops being pending, so it is never dialled twice
+				connManager.addPeer(conn);
+				backoff.remove(peer);
+			
+			} else {
+				addFailure(peer);
+			}
+			
+			pending.remove(peer);
+		}
+		
+		Runnable listener = attemptListener;
+		if(listener != null) {
+			listener.run();
+		}
+	}
+	
+	private void addFailure(Peer peer) {
+		long[] failures = backoff.get(peer);
+		if(failures == null) {
+			failures = new long[2];
+			backoff.put(peer, failures);
+		}
+		
+		// BACKOFF_MIN_MS * 2^(failures in a row), without overflowing
+		long delay = BACKOFF_MIN_MS;
+		for(int i=0; i<failures[0] && delay < BACKOFF_MAX_MS; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, BACKOFF_MAX_MS);
+		
+		failures[0]++;
+		failures[1] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+	}
+}
@@ -5,31 +5,55 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
+import p2pdistribute.client.filemanager.ChunkStatusChangeHandler;
 import p2pdistribute.client.filemanager.FileManager;
 import p2pdistribute.common.Peer;
 
 /**
  * Manages P2P connections within Peer
- * 	- Decides which peers to connect to (Random selection algorithm)
+ * 	- Decides which peers to connect to: ones we have never connected to first (chosen at random), 
+ * 		then the one which has served us fastest before (see {@link PeerScore}).
+ *  	- Connections are opened in the background by a {@link PeerConnector}, several at once.
  *  	- Will not choose to actively make the connection to any peer if we are complete
  *  	- Incomplete peers can connect to us. 
+ *  - The number of peers to connect to is adjusted while downloading by a {@link ConnectionController}.
+ *  	- Once connected to that many, drops the slowest connection every {@link #DROP_INTERVAL_MS} 
+ *  		to make room for another peer. Drops the slowest connections straight away when there are too many.
+ *  - Registering with the Swarm Manager and fetching the peer list happen in the background, see {@link SwarmAnnouncer}.
+ *  - Should be run whenever {@link #awaitEvent()} returns: when a chunk completes, a connection closes or 
+ *  	finishes opening, or the peer list changes. Otherwise every {@link #RUN_INTERVAL_MS}.
  *
  */
 public class PeerManager {
-
-	public final int MAX_PEERS = 10; // TODO Future Task: Settings file
+	
+	// How often the slowest connection is dropped while at the target number of peers
+	public static int DROP_INTERVAL_MS = 30000; // TODO Future Task: Settings file
+	
+	// Longest time between runs when nothing happens. Scores, chokes and the number of peers are updated on each run.
+	public static int RUN_INTERVAL_MS = 1000; // TODO Future Task: Settings file
 	
 	Peer[] peers;
 	
 	FileManager fileManager;
 	SwarmManagerConnection smConn;
+	SwarmAnnouncer announcer;
 	ActiveConnectionManager connManager;
+	PeerConnector connector;
+	ConnectionController controller;
 	
 	Random random;
 	
+	// System.nanoTime() at which a connection was last dropped for being slow
+	private long lastDrop;
+	
+	// Set when something has happened since the last run, see awaitEvent()
+	private final Object events = new Object();
+	private boolean eventPending;
+	
 	
-	public PeerManager(String swarmManagerHostname, int port, FileManager fileManager) throws PeerManagerException {
+	public PeerManager(String swarmManagerHostname, int port, FileManager fileManager, NetworkEngine engine) throws PeerManagerException {
 		
 		try {
 			smConn = new SwarmManagerConnection(swarmManagerHostname, port);
@@ -40,45 +64,140 @@ public class PeerManager {
 		
 		
 		try {
-			connManager = new ActiveConnectionManager(fileManager);
+			connManager = new ActiveConnectionManager(fileManager, engine);
 		} catch (IOException e) {
 			throw new PeerManagerException("Error occured initialising ConectionManager: " + e.getMessage());
 		}
 		
+		connector = new PeerConnector(fileManager, connManager);
+		controller = new ConnectionController(System.nanoTime());
+		
 		random = new Random();
+		lastDrop = System.nanoTime();
+		peers = new Peer[0];
+		eventPending = false;
+		
+		Runnable signal = new Runnable() {
+			@Override
+			public void run() {
+				signal();
+			}
+		};
+		connManager.setCloseListener(signal);
+		connector.setAttemptListener(signal);
+		fileManager.status.registerHandler(new ChunkStatusChangeHandler() {
+			@Override
+			public void onChunkComplete(int fileid, int chunkid) {
+				signal();
+			}
+		});
+		
+		announcer = new SwarmAnnouncer(smConn, fileManager.metadata.metaHash, connManager.getPort(), signal);
+		announcer.start();
+	}
+	
+	/**
+	 * Waits until something happens which the next run should act on, or {@link #RUN_INTERVAL_MS} passes.
+	 * Returns straight away if something has happened since the last call.
+	 */
+	public void awaitEvent() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_INTERVAL_MS);
+		
+		synchronized(events) {
+			long remaining = deadline - System.nanoTime();
+			
+			while(!eventPending && remaining > 0) {
+				TimeUnit.NANOSECONDS.timedWait(events, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+			
+			eventPending = false;
+		}
+	}
+	
+	private void signal() {
+		synchronized(events) {
+			eventPending = true;
+			events.notifyAll();
+		}
 	}
 
 	/**
-	 * Registers with the Swarm Manager, updates the peer list
-	 * and selects a peer to connect to if we haven't hit MAX_PEERS yet
+	 * Removes closed connections, takes the latest peer list
+	 * and starts connecting to peers if we haven't hit the target number yet (otherwise may drop the slowest connection)
 	 * 
-	 * @throws PeerManagerException thrown on connection problem with Swarm Manager.
+	 * @throws PeerManagerException thrown if there was a connection problem with the Swarm Manager.
 	 */
 	public void run() throws PeerManagerException {
 		pruneConnections();
 		
-		// TODO Future Task: Move SM registering to a different thread.
-		registerWithSwarmManager();
+		connManager.updateScores();
+		connManager.updateChokes();
+		
+		if(announcer.getError() != null) {
+			throw new PeerManagerException(announcer.getError());
+		}
+		peers = announcer.getPeers();
+		
+		if(fileManager.complete()) {
+			return;
+		}
+		
+		if(controller.update(connManager.getReceivedBytes(), connManager.getNumPeers(), System.nanoTime())) {
+			System.out.println("Connections: " + controller);
+		}
+		int target = controller.getTarget();
+		
+		if(connManager.getNumPeers() > target) {
+			// Shed the slowest, one per run. It is removed by the next run's pruneConnections.
+			connManager.dropSlowest(Double.MAX_VALUE);
+			return;
+		}
 		
-		updatePeerList();
+		if(connManager.getNumPeers() >= target) {
+			Peer replacement = selectNewPeer(peers);
+			
+			if(replacement != null) {
+				// Make room for the new peer, replacing the slowest connection on a later run
+				dropSlowPeer(replacement);
+			}
+			return;
+		}
 		
-		if((!fileManager.complete()) && (connManager.getNumPeers() < MAX_PEERS)) {
+		// Doesn't wait for the connections to open. Those still being opened count towards the target.
+		int room = target - connManager.getNumPeers() - connector.getNumPending();
+		
+		for(int i=0; i<room && connector.hasSpace(); i++) {
 			Peer selectedPeer = selectNewPeer(peers);
 			
-			if(selectedPeer != null) {
-
-				PeerConnection peerConn = connectToPeer(selectedPeer);
-				if(peerConn != null) {
-					connManager.addPeer(peerConn);
-				} else {
-					// Don't connect to this peer again for a while
-					removePeer(selectedPeer);
-				}
+			if(selectedPeer == null) {
+				return;
 			}
+			connector.connect(selectedPeer);
+		}
+	}
+
+	/**
+	 * Drops the slowest connection, if none has been dropped for {@link #DROP_INTERVAL_MS} 
+	 * 		and replacement has scored higher (or has never been tried).
+	 */
+	private void dropSlowPeer(Peer replacement) {
+		long now = System.nanoTime();
+		if(now - lastDrop < TimeUnit.MILLISECONDS.toNanos(DROP_INTERVAL_MS)) {
+			return;
+		}
+		
+		PeerScore score = connManager.getScore(replacement);
+		double replacementScore = score.isUntried() ? Double.MAX_VALUE : score.getScore();
+		
+		if(connManager.dropSlowest(replacementScore)) {
+			lastDrop = now;
 		}
 	}
 
 	public void waitForPeers() {
+		announcer.stop();
+		connector.stop();
 		connManager.stop();
 	}
 
@@ -86,73 +205,36 @@ public class PeerManager {
 		return connManager.complete();
 	}
 
-	private void updatePeerList() throws PeerManagerException {
-		
-		Peer[] peers;
-		
-		try {
-			peers = smConn.getPeerList(fileManager.metadata.metaHash);
-		} catch (IOException e) {
-			throw new PeerManagerException("Communication Error with Swarm Manager: " + e.getMessage());
-		}
-		
-		this.peers = peers;
-	}
-
-	private void removePeer(Peer selectedPeer) {
-		
-		Peer[] newPeers = new Peer[this.peers.length - 1];
-		
-		int i=0;
-		
-		for(Peer peer : this.peers) {
-			if(peer.equals(selectedPeer)) {
-				continue;
-			}
-			newPeers[i++] = peer;
-		}
-		
-		this.peers = newPeers;
-	}
-
 	private void pruneConnections() {
 		connManager.pruneConnections();
 	}
 	
-	private void registerWithSwarmManager() throws PeerManagerException {
-		try {
-			smConn.register(fileManager.metadata.metaHash, connManager.getPort());
-		} catch (IOException e) {
-			throw new PeerManagerException("Communication Error with Swarm Manager: " + e.getMessage());
-		}
-	}
-	
 	private Peer selectNewPeer(Peer[] peers) {
-		// Choose a peer we aren't already connected to.
-		List<Peer> unconnectedPeers = new ArrayList<>(peers.length);
+		// Choose a peer we aren't already connected to (or connecting to), and which hasn't failed too recently.
+		List<Peer> untriedPeers = new ArrayList<>(peers.length);
+		Peer bestPeer = null;
+		double bestScore = -1;
+		
 		for(Peer peer : peers) {
-			if(!connManager.contains(peer)) {
-				unconnectedPeers.add(peer);
+			if(connManager.contains(peer) || !connector.canConnect(peer)) {
+				continue;
+			}
+			
+			PeerScore score = connManager.getScore(peer);
+			if(score.isUntried()) {
+				untriedPeers.add(peer);
+			} else if(score.getScore() > bestScore) {
+				bestPeer = peer;
+				bestScore = score.getScore();
 			}
 		}
 		
-		if(unconnectedPeers.size() == 0) {
-			return null;
+		if(untriedPeers.size() == 0) {
+			return bestPeer;
 		}
 		
-		int index = random.nextInt(unconnectedPeers.size());
+		int index = random.nextInt(untriedPeers.size());
 		
-		return unconnectedPeers.get(index);
-	}
-	
-	private PeerConnection connectToPeer(Peer peer) {
-		try {
-			PeerConnection conn = new PeerConnection(peer, fileManager);
-			return conn;
-		} catch(IOException e) {
-			System.out.println("Could not connect to peer(" + peer.address.toString() + ":" + peer.port + "): " + e.getMessage());
-			// Unable to connect to peer.
-			return null;
-		}
+		return untriedPeers.get(index);
 	}
 }
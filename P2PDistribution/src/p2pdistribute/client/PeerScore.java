@@ -0,0 +1,110 @@
+package p2pdistribute.client;
+
+/**
+ * Rolling measure of how useful a remote peer has been to us. Kept after disconnecting, so that peers which served
+ * 		us well are preferred when reconnecting.
+ *
+ * 	- Throughput: bytes of chunk data received per second, sampled every {@link #SAMPLE_INTERVAL_MS}.
+ * 	- Latency: the peer's request round trip (see {@link TransferEstimator}).
+ * 	- Failures: chunks from the peer which did not match their hash.
+ *
+ * Throughput and latency are moving averages, weighted towards recent samples, so follow changes in the peer's speed.
+ *
+ * @note Can be used across threads.
+ */
+public class PeerScore {
+	
+	// How often throughput is sampled
+	public static int SAMPLE_INTERVAL_MS = 1000; // TODO Future Task: Settings file
+	
+	// Size of request the score is worked out for, see getScore()
+	public static int SCORE_REQUEST_BYTES = 256 * 1024; // TODO Future Task: Settings file
+	
+	// Weight of each new sample in the averages
+	private static final double WEIGHT = 0.25;
+	
+	// Negative until first sampled
+	private double bytesPerSecond = -1;
+	private double latencyNanos = -1;
+	private int failures;
+	private int samples;
+	
+	// Totals for the current connection when last sampled
+	private long lastBytes;
+	private int lastFailures;
+	private long lastSample;
+	
+	/**
+	 * Called when a new connection to the peer opens. Its totals start from zero.
+	 */
+	public synchronized void connected(long now) {
+		lastBytes = 0;
+		lastFailures = 0;
+		lastSample = now;
+	}
+	
+	/**
+	 * Updates the score from the current connection's totals, if {@link #SAMPLE_INTERVAL_MS} has passed.
+	 * @param receivedBytes - Bytes of chunk data received on this connection
+	 * @param failedChunks - Chunks received on this connection which did not match their hash
+	 * @param latencyNanos - Estimated round trip of a request, or negative if not known
+	 * @param now - System.nanoTime()
+	 */
+	public synchronized void sample(long receivedBytes, int failedChunks, long latencyNanos, long now) {
+		failures += failedChunks - lastFailures;
+		lastFailures = failedChunks;
+		
+		if(latencyNanos >= 0) {
+			this.latencyNanos = (this.latencyNanos < 0) ? latencyNanos : (1 - WEIGHT) * this.latencyNanos + WEIGHT * latencyNanos;
+		}
+		
+		long elapsed = now - lastSample;
+		if(elapsed < SAMPLE_INTERVAL_MS * 1000000L) {
+			return;
+		}
+		
+		double rate = (receivedBytes - lastBytes) * 1e9 / elapsed;
+		bytesPerSecond = (bytesPerSecond < 0) ? rate : (1 - WEIGHT) * bytesPerSecond + WEIGHT * rate;
+		
+		lastBytes = receivedBytes;
+		lastSample = now;
+		samples++;
+	}
+	
+	/**
+	 * Returns true if throughput has not been sampled yet. e.g. we have never connected to the peer.
+	 */
+	public synchronized boolean isUntried() {
+		return samples == 0;
+	}
+	
+	/**
+	 * Returns the number of times throughput has been sampled.
+	 */
+	public synchronized int getSamples() {
+		return samples;
+	}
+	
+	public synchronized double getBytesPerSecond() {
+		return Math.max(bytesPerSecond, 0);
+	}
+	
+	public synchronized int getFailures() {
+		return failures;
+	}
+	
+	/**
+	 * Returns the bytes per second we expect to get from the peer for a request of {@link #SCORE_REQUEST_BYTES},
+	 * 		including its latency, halved for each chunk it has sent which failed verification.
+	 * @return 0 if the peer has sent us nothing
+	 */
+	public synchronized double getScore() {
+		if(bytesPerSecond <= 0) {
+			return 0;
+		}
+		
+		double seconds = Math.max(latencyNanos, 0) / 1e9 + SCORE_REQUEST_BYTES / bytesPerSecond;
+		
+		return SCORE_REQUEST_BYTES / seconds / Math.pow(2, failures);
+	}
+}
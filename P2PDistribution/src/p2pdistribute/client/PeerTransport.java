@@ -0,0 +1,32 @@
+package p2pdistribute.client;
+
+/**
+ * Moves messages between a {@link PeerConnection} and its socket.
+ * 
+ * Created by a {@link NetworkEngine}. The transport reads messages off the socket and passes them to the 
+ * 		PeerConnection, and writes messages from the PeerConnection's {@link OutgoingQueue} onto the socket.
+ *
+ */
+public interface PeerTransport {
+	
+	/**
+	 * Begins sending and receiving messages.
+	 */
+	public void start();
+	
+	/**
+	 * Requests the socket is closed. Returns without waiting for it to close.
+	 */
+	public void stop();
+	
+	/**
+	 * Returns false once the connection has been closed and the PeerConnection has been tidied up.
+	 */
+	public boolean isAlive();
+	
+	/**
+	 * Runs task, which may read from disk (e.g. starting uploads), on a thread where it won't hold up other connections.
+	 * 		Called from the thread writing the socket. May run task before returning.
+	 */
+	public void execute(Runnable task);
+}
@@ -0,0 +1,342 @@
+package p2pdistribute.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the chunks we have requested from a single remote peer but not yet received.
+ * Each request is either a whole chunk, or a block of a chunk (length bytes at offset within the chunk).
+ *
+ * Allows up to {@link #capacity} request_chunk messages to be outstanding at once, so the
+ * 		remote peer always has another chunk to send while the previous one is in flight.
+ *
+ * Peers send chunks in the order they were requested, so only the oldest request (the head) is being sent at once.
+ * 		{@link #getHeadStart()} is when the peer could have started sending it: when it was requested,
+ * 		or when the request before it was satisfied, whichever is later. Used to give each request a deadline.
+ *
+ * A peer which misses deadlines can be {@link #demote()}d, allowing fewer requests to it at once. A peer which is
+ * 		faster than others can be given a larger capacity with {@link #setCapacity(int)}.
+ *
+ * Requests are returned as [fileid, chunkid, offset, length]. offset and length are {@link #WHOLE_CHUNK} for whole chunks.
+ *
+ * Endgame requests (see {@link #addEndgame(int, int)}) are for chunks reserved for another peer, and also requested
+ * 		from this one. They must not release the chunk when they are removed, see {@link #isEndgame(int, int)}.
+ *
+ * @note Can be used across threads. Locked by PeerConnection while filling the window.
+ */
+public class RequestWindow {
+
+	public static final int WHOLE_CHUNK = -1;
+
+	// Most requests allowed at once
+	private int capacity;
+
+	// Each request to the time it was made, in the order they were made.
+	private Map<Request, Long> outstanding;
+
+	// System.nanoTime() at which the current head became the head
+	private long headSince;
+
+	// Number of requests currently allowed. Between 1 and capacity.
+	private int limit;
+
+	public RequestWindow(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Request window must allow at least one outstanding request");
+		}
+
+		this.capacity = capacity;
+		this.limit = capacity;
+
+		outstanding = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Returns true if another request can be sent without exceeding the window.
+	 */
+	public synchronized boolean hasSpace() {
+		return outstanding.size() < limit;
+	}
+
+	/**
+	 * Records a request for the whole of (fileid, chunkid) as outstanding.
+	 * @return false if the window is already full or the chunk (or a block of it) is already outstanding.
+	 */
+	public synchronized boolean add(int fileid, int chunkid) {
+		if(contains(fileid, chunkid)) {
+			return false;
+		}
+
+		return add(new Request(fileid, chunkid, WHOLE_CHUNK, WHOLE_CHUNK));
+	}
+
+	/**
+	 * Records an endgame request for the whole of (fileid, chunkid): a chunk reserved for, and requested from, another peer.
+	 * @return false if the window is already full or the chunk (or a block of it) is already outstanding.
+	 */
+	public synchronized boolean addEndgame(int fileid, int chunkid) {
+		if(contains(fileid, chunkid)) {
+			return false;
+		}
+
+		return add(new Request(fileid, chunkid, WHOLE_CHUNK, WHOLE_CHUNK, true));
+	}
+
+	/**
+	 * Returns true if the whole of (fileid, chunkid) is outstanding as an endgame request, see {@link #addEndgame(int, int)}.
+	 */
+	public synchronized boolean isEndgame(int fileid, int chunkid) {
+		for(Request request : outstanding.keySet()) {
+			if(request.fileid == fileid && request.chunkid == chunkid && request.offset == WHOLE_CHUNK) {
+				return request.endgame;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records requests for count consecutive whole chunks of fileid, starting at chunkid, made as one range request.
+	 * Allowed whenever the window has space, even though the range may take it over the limit, so the next range
+	 * 		can be requested before the last one has arrived.
+	 * @return false if the window is already full or any of the chunks is already outstanding.
+	 */
+	public synchronized boolean addRange(int fileid, int chunkid, int count) {
+		if(!hasSpace()) {
+			return false;
+		}
+		for(int i=0; i<count; i++) {
+			if(contains(fileid, chunkid + i)) {
+				return false;
+			}
+		}
+
+		long now = System.nanoTime();
+		if(outstanding.isEmpty()) {
+			headSince = now;
+		}
+
+		for(int i=0; i<count; i++) {
+			outstanding.put(new Request(fileid, chunkid + i, WHOLE_CHUNK, WHOLE_CHUNK), now);
+		}
+		return true;
+	}
+
+	/**
+	 * Records a request for length bytes at offset within (fileid, chunkid) as outstanding.
+	 * @return false if the window is already full or the block is already outstanding.
+	 */
+	public synchronized boolean addBlock(int fileid, int chunkid, int offset, int length) {
+		return add(new Request(fileid, chunkid, offset, length));
+	}
+
+	/**
+	 * Marks a request for a whole chunk as satisfied, freeing its slot in the window.
+	 * @return true if (fileid, chunkid) was outstanding.
+	 */
+	public synchronized boolean remove(int fileid, int chunkid) {
+		return remove(new Request(fileid, chunkid, WHOLE_CHUNK, 0));
+	}
+
+	/**
+	 * Marks a request for the block at offset within (fileid, chunkid) as satisfied.
+	 * @return true if the block was outstanding.
+	 */
+	public synchronized boolean removeBlock(int fileid, int chunkid, int offset) {
+		return remove(new Request(fileid, chunkid, offset, 0));
+	}
+
+	/**
+	 * Removes every request for (fileid, chunkid), whole or blocks of it. e.g. the chunk arrived from another peer.
+	 * @return [fileid, chunkid, offset, length] for each request removed.
+	 */
+	public synchronized List<int[]> removeChunk(int fileid, int chunkid) {
+		List<int[]> removed = new ArrayList<>();
+
+		for(Request request : new ArrayList<>(outstanding.keySet())) {
+			if(request.fileid == fileid && request.chunkid == chunkid) {
+				remove(request);
+				removed.add(request.toArray());
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns true if the whole of (fileid, chunkid), or any block of it, is outstanding.
+	 */
+	public synchronized boolean contains(int fileid, int chunkid) {
+		for(Request request : outstanding.keySet()) {
+			if(request.fileid == fileid && request.chunkid == chunkid) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the block at offset within (fileid, chunkid) is outstanding.
+	 */
+	public synchronized boolean containsBlock(int fileid, int chunkid, int offset) {
+		return outstanding.containsKey(new Request(fileid, chunkid, offset, 0));
+	}
+
+	public synchronized int size() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Returns [fileid, chunkid, offset, length] of the oldest outstanding request, or null if there are none.
+	 */
+	public synchronized int[] getHead() {
+		if(outstanding.isEmpty()) {
+			return null;
+		}
+
+		return outstanding.keySet().iterator().next().toArray();
+	}
+
+	/**
+	 * Returns the System.nanoTime() from which the remote peer could have been sending the head request.
+	 */
+	public synchronized long getHeadStart() {
+		if(outstanding.isEmpty()) {
+			return System.nanoTime();
+		}
+
+		return Math.max(headSince, outstanding.values().iterator().next());
+	}
+
+	/**
+	 * Returns the most requests allowed at once, when not demoted.
+	 */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes the most requests allowed at once. A window which is not demoted grows (or shrinks) to the new capacity.
+	 * Requests already outstanding are not affected.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Request window must allow at least one outstanding request");
+		}
+
+		limit = (limit == this.capacity) ? capacity : Math.min(limit, capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of requests currently allowed at once.
+	 */
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Halves the number of requests allowed at once, down to 1. e.g. the peer missed a deadline.
+	 * Requests already outstanding are not affected.
+	 */
+	public synchronized void demote() {
+		limit = Math.max(1, limit / 2);
+	}
+
+	/**
+	 * Allows one more request at once, up to {@link #capacity}. e.g. the peer met a deadline.
+	 */
+	public synchronized void promote() {
+		limit = Math.min(capacity, limit + 1);
+	}
+
+	/**
+	 * Empties the window, returning every request that was outstanding.
+	 * @return [fileid, chunkid, offset, length] for each outstanding request, in the order they were made.
+	 */
+	public synchronized int[][] clear() {
+		int[][] chunks = new int[outstanding.size()][];
+
+		int i=0;
+		Iterator<Request> iter = outstanding.keySet().iterator();
+		while(iter.hasNext()) {
+			chunks[i++] = iter.next().toArray();
+		}
+
+		outstanding.clear();
+
+		return chunks;
+	}
+
+	private boolean add(Request request) {
+		if(!hasSpace() || outstanding.containsKey(request)) {
+			return false;
+		}
+
+		long now = System.nanoTime();
+		if(outstanding.isEmpty()) {
+			headSince = now;
+		}
+
+		outstanding.put(request, now);
+		return true;
+	}
+
+	private boolean remove(Request request) {
+		if(!outstanding.containsKey(request)) {
+			return false;
+		}
+
+		boolean wasHead = outstanding.keySet().iterator().next().equals(request);
+		outstanding.remove(request);
+
+		if(wasHead) {
+			headSince = System.nanoTime();
+		}
+		return true;
+	}
+
+	/**
+	 * One outstanding request. Requests are equal if they start at the same place, whatever their length.
+	 */
+	private static class Request {
+		final int fileid;
+		final int chunkid;
+		final int offset;
+		final int length;
+		// True if the chunk is reserved for another peer, see addEndgame
+		final boolean endgame;
+
+		Request(int fileid, int chunkid, int offset, int length) {
+			this(fileid, chunkid, offset, length, false);
+		}
+
+		Request(int fileid, int chunkid, int offset, int length, boolean endgame) {
+			this.fileid = fileid;
+			this.chunkid = chunkid;
+			this.offset = offset;
+			this.length = length;
+			this.endgame = endgame;
+		}
+
+		int[] toArray() {
+			return new int[] { fileid, chunkid, offset, length };
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Request)) {
+				return false;
+			}
+			Request other = (Request)obj;
+
+			return fileid == other.fileid && chunkid == other.chunkid && offset == other.offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return (fileid * 31 + chunkid) * 31 + offset;
+		}
+	}
+}
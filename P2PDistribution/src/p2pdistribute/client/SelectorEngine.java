@@ -0,0 +1,94 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop networking. A fixed number of {@link SelectorLoop} threads own every peer socket,
+ * 		using non-blocking IO. New connections are spread across the loops in turn.
+ *
+ * Received messages and chunk data are handled (written to disk, hashed, uploads read from disk) by a fixed pool of
+ * 		worker threads, so a slow disk doesn't hold up every other socket on a loop. A connection isn't read from
+ * 		while a worker is handling its last read.
+ * 		With no workers, this is done on the selector threads: fewer thread switches, but one slow disk write
+ * 		then stalls every peer on that loop.
+ *
+ * The number of threads stays the same however many peers are connected.
+ */
+public class SelectorEngine implements NetworkEngine {
+	
+	// Number of selector threads used if not specified.
+	public static int DEFAULT_THREADS = 2; // TODO Future Task: Settings file
+	
+	// Number of threads handling received messages for every connection, if not specified.
+	public static int DEFAULT_WORKER_THREADS = 2; // TODO Future Task: Settings file
+	
+	private SelectorLoop[] loops;
+	private ExecutorService workers;
+	private int next;
+	
+	/**
+	 * Starts numThreads selector threads and workerThreads worker threads.
+	 * @param workerThreads - 0 to handle received messages on the selector threads
+	 * @throws IOException thrown if a Selector could not be opened.
+	 */
+	public SelectorEngine(int numThreads, int workerThreads) throws IOException {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Selector engine needs at least one thread");
+		}
+		if(workerThreads < 0) {
+			throw new IllegalArgumentException("Number of worker threads can't be negative");
+		}
+		
+		loops = new SelectorLoop[numThreads];
+		for(int i=0; i<numThreads; i++) {
+			loops[i] = new SelectorLoop("selector-" + i);
+		}
+		
+		next = 0;
+		
+		if(workerThreads == 0) {
+			workers = null;
+			return;
+		}
+		
+		final AtomicInteger workerCount = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "selector-worker-" + workerCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@Override
+	public synchronized PeerTransport open(PeerConnection conn, Socket sock) throws IOException {
+		SocketChannel channel = sock.getChannel();
+		if(channel == null) {
+			throw new IOException("Socket was not opened from a SocketChannel");
+		}
+		
+		SelectorLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		
+		return new SelectorTransport(loop, workers, conn, channel);
+	}
+	
+	@Override
+	public void stop() {
+		for(SelectorLoop loop : loops) {
+			loop.stop();
+		}
+		
+		if(workers != null) {
+			workers.shutdown();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of a {@link SelectorEngine}. Reads and writes the sockets of many {@link SelectorTransport}s.
+ *
+ * Other threads ask the loop to register, write, close or resume reading a transport through {@link #register}, 
+ * 		{@link #write}, {@link #close} and {@link #resume}. Everything else in a SelectorTransport is only touched by
+ * 		the loop thread (or its worker, while reading is paused).
+ */
+public class SelectorLoop implements Runnable {
+	
+	// How often (in milliseconds) connections are checked for timeouts and completion.
+	public static final int TICK_MS = 1000;
+	
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running;
+	
+	// Requests from other threads, handled by the loop thread
+	private final Queue<SelectorTransport> registrations;
+	private final Queue<SelectorTransport> writes;
+	private final Queue<SelectorTransport> closes;
+	private final Queue<SelectorTransport> resumes;
+	
+	// Every transport registered with this loop. Only used by the loop thread.
+	private final Set<SelectorTransport> transports;
+	private long lastTick;
+	
+	/**
+	 * Opens a Selector and starts the loop thread.
+	 * @throws IOException thrown if the Selector could not be opened
+	 */
+	public SelectorLoop(String name) throws IOException {
+		selector = Selector.open();
+		
+		registrations = new ConcurrentLinkedQueue<>();
+		writes = new ConcurrentLinkedQueue<>();
+		closes = new ConcurrentLinkedQueue<>();
+		resumes = new ConcurrentLinkedQueue<>();
+		
+		transports = new HashSet<>();
+		lastTick = System.currentTimeMillis();
+		
+		running = true;
+		thread = new Thread(this, name);
+		thread.start();
+	}
+	
+	/**
+	 * Stops the loop, closing every connection registered with it.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Registers transport's socket with this loop, after which it will be read and written.
+	 */
+	public void register(SelectorTransport transport) {
+		registrations.add(transport);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Asks the loop to write transport's queued messages.
+	 */
+	public void write(SelectorTransport transport) {
+		writes.add(transport);
+		
+		if(Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Asks the loop to close transport's socket.
+	 */
+	public void close(SelectorTransport transport) {
+		closes.add(transport);
+		
+		if(Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Called by a worker once it has handled transport's received bytes, so the loop reads from it again.
+	 */
+	public void resume(SelectorTransport transport) {
+		resumes.add(transport);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Called by transport (on the loop thread) once it has been closed.
+	 */
+	void remove(SelectorTransport transport) {
+		transports.remove(transport);
+	}
+	
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				selector.select(TICK_MS);
+			} catch (IOException e) {
+				System.err.println("Selector failed: " + e.getMessage());
+				break;
+			}
+			
+			SelectorTransport transport;
+			while((transport = registrations.poll()) != null) {
+				transports.add(transport);
+				transport.register(selector);
+			}
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				((SelectorTransport) key.attachment()).handle(key);
+			}
+			
+			while((transport = resumes.poll()) != null) {
+				transport.resumeRead();
+			}
+			
+			while((transport = writes.poll()) != null) {
+				transport.write();
+			}
+			
+			while((transport = closes.poll()) != null) {
+				transport.close();
+			}
+			
+			long now = System.currentTimeMillis();
+			if(now - lastTick >= TICK_MS) {
+				lastTick = now;
+				
+				// Copy, as transports remove themselves when closed
+				for(SelectorTransport t : new ArrayList<>(transports)) {
+					t.checkTimeout(now);
+				}
+			}
+		}
+		
+		for(SelectorTransport t : new ArrayList<>(transports)) {
+			t.close();
+		}
+		
+		SelectorTransport pending;
+		while((pending = registrations.poll()) != null) {
+			pending.close();
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package p2pdistribute.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import p2pdistribute.client.filemanager.ChunkReceiver;
+import p2pdistribute.client.message.DataMessage;
+import p2pdistribute.client.message.Message;
+import p2pdistribute.client.message.P2PMessageParser;
+import p2pdistribute.common.p2pmeta.ParserException;
+
+/**
+ * Carries messages for one PeerConnection using non-blocking IO, on a {@link SelectorLoop} thread shared with other connections.
+ *
+ * Received bytes are buffered until a whole message (or for Data messages, the header) can be parsed.
+ * 		Chunk data is then passed to the PeerConnection as it arrives, without waiting for the whole chunk.
+ * 		This is done on one of the engine's worker threads (if it has any), as it may write to disk. The socket isn't
+ * 		read again until the worker has finished, so messages are still handled one at a time and in order.
+ * Queued messages are written with a {@link MessageWriter} whenever the socket will accept them. Uploads started 
+ * 		once the queue has space again (which may read chunks from disk) are also handed to a worker, see {@link #execute}.
+ *
+ * @note Apart from {@link #start()}, {@link #stop()}, {@link #isAlive()} and the queue's message listener,
+ * 		only used by the loop thread, or the worker while reading is paused.
+ */
+public class SelectorTransport implements PeerTransport {
+	
+	// Initial size of the buffer messages are read into. Grows to fit larger control messages.
+	public static final int READ_BUFFER_SIZE = ChunkReceiver.SLICE_SIZE;
+	
+	// Most reads a worker makes before handing the connection back to the loop, so one busy peer can't keep a worker.
+	public static final int WORKER_READS = 16;
+	
+	private final SelectorLoop loop;
+	private final ExecutorService workers;
+	private final PeerConnection conn;
+	private final SocketChannel channel;
+	private final MessageWriter writer;
+	
+	private SelectionKey key;
+	private ByteBuffer in;
+	
+	// Bytes of chunk data still to be read for the current Data message
+	private int dataRemaining;
+	private long lastRead;
+	
+	// True while this transport is waiting in the loop's write queue
+	private final AtomicBoolean writeRequested;
+	private volatile boolean closed;
+	
+	// True while a worker is handling received bytes. Reading is paused until it finishes.
+	private boolean processing;
+	// True while queued messages wait for the socket to become writable
+	private boolean writeBlocked;
+	// Set if close() was called while processing. Closed once the worker has finished.
+	private boolean closePending;
+	// Set by the worker if the received bytes could not be handled, or the socket closed
+	private volatile boolean failed;
+	
+	/**
+	 * @param workers - Handles received messages, or null to handle them on the loop thread
+	 */
+	public SelectorTransport(SelectorLoop loop, ExecutorService workers, PeerConnection conn, SocketChannel channel) {
+		this.loop = loop;
+		this.workers = workers;
+		this.conn = conn;
+		this.channel = channel;
+		
+		writer = new MessageWriter(conn.queue, channel, conn.writeStats);
+		in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		dataRemaining = 0;
+		
+		writeRequested = new AtomicBoolean(false);
+		closed = false;
+		processing = false;
+		writeBlocked = false;
+		closePending = false;
+		failed = false;
+		
+		conn.queue.setMessageListener(new Runnable() {
+			@Override
+			public void run() {
+				requestWrite();
+			}
+		});
+	}
+	
+	@Override
+	public void start() {
+		loop.register(this);
+	}
+	
+	@Override
+	public void stop() {
+		loop.close(this);
+	}
+	
+	@Override
+	public boolean isAlive() {
+		return !closed;
+	}
+	
+	/**
+	 * Runs task on a worker, as the loop thread writes every socket on the loop.
+	 * 		On the calling thread if there are no workers.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if(workers == null) {
+			task.run();
+			return;
+		}
+		
+		try {
+			workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Engine is stopping
+		}
+	}
+	
+	private void requestWrite() {
+		if(writeRequested.compareAndSet(false, true)) {
+			loop.write(this);
+		}
+	}
+	
+	/**
+	 * Registers the socket with selector. Loop thread only.
+	 */
+	void register(Selector selector) {
+		try {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			System.out.println("Unable to register peer socket: " + e.getMessage());
+			close();
+			return;
+		}
+		
+		lastRead = System.currentTimeMillis();
+		
+		conn.onOpen();
+		write();
+	}
+	
+	/**
+	 * Handles the socket being readable and/or writable. Loop thread only.
+	 */
+	void handle(SelectionKey key) {
+		if(key.isValid() && key.isReadable() && !processing) {
+			read();
+		}
+		
+		if(key.isValid() && key.isWritable()) {
+			write();
+		}
+	}
+	
+	/**
+	 * Writes as many queued messages as the socket will accept. Loop thread only.
+	 */
+	void write() {
+		if(closed || closePending || key == null) {
+			return;
+		}
+		writeRequested.set(false);
+		
+		try {
+			// Wait for the socket to become writable if it is full
+			writeBlocked = !writer.write();
+			updateInterest();
+		} catch (IOException e) {
+			System.out.println("Unable to write to socket");
+			close();
+		}
+	}
+	
+	/**
+	 * Closes the connection if it has finished, or nothing has been received for {@link PeerConnection#PEER_SOCKET_TIMEOUT}.
+	 * Loop thread only.
+	 */
+	void checkTimeout(long now) {
+		// Time spent by a worker (e.g. on a slow disk) doesn't count
+		if(!conn.isRunning() || (!processing && now - lastRead > PeerConnection.PEER_SOCKET_TIMEOUT)) {
+			close();
+		}
+	}
+	
+	/**
+	 * Called once a worker has handled the received bytes. Reads from the socket again, or closes it
+	 * 		if handling failed or the connection should close. Loop thread only.
+	 */
+	void resumeRead() {
+		processing = false;
+		
+		if(closed) {
+			return;
+		}
+		
+		if(failed || closePending || !conn.isRunning()) {
+			close();
+			return;
+		}
+		
+		lastRead = System.currentTimeMillis();
+		updateInterest();
+	}
+	
+	/**
+	 * Closes the socket and tidies up the PeerConnection. Loop thread only.
+	 * 		If a worker is handling received bytes, the PeerConnection is tidied up once it has finished.
+	 */
+	void close() {
+		if(closed) {
+			return;
+		}
+		
+		if(key != null) {
+			key.cancel();
+		}
+		
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("IOException on peer socket close");
+		}
+		
+		if(processing) {
+			closePending = true;
+			return;
+		}
+		
+		conn.stop();
+		conn.onClose();
+		
+		closed = true;
+		loop.remove(this);
+	}
+	
+	private void read() {
+		int read;
+		try {
+			read = channel.read(in);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		
+		if(read == -1) {
+			close();
+			return;
+		}
+		lastRead = System.currentTimeMillis();
+		
+		if(workers == null) {
+			// Just this read, so the other sockets on the loop aren't kept waiting
+			handleInput(1);
+			
+			if(failed || !conn.isRunning()) {
+				close();
+			}
+			return;
+		}
+		
+		// Stop reading until the worker has finished with the buffer
+		processing = true;
+		updateInterest();
+		
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					handleInput(WORKER_READS);
+					loop.resume(SelectorTransport.this);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Engine is stopping
+			processing = false;
+			close();
+		}
+	}
+	
+	/**
+	 * Handles the received bytes, and anything more which has arrived meanwhile.
+	 * Worker thread only, or the loop thread if there are no workers.
+	 * @param maxReads - Most reads to handle, including the one already in the buffer
+	 */
+	private void handleInput(int maxReads) {
+		try {
+			int read = 0;
+			int reads = 0;
+			
+			do {
+				processInput();
+				
+				if(!conn.isRunning() || ++reads >= maxReads) {
+					break;
+				}
+				
+				try {
+					read = channel.read(in);
+				} catch (IOException e) {
+					read = -1;
+				}
+			} while(read > 0);
+			
+			failed = (read == -1);
+			
+		} catch (ParserException e) {
+			System.out.println("Peer sent malformed message. Disconnecting");
+			failed = true;
+		} catch (IOException e) {
+			System.out.println("Error occured handling message: " + e.getMessage());
+			failed = true;
+		}
+	}
+	
+	private void updateInterest() {
+		if(key == null || !key.isValid()) {
+			return;
+		}
+		
+		key.interestOps((processing ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+	}
+	
+	/**
+	 * Handles every complete message (and any chunk data) in the read buffer, keeping any partial message for next time.
+	 */
+	private void processInput() throws ParserException, IOException {
+		in.flip();
+		
+		int needed = 0;
+		while(true) {
+			if(dataRemaining > 0) {
+				if(!in.hasRemaining()) {
+					break;
+				}
+				
+				// Pass on as much of the chunk data as we have
+				int length = Math.min(dataRemaining, in.remaining());
+				ByteBuffer data = in.duplicate();
+				data.limit(in.position() + length);
+				
+				conn.onData(data);
+				
+				in.position(in.position() + length);
+				dataRemaining -= length;
+				
+				if(dataRemaining == 0) {
+					conn.onDataEnd();
+				}
+				continue;
+			}
+			
+			needed = P2PMessageParser.getReadLength(in);
+			if(needed < 0 || in.remaining() < needed) {
+				break;
+			}
+			
+			ByteArrayInputStream stream = new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), needed);
+			Message msg = P2PMessageParser.readMessage(stream, false);
+			in.position(in.position() + needed);
+			
+			conn.onMessage(msg);
+			
+			if(msg instanceof DataMessage && ((DataMessage)msg).data == null) {
+				dataRemaining = ((DataMessage)msg).dataLength;
+				
+				if(dataRemaining == 0) {
+					conn.onDataEnd();
+				}
+			}
+		}
+		
+		in.compact();
+		
+		if(needed > in.capacity()) {
+			// Grow to fit the next message
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			in.flip();
+			larger.put(in);
+			in = larger;
+		} else if(in.position() == 0 && in.capacity() > READ_BUFFER_SIZE && needed <= READ_BUFFER_SIZE) {
+			// Large message has been handled. Shrink back down.
+			in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		}
+	}
+}
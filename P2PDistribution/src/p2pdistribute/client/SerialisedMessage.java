@@ -0,0 +1,50 @@
+package p2pdistribute.client;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * An outgoing message which has already been serialised into a byte array.
+ * e.g. by {@link p2pdistribute.client.message.P2PMessageParser#serialiseJSONMessage}
+ *
+ * A Data message holding a whole chunk can be tagged with the chunk, so the upload can be cancelled,
+ * 		see {@link #isUpload(int, int, int, int)}.
+ */
+public class SerialisedMessage extends OutgoingMessage {
+	
+	private final byte[] message;
+	
+	// Chunk uploaded by this message, and its size. fileid is -1 if this isn't an upload.
+	private final int fileid;
+	private final int chunkid;
+	private final int chunkSize;
+	
+	public SerialisedMessage(byte[] message) {
+		this(message, -1, -1, 0);
+	}
+	
+	/**
+	 * A serialised Data message uploading the whole of (fileid, chunkid), chunkSize bytes.
+	 */
+	public SerialisedMessage(byte[] message, int fileid, int chunkid, int chunkSize) {
+		this.message = message;
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+		this.chunkSize = chunkSize;
+	}
+	
+	@Override
+	public boolean isUpload(int fileid, int chunkid, int offset, int length) {
+		return this.fileid >= 0 && this.fileid == fileid && this.chunkid == chunkid && offset == 0 && length == chunkSize;
+	}
+
+	@Override
+	public void gather(List<ByteBuffer> buffers, ByteBuffer scratch) {
+		buffers.add(ByteBuffer.wrap(message));
+	}
+
+	@Override
+	public int length() {
+		return message.length;
+	}
+}
@@ -0,0 +1,114 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import p2pdistribute.common.Peer;
+
+/**
+ * Registers with the Swarm Manager and fetches the peer list every {@link #ANNOUNCE_INTERVAL_MS}, on its own thread,
+ * 		so a slow Swarm Manager never holds up the {@link PeerManager}.
+ * 	- The listener is called whenever the peer list changes, or announcing fails.
+ * 	- After a failure nothing more is sent. See {@link #getError()}
+ *
+ * @note Can be used across threads.
+ */
+public class SwarmAnnouncer {
+	
+	// Must be well under the Swarm Manager's REGISTER_TIMEOUT, or we drop off the peer list between announces.
+	public static int ANNOUNCE_INTERVAL_MS = 2000; // TODO Future Task: Settings file
+	
+	private final SwarmManagerConnection smConn;
+	private final byte[] metaHash;
+	private final int listenPort;
+	private final Runnable listener;
+	
+	private final ScheduledExecutorService timer;
+	
+	// Latest peer list. Empty until the first announce.
+	private volatile Peer[] peers;
+	// Set if announcing failed
+	private volatile String error;
+	
+	public SwarmAnnouncer(SwarmManagerConnection smConn, byte[] metaHash, int listenPort, Runnable listener) {
+		this.smConn = smConn;
+		this.metaHash = metaHash;
+		this.listenPort = listenPort;
+		this.listener = listener;
+		
+		peers = new Peer[0];
+		error = null;
+		
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "swarm-announce");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Announces straight away, then every {@link #ANNOUNCE_INTERVAL_MS}. Returns immediately.
+	 */
+	public void start() {
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				announce();
+			}
+		}, 0, ANNOUNCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops announcing. An announce in progress is abandoned.
+	 */
+	public void stop() {
+		timer.shutdownNow();
+	}
+	
+	/**
+	 * Returns the peer list from the last announce.
+	 */
+	public Peer[] getPeers() {
+		return peers;
+	}
+	
+	/**
+	 * Returns why announcing failed, or null if it hasn't.
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	private void announce() {
+		Peer[] latest;
+		
+		try {
+			smConn.register(metaHash, listenPort);
+			
+			latest = smConn.getPeerList(metaHash);
+		} catch (IOException e) {
+			error = "Communication Error with Swarm Manager: " + e.getMessage();
+			timer.shutdown();
+			
+			listener.run();
+			return;
+		}
+		
+		// The Swarm Manager doesn't keep the list in any order
+		boolean changed = !new HashSet<>(Arrays.asList(latest)).equals(new HashSet<>(Arrays.asList(peers)));
+		
+		peers = latest;
+		
+		if(changed) {
+			listener.run();
+		}
+	}
+}
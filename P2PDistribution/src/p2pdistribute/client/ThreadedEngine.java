@@ -0,0 +1,21 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Thread-per-connection networking. Each connection has a read thread and a write thread, 
+ * 		which block on the socket. See {@link ThreadedTransport}.
+ */
+public class ThreadedEngine implements NetworkEngine {
+	
+	@Override
+	public PeerTransport open(PeerConnection conn, Socket sock) throws IOException {
+		return new ThreadedTransport(conn, sock);
+	}
+	
+	@Override
+	public void stop() {
+		// No shared threads
+	}
+}
@@ -0,0 +1,173 @@
+package p2pdistribute.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import p2pdistribute.client.filemanager.ChunkReceiver;
+import p2pdistribute.client.message.DataMessage;
+import p2pdistribute.client.message.Message;
+import p2pdistribute.client.message.P2PMessageParser;
+import p2pdistribute.common.Threads;
+import p2pdistribute.common.p2pmeta.ParserException;
+
+/**
+ * Carries messages for one PeerConnection using blocking IO on two threads:
+ * 	- A read thread, which reads and handles one message at a time (this class).
+ * 	- A write thread, which writes queued messages ({@link PeerConnectionWriteTask}).
+ *
+ * Threads are created with {@link Threads#newThread}, so may be virtual threads.
+ */
+public class ThreadedTransport implements PeerTransport, Runnable {
+	
+	private final PeerConnection conn;
+	private final Socket sock;
+	
+	private Thread readThread;
+	private Thread writeThread;
+	
+	// Chunk data is read off the socket into here, then passed to the PeerConnection
+	private final byte[] slice;
+	
+	public ThreadedTransport(PeerConnection conn, Socket sock) throws IOException {
+		this.conn = conn;
+		this.sock = sock;
+		
+		sock.setSoTimeout(PeerConnection.PEER_SOCKET_TIMEOUT);
+		
+		slice = new byte[ChunkReceiver.SLICE_SIZE];
+		
+		writeThread = Threads.newThread(new PeerConnectionWriteTask(conn.queue, getWritableChannel(), conn.writeStats));
+		readThread = Threads.newThread(this);
+	}
+	
+	@Override
+	public void start() {
+		writeThread.start();
+		readThread.start();
+	}
+	
+	/**
+	 * Runs task straight away, as the write thread is this connection's own.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		task.run();
+	}
+	
+	@Override
+	public void stop() {
+		try {
+			this.sock.shutdownInput();
+		} catch (IOException e) {
+			// Means there is data in the buffer but the connection has terminated.
+			// Nothing to be done here really.
+		}
+	}
+	
+	@Override
+	public boolean isAlive() {
+		return readThread.isAlive();
+	}
+	
+	/**
+	 * The read loop for Peer communication
+	 *
+	 * Behaviour:
+	 * 	1. {@link PeerConnection#onOpen()} (which may advertise our chunks)
+	 *
+	 *  Then, until the PeerConnection is stopped or an error occures:
+	 *  	2. processSocketMessage (read and dispatch 1 message from the socket).
+	 */
+	@Override
+	public void run() {
+		conn.onOpen();
+		
+		while(conn.isRunning()) {
+			if(!processSocketMessage()) {
+				// Error
+				break;
+			}
+		}
+		
+		conn.stop();
+		
+		try {
+			sock.close();
+		} catch (IOException e) {
+			System.err.println("IOException on peer socket close");
+		}
+		
+		conn.onClose();
+		
+		try {
+			writeThread.join();
+		} catch (InterruptedException e) {
+			// Unable to join writeThread...
+		}
+	}
+	
+	private boolean processSocketMessage() {
+		if(!writeThread.isAlive()) {
+			// If write thread has died, there's no point continuing.
+			return false;
+		}
+		
+		Message msg;
+		try {
+			// Leave chunk data on the stream, it is read by readData
+			msg = P2PMessageParser.readMessage(sock.getInputStream(), false);
+		} catch (IOException e) {
+			return false;
+		} catch (ParserException e) {
+			System.out.println("Peer sent malformed message. Disconnecting");
+			return false;
+		}
+		
+		try {
+			conn.onMessage(msg);
+			
+			if(msg instanceof DataMessage && ((DataMessage)msg).data == null) {
+				readData(((DataMessage)msg).dataLength);
+			}
+		} catch(IOException e) {
+			System.out.println("Error occured handling message: " + e.getMessage());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reads length bytes of chunk data from the socket, passing it to the PeerConnection as it arrives.
+	 */
+	private void readData(int length) throws IOException {
+		InputStream stream = sock.getInputStream();
+		
+		while(length > 0) {
+			int read = stream.read(slice, 0, Math.min(length, slice.length));
+			if(read == -1) {
+				throw new IOException("Reached EOF");
+			}
+			
+			conn.onData(ByteBuffer.wrap(slice, 0, read));
+			length -= read;
+		}
+		
+		conn.onDataEnd();
+	}
+	
+	private WritableByteChannel getWritableChannel() throws IOException {
+		SocketChannel channel = sock.getChannel();
+		if(channel != null) {
+			return channel;
+		}
+		
+		// Socket was not created from a channel. Uploads will still work, but not zero-copy.
+		return Channels.newChannel(sock.getOutputStream());
+	}
+}
@@ -0,0 +1,61 @@
+package p2pdistribute.client;
+
+/**
+ * Estimates how long a remote peer will take to send us a chunk, from how its previous chunks arrived.
+ *
+ * 	- Latency: from the peer being able to start sending a chunk (see {@link RequestWindow#getHeadStart()})
+ * 		to the first of its data arriving. About one round trip when nothing else was queued.
+ * 	- Throughput: how fast a chunk's data arrives once it has started.
+ *
+ * Both are moving averages, weighted towards recent chunks, so follow changes in the peer's speed.
+ *
+ * @note Can be used across threads.
+ */
+public class TransferEstimator {
+
+	// Weight of each new measurement in the averages
+	private static final double WEIGHT = 0.25;
+
+	// Negative until first measured
+	private double latencyNanos = -1;
+	private double nanosPerByte = -1;
+
+	/**
+	 * Records the time from a chunk's request reaching the head of the window to its first data arriving.
+	 */
+	public synchronized void addLatency(long nanos) {
+		latencyNanos = (latencyNanos < 0) ? nanos : (1 - WEIGHT) * latencyNanos + WEIGHT * nanos;
+	}
+
+	/**
+	 * Records bytes of chunk data arriving over nanos.
+	 */
+	public synchronized void addTransfer(int bytes, long nanos) {
+		if(bytes <= 0) {
+			return;
+		}
+		double sample = (double)nanos / bytes;
+
+		nanosPerByte = (nanosPerByte < 0) ? sample : (1 - WEIGHT) * nanosPerByte + WEIGHT * sample;
+	}
+
+	/**
+	 * Returns the average time from a request reaching the head of the window to its first data arriving.
+	 * @return -1 if not measured yet.
+	 */
+	public synchronized long getLatencyNanos() {
+		return (long)latencyNanos;
+	}
+
+	/**
+	 * Returns the expected nanoseconds to receive a chunk of bytes, from its request reaching the head of the window.
+	 * @return -1 if the peer has not sent us a whole chunk yet.
+	 */
+	public synchronized long estimateNanos(int bytes) {
+		if(latencyNanos < 0 || nanosPerByte < 0) {
+			return -1;
+		}
+
+		return (long)(latencyNanos + nanosPerByte * bytes);
+	}
+}
@@ -1,116 +1,325 @@
 package p2pdistribute.client.filemanager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Tracks and maintains the Status of all chunks.
- * 
- * @note Can be used across threads.
+ *
+ * Each file's chunk statuses are held in {@link AtomicBitset}s (see {@link ChunkRow}), and changed with
+ * 		compare-and-set rather than under a lock. Running totals are kept as chunks change, per file and overall,
+ * 		so {@link #complete()} and {@link #numChunksComplete()} do not need to look at every chunk.
+ *
+ * Each file has a priority. Chunks of higher priority files are picked first, and files with priority SKIP are
+ * 		never picked, nor needed for {@link #complete()}. Any of their chunks we do have can still be uploaded.
+ *
+ * @note Can be used across threads. Only {@link #pickUsefulChunk} and the availability counts share a lock.
  *
  */
 public class AcquisitionStatus {
-
-	private Status[][] status;
-	private List<ChunkStatusChangeHandler> handlers;
 	
-	private Random random; // Used to select a random chunk
+	// File priorities. Higher priority files are downloaded first.
+	public static final int SKIP = 0;
+	public static final int NORMAL = 1;
+	
+	// Once this few chunks are missing, chunks already being downloaded may also be requested from other peers.
+	public static int ENDGAME_CHUNKS = 20; // TODO Future Task: Settings file
+	
+	private final AtomicReferenceArray<ChunkRow> rows;
+	private final List<ChunkStatusChangeHandler> handlers;
+	
+	// Number of COMPLETE chunks, total number of chunks and number of files whose chunks are not yet known.
+	private final AtomicInteger numComplete;
+	private final AtomicInteger numChunks;
+	private final AtomicInteger missingRows;
+	
+	// Priority of each file, and the different priorities wanted, highest first. Replaced rather than changed.
+	private volatile int[] priorities;
+	private volatile int[] tiers;
+	
+	// Chooses which useful chunk pickUsefulChunk returns
+	private ChunkPicker picker;
+	
+	// Number of connected peers which have each chunk. Only maintained for our own status, see addAvailability
+	private int[][] availability;
+	
+	// Reused by every pickUsefulChunk
+	private final UsefulChunks useful;
 	
 	/**
 	 * Constructor to use if only know how many files there will be
-	 * 
+	 *
 	 * {@link #setStatus(int, Status[])} Should be used to fill out the chunk statuses for each file.
 	 */
 	public AcquisitionStatus(int numFiles) {
-		status = new Status[numFiles][];
+		rows = new AtomicReferenceArray<>(numFiles);
+		handlers = new CopyOnWriteArrayList<>();
 		
-		handlers = new LinkedList<>();
+		numComplete = new AtomicInteger(0);
+		numChunks = new AtomicInteger(0);
+		missingRows = new AtomicInteger(numFiles);
 		
-		random = new Random();
+		priorities = new int[numFiles];
+		Arrays.fill(priorities, NORMAL);
+		tiers = new int[] { NORMAL };
+		
+		picker = new RarestFirstChunkPicker();
+		availability = new int[numFiles][];
+		useful = new UsefulChunks(this, numFiles);
 	}
 	
 	/**
-	 * Constructor which will copy the number of files and number of chunks in each file 
+	 * Constructor which will copy the number of files and number of chunks in each file
 	 * 		from a pre-existing AcquisitionStatus object.
-	 * 
+	 *
 	 * Will set every initial status to UNKNOWN
 	 * @param copyStatus - The AcquisitionStatus to copy.
 	 */
 	public AcquisitionStatus(AcquisitionStatus copyStatus) {
-		status = new Status[copyStatus.status.length][];
+		this(copyStatus.rows.length());
 		
-		for(int i=0; i<copyStatus.status.length; i++) {
-			status[i] = new Status[copyStatus.status[i].length];
+		for(int i=0; i<rows.length(); i++) {
+			ChunkRow row = copyStatus.rows.get(i);
 			
-			for(int j=0; j<status[i].length; j++) {
-				status[i][j] = Status.UNKNOWN;
+			if(row != null) {
+				setRow(i, new ChunkRow(row.size));
 			}
 		}
-		
-		handlers = new LinkedList<>();
-		random = new Random();
 	}
 	
 	/**
 	 * Register a new ChunkStatusChangeHandler
-	 * 
+	 *
 	 * @note will be notified when a Chunk has been completed.
 	 */
-	public synchronized void registerHandler(ChunkStatusChangeHandler handler) {
+	public void registerHandler(ChunkStatusChangeHandler handler) {
 		handlers.add(handler);
 	}
 	
-	public synchronized Status getStatus(int fileid, int chunkid) {
+	/**
+	 * Sets the strategy used by {@link #pickUsefulChunk(AcquisitionStatus)}. Rarest first by default.
+	 */
+	public synchronized void setPicker(ChunkPicker picker) {
+		this.picker = picker;
+	}
+	
+	/**
+	 * Sets the priority of fileid: SKIP, NORMAL or higher. Chunks of higher priority files are picked first.
+	 * @note Should be set before the file is prepared, see {@link FileManager#setPriority(int, int)}
+	 */
+	public synchronized void setPriority(int fileid, int priority) {
+		if(priority < SKIP) {
+			throw new IllegalArgumentException("Invalid priority: " + priority);
+		}
+		
+		int[] newPriorities = priorities.clone();
+		newPriorities[fileid] = priority;
+		
+		// Distinct wanted priorities, highest first
+		int[] sorted = newPriorities.clone();
+		Arrays.sort(sorted);
+		
+		int[] newTiers = new int[sorted.length];
+		int numTiers = 0;
+		for(int i=sorted.length-1; i>=0; i--) {
+			if(sorted[i] != SKIP && (numTiers == 0 || newTiers[numTiers-1] != sorted[i])) {
+				newTiers[numTiers++] = sorted[i];
+			}
+		}
+		
+		priorities = newPriorities;
+		tiers = Arrays.copyOf(newTiers, numTiers);
+	}
+	
+	/**
+	 * Returns the priority of fileid, or SKIP if fileid does not exist.
+	 */
+	public int getPriority(int fileid) {
+		int[] current = priorities;
+		if(fileid < 0 || fileid >= current.length) {
+			return SKIP;
+		}
+		return current[fileid];
+	}
+	
+	/**
+	 * Records that one more connected peer has (fileid, chunkid).
+	 * Should be called once for each chunk a peer tells us it has, and {@link #removeAvailability} for each
+	 * 		of those chunks once it disconnects.
+	 */
+	public synchronized void addAvailability(int fileid, int chunkid) {
+		ensureAvailabilitySize(fileid, chunkid);
+		
+		availability[fileid][chunkid]++;
+	}
+	
+	/**
+	 * Records that a peer which had (fileid, chunkid) has disconnected.
+	 */
+	public synchronized void removeAvailability(int fileid, int chunkid) {
+		ensureAvailabilitySize(fileid, chunkid);
+		
+		if(availability[fileid][chunkid] > 0) {
+			availability[fileid][chunkid]--;
+		}
+	}
+	
+	/**
+	 * Records that a peer has disconnected, calling {@link #removeAvailability(int, int)} for each of its chunks.
+	 */
+	public synchronized void removeAvailability(PeerChunks peer) {
+		for(int i=0; i<peer.numFiles() && i<availability.length; i++) {
+			for(int w=0; w<peer.numWords(i); w++) {
+				long bits = peer.getWord(i, w);
+				
+				while(bits != 0) {
+					removeAvailability(i, (w << 6) + Long.numberOfTrailingZeros(bits));
+					bits &= bits - 1;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of connected peers which have (fileid, chunkid)
+	 */
+	public synchronized int getAvailability(int fileid, int chunkid) {
+		return availabilityOf(fileid, chunkid);
+	}
+	
+	/**
+	 * As {@link #getAvailability(int, int)}. Lock must be held.
+	 */
+	int availabilityOf(int fileid, int chunkid) {
+		if(fileid < 0 || fileid >= availability.length || availability[fileid] == null || chunkid >= availability[fileid].length) {
+			return 0;
+		}
+		return availability[fileid][chunkid];
+	}
+	
+	/**
+	 * Returns the chunks (64 * word) to (64 * word + 63) of fileid which are COMPLETE or INPROGRESS, one bit each.
+	 */
+	long getUnavailableWord(int fileid, int word) {
+		ChunkRow row = rows.get(fileid);
+		
+		return row.complete.getWord(word) | row.inProgress.getWord(word);
+	}
+	
+	/**
+	 * @return null if fileid/chunkid do not exist
+	 */
+	public Status getStatus(int fileid, int chunkid) {
+		ChunkRow row = getRow(fileid);
+		
 		// Bounds check
-		if(fileid < 0 || chunkid < 0 || fileid >= status.length || chunkid >= status[fileid].length) {
+		if(row == null || chunkid < 0 || chunkid >= row.size) {
 			return null;
 		}
-		return this.status[fileid][chunkid];
+		return row.get(chunkid);
 	}
 	
 	
 	/**
 	 * Set the status of a particular chunk ID.
+	 *
+	 * @note Chunks outside of the file's current number of chunks will grow the file.
+	 * 		This is not safe alongside other changes to the same file, so should only be done while setting up.
 	 * @param fileid
 	 * @param chunkid
 	 * @param status
 	 */
 	public void setStatus(int fileid, int chunkid, Status status) {
-		Status old;
-		synchronized(this) {
-			ensureSize(fileid, chunkid);
-			
-			old = this.status[fileid][chunkid];
-			
-			
-			this.status[fileid][chunkid] = status;
+		ChunkRow row = getRow(fileid);
+		if(row == null || chunkid >= row.size) {
+			row = growRow(fileid, chunkid + 1);
 		}
-
-		if(status == Status.COMPLETE && old != Status.UNKNOWN) {
+		
+		boolean wasKnown = row.known.get(chunkid);
+		
+		if(set(row, chunkid, status) && wasKnown) {
 			chunkComplete(fileid, chunkid);
 		}
 	}
+	
 	/**
 	 * Sets the status for every chunk in a particular File.
 	 * @param fileid
 	 * @param chunkStatuses
 	 */
-	public synchronized void setStatus(int fileid, Status[] chunkStatuses) {
-		this.status[fileid] = chunkStatuses;
+	public void setStatus(int fileid, Status[] chunkStatuses) {
+		ChunkRow row = new ChunkRow(chunkStatuses.length);
+		
+		for(int i=0; i<chunkStatuses.length; i++) {
+			if(chunkStatuses[i] != null) {
+				set(row, i, chunkStatuses[i]);
+			}
+		}
+		
+		setRow(fileid, row);
 	}
-
+	
+	/**
+	 * Moves (fileid, chunkid) from INPROGRESS back to INCOMPLETE, e.g. once the peer it was requested from has gone.
+	 * Does nothing if the chunk has been completed (or released) in the meantime.
+	 * @return true if the chunk was INPROGRESS
+	 */
+	public boolean releaseChunk(int fileid, int chunkid) {
+		ChunkRow row = getRow(fileid);
+		if(row == null || chunkid < 0 || chunkid >= row.size) {
+			return false;
+		}
+		
+		return row.inProgress.clear(chunkid);
+	}
+	
+	/**
+	 * Moves (fileid, chunkid) from INCOMPLETE to INPROGRESS without picking it, e.g. when more blocks of a chunk
+	 * 		already being downloaded in blocks are requested. Does nothing if the chunk is COMPLETE.
+	 * @return true if the chunk was INCOMPLETE
+	 */
+	public boolean reserveChunk(int fileid, int chunkid) {
+		ChunkRow row = getRow(fileid);
+		if(row == null || chunkid < 0 || chunkid >= row.size || row.complete.get(chunkid)) {
+			return false;
+		}
+		
+		return row.inProgress.set(chunkid);
+	}
+	
 	/**
-	 * Returns the total number of chunks that are complete
+	 * Returns the number of chunks at the start of fileid which are all COMPLETE.
+	 * i.e. the chunkid of the first chunk not COMPLETE, or the number of chunks if every chunk is COMPLETE.
 	 */
-	public synchronized int numChunksComplete() {
+	public int getContiguousChunks(int fileid) {
+		ChunkRow row = getRow(fileid);
+		
+		return row == null ? 0 : row.contiguous;
+	}
+	
+	/**
+	 * Returns the total number of chunks that are complete, including those of skipped files.
+	 */
+	public int numChunksComplete() {
+		return numComplete.get();
+	}
+	
+	/**
+	 * Returns the number of chunks in files which are not skipped.
+	 */
+	public int numWantedChunks() {
+		int[] current = priorities;
 		int total = 0;
 		
-		for(Status[] chunkStatuses : status) {
-			for(Status status : chunkStatuses) {
-				if(status.equals(Status.COMPLETE)) {
-					total++;
-				}
+		for(int i=0; i<current.length; i++) {
+			ChunkRow row = rows.get(i);
+			if(current[i] != SKIP && row != null) {
+				total += row.size;
 			}
 		}
 		
@@ -118,17 +327,36 @@ public class AcquisitionStatus {
 	}
 	
 	/**
-	 * Returns true if every chunk has finished downloading.
+	 * Returns the number of complete chunks in files which are not skipped.
 	 */
-	public synchronized boolean complete() {
-		for(Status[] chunkStatuses : status) {
-			if(chunkStatuses == null) {
-				return false;
+	public int numWantedChunksComplete() {
+		int[] current = priorities;
+		int total = 0;
+		
+		for(int i=0; i<current.length; i++) {
+			ChunkRow row = rows.get(i);
+			if(current[i] != SKIP && row != null) {
+				total += row.numComplete.get();
 			}
-			for(Status stat : chunkStatuses) {
-				if(stat == null || (!stat.equals(Status.COMPLETE))) {
-					return false;
-				}
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Returns true if every chunk of every file which is not skipped has finished downloading.
+	 */
+	public boolean complete() {
+		if(missingRows.get() == 0 && numComplete.get() == numChunks.get()) {
+			return true;
+		}
+		
+		int[] current = priorities;
+		for(int i=0; i<current.length; i++) {
+			ChunkRow row = rows.get(i);
+			
+			if(current[i] != SKIP && (row == null || row.numComplete.get() != row.size)) {
+				return false;
 			}
 		}
 		
@@ -136,63 +364,180 @@ public class AcquisitionStatus {
 	}
 	
 	/**
-	 * Selects a chunk that peer possesses which we do not.
+	 * Selects a chunk that peer possesses which we do not, using the {@link ChunkPicker}.
 	 * The chunk picked is set to be INPROGRESS and no other peer can request this chunk.
+	 * 
+	 * No list of candidates is built: the picker reads the useful chunks a word at a time, see {@link UsefulChunks}.
+	 * The picker is given the files of each priority in turn, highest first, until it finds a chunk.
 	 * @param peer
 	 * @return [fileid, chunkid] if a chunk is found.
 	 * @return null if peer status is not compatible with ours (incompatible number of files / chunks)
 	 * @return null if no useful chunk is found
 	 */
-	public synchronized int[] pickUsefulChunk(AcquisitionStatus peer) {
+	public synchronized int[] pickUsefulChunk(PeerChunks peer) {
 		
-		if(peer.status.length != status.length) {
+		if(peer.numFiles() != rows.length()) {
 			return null;
 		}
 		
-		// We want to gather a list of all possible IDs, then pick a random one from that list.
+		for(int i=0; i<rows.length(); i++) {
+			ChunkRow row = rows.get(i);
+			
+			if(row == null || row.size != peer.numChunks(i)) {
+				return null;
+			}
+		}
 		
-		// LinkedList poor for the random access we do at the end, but we need it for the fast insertion.
-		// TreeList could be a good route, but requires another library (apache commons collections).
-		List<int[]> chunks = new LinkedList<>();
+		useful.reset(peer);
 		
-		for(int i=0; i<status.length; i++) {
-			Status[] ourRow = status[i];
-			Status[] theirRow = peer.status[i];
+		for(int tier : tiers) {
+			useful.setPriority(tier, priorities);
 			
-			if(theirRow == null || (ourRow.length != theirRow.length)) {
-				return null;
+			while(true) {
+				long position = picker.pick(useful);
+				if(position < 0) {
+					break;
+				}
+				
+				int[] chunk = useful.getChunk(position);
+				
+				// Reserve the chunk. Fails if it was completed or reserved since we looked, in which case pick again.
+				if(reserve(rows.get(chunk[0]), chunk[1])) {
+					return chunk;
+				}
 			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Picks a chunk as {@link #pickUsefulChunk(PeerChunks)} does, then also reserves the chunks following it in the
+	 * 		same file, while peer has them and they are INCOMPLETE, so they can be requested as one range.
+	 * @param maxChunks - Most chunks to reserve, including the first
+	 * @return [fileid, first chunkid, number of chunks], or null if no useful chunk is found
+	 */
+	public synchronized int[] pickUsefulRange(PeerChunks peer, int maxChunks) {
+		int[] first = pickUsefulChunk(peer);
+		if(first == null) {
+			return null;
+		}
+		
+		ChunkRow row = rows.get(first[0]);
+		int count = 1;
+		
+		while(count < maxChunks) {
+			int chunkid = first[1] + count;
 			
-			for(int j=0; j<ourRow.length; j++) {
-				if(theirRow[j] == Status.COMPLETE) {
-					if(ourRow[j] != Status.COMPLETE && ourRow[j] != Status.INPROGRESS) {
-						chunks.add(new int[] { i, j });
-					}
+			if(chunkid >= row.size || !peer.has(first[0], chunkid) || !row.known.get(chunkid) || !reserve(row, chunkid)) {
+				break;
+			}
+			count++;
+		}
+		
+		return new int[] { first[0], first[1], count };
+	}
+	
+	/**
+	 * Endgame: once no more than {@link #ENDGAME_CHUNKS} chunks we want are missing, returns the INPROGRESS chunks
+	 * 		peer has. These may be requested from peer as well as from the peer they are reserved for,
+	 * 		so one slow peer does not hold up the end of the download. The copy which starts arriving first is kept,
+	 * 		so this only helps with chunks the slow peer has not started sending.
+	 * @return [fileid, chunkid] for each chunk. Empty if not in the endgame, or peer has none of them.
+	 */
+	public List<int[]> getEndgameChunks(PeerChunks peer) {
+		List<int[]> chunks = new ArrayList<>();
+		
+		if(peer.numFiles() != rows.length() || numWantedChunks() - numWantedChunksComplete() > ENDGAME_CHUNKS) {
+			return chunks;
+		}
+		
+		for(int i=0; i<rows.length(); i++) {
+			ChunkRow row = rows.get(i);
+			if(row == null || getPriority(i) == SKIP || peer.numChunks(i) != row.size) {
+				continue;
+			}
+			
+			for(int w=0; w<row.inProgress.numWords(); w++) {
+				long bits = row.inProgress.getWord(w) & ~row.complete.getWord(w) & peer.getWord(i, w);
+				
+				while(bits != 0) {
+					chunks.add(new int[] { i, (w << 6) + Long.numberOfTrailingZeros(bits) });
+					bits &= bits - 1;
 				}
 			}
 		}
 		
-		if(chunks.size() == 0) {
+		return chunks;
+	}
+	
+	/**
+	 * As {@link #pickUsefulChunk(PeerChunks)}, for a peer whose chunks are held in an AcquisitionStatus.
+	 */
+	public int[] pickUsefulChunk(AcquisitionStatus peer) {
+		if(peer.rows.length() != rows.length()) {
 			return null;
 		}
 		
-		int index = random.nextInt(chunks.size());
-		int[] chunk = chunks.get(index);
+		PeerChunks chunks = new PeerChunks(peer.getChunkCounts());
+		for(int[] chunk : peer.getCompleteFileChunkIDs()) {
+			chunks.add(chunk[0], chunk[1]);
+		}
 		
-		status[chunk[0]][chunk[1]] = Status.INPROGRESS;
-		return chunk;
+		return pickUsefulChunk(chunks);
 	}
 	
-	public synchronized int[][] getCompleteFileChunkIDs() {
-		return getStatusFileChunkIDs(Status.COMPLETE);
+	/**
+	 * Returns the number of chunks in each file
+	 */
+	public int[] getChunkCounts() {
+		int[] counts = new int[rows.length()];
+		
+		for(int i=0; i<counts.length; i++) {
+			ChunkRow row = rows.get(i);
+			counts[i] = row == null ? 0 : row.size;
+		}
+		
+		return counts;
 	}
-	private int[][] getStatusFileChunkIDs(Status state) {
+	
+	/**
+	 * Returns one bitfield per file, with the bit for each COMPLETE chunk set.
+	 * Bit (chunkid % 8) of byte (chunkid / 8), most significant bit first.
+	 */
+	public byte[][] getCompleteBitfields() {
+		byte[][] bitfields = new byte[rows.length()][];
+		
+		for(int i=0; i<bitfields.length; i++) {
+			ChunkRow row = rows.get(i);
+			int size = row == null ? 0 : row.size;
+			bitfields[i] = new byte[(size + 7) / 8];
+			
+			for(int j=0; j<size; j++) {
+				if(row.complete.get(j)) {
+					bitfields[i][j >>> 3] |= 0x80 >>> (j & 7);
+				}
+			}
+		}
+		
+		return bitfields;
+	}
+	
+	public int[][] getCompleteFileChunkIDs() {
 		LinkedList<int[]> list = new LinkedList<>();
 		
-		for(int i=0; i<status.length; i++) {
-			for(int j=0; j<status[i].length; j++) {
-				if(status[i][j] == state) {
-					list.add(new int[] { i, j});
+		for(int i=0; i<rows.length(); i++) {
+			ChunkRow row = rows.get(i);
+			if(row == null) {
+				continue;
+			}
+			
+			for(int w=0; w<row.complete.numWords(); w++) {
+				long bits = row.complete.getWord(w);
+				
+				while(bits != 0) {
+					list.add(new int[] { i, (w << 6) + Long.numberOfTrailingZeros(bits) });
+					bits &= bits - 1;
 				}
 			}
 		}
@@ -200,26 +545,192 @@ public class AcquisitionStatus {
 		return list.toArray(new int[list.size()][]);
 	}
 	
-	private synchronized void chunkComplete(int fileid, int chunkid) {
+	private void chunkComplete(int fileid, int chunkid) {
+		// Handlers are called without holding any lock, as they may log or queue messages
 		for(ChunkStatusChangeHandler handler : handlers) {
 			
 			handler.onChunkComplete(fileid, chunkid);
 		}
 	}
-
-	private void ensureSize(int fileid, int chunkid) {
+	
+	private ChunkRow getRow(int fileid) {
+		if(fileid < 0 || fileid >= rows.length()) {
+			return null;
+		}
+		return rows.get(fileid);
+	}
+	
+	/**
+	 * Moves chunkid of row to status, keeping the running totals up to date.
+	 *
+	 * The complete bit is set before the in progress bit is cleared (and the reverse when un-completing), so a
+	 * 		chunk changing between COMPLETE and INPROGRESS is never seen as INCOMPLETE, and so never picked.
+	 * @return true if the chunk became COMPLETE
+	 */
+	private boolean set(ChunkRow row, int chunkid, Status status) {
+		boolean completed = false;
 		
-		if(this.status[fileid] == null || this.status[fileid].length <= chunkid) {
-			Status[] old = this.status[fileid];
-			
-			this.status[fileid] = new Status[chunkid + 1];
+		switch(status) {
+		case COMPLETE:
+			row.known.set(chunkid);
+			completed = row.complete.set(chunkid);
+			if(completed) {
+				numComplete.incrementAndGet();
+				row.numComplete.incrementAndGet();
+				row.updateContiguous(chunkid);
+			}
+			row.inProgress.clear(chunkid);
+			break;
+		case INPROGRESS:
+			row.known.set(chunkid);
+			row.inProgress.set(chunkid);
+			uncomplete(row, chunkid);
+			break;
+		case INCOMPLETE:
+			row.known.set(chunkid);
+			uncomplete(row, chunkid);
+			row.inProgress.clear(chunkid);
+			break;
+		case UNKNOWN:
+			uncomplete(row, chunkid);
+			row.inProgress.clear(chunkid);
+			row.known.clear(chunkid);
+			break;
+		}
+		
+		return completed;
+	}
+	
+	private void uncomplete(ChunkRow row, int chunkid) {
+		if(row.complete.clear(chunkid)) {
+			numComplete.decrementAndGet();
+			row.numComplete.decrementAndGet();
+			row.updateContiguous(chunkid);
+		}
+	}
+	
+	/**
+	 * Moves chunkid of row to INPROGRESS, if it is neither COMPLETE nor already INPROGRESS.
+	 */
+	private boolean reserve(ChunkRow row, int chunkid) {
+		if(!row.inProgress.set(chunkid)) {
+			return false;
+		}
+		
+		if(row.complete.get(chunkid)) {
+			// Completed while we were picking it
+			row.inProgress.clear(chunkid);
+			return false;
+		}
+		
+		row.known.set(chunkid);
+		return true;
+	}
+	
+	/**
+	 * Replaces the row of fileid, keeping the running totals up to date.
+	 * The COMPLETE chunks of row have already been counted as they were set.
+	 *
+	 * @note Changes made to the old row while it is being replaced may be lost. Only done while setting up.
+	 */
+	private synchronized void setRow(int fileid, ChunkRow row) {
+		ChunkRow old = rows.getAndSet(fileid, row);
+		
+		if(old == null) {
+			missingRows.decrementAndGet();
+		} else {
+			numChunks.addAndGet(-old.size);
+			numComplete.addAndGet(-old.numComplete.get());
+		}
+		
+		numChunks.addAndGet(row.size);
+	}
+	
+	/**
+	 * Replaces the row of fileid with a copy at least size chunks long.
+	 */
+	private synchronized ChunkRow growRow(int fileid, int size) {
+		ChunkRow old = rows.get(fileid);
+		if(old != null && old.size >= size) {
+			return old;
+		}
+		
+		ChunkRow row = new ChunkRow(size);
+		if(old != null) {
+			for(int j=0; j<old.size; j++) {
+				set(row, j, old.get(j));
+			}
+		}
+		
+		setRow(fileid, row);
+		return row;
+	}
+	
+	private void ensureAvailabilitySize(int fileid, int chunkid) {
+		int[] old = availability[fileid];
+		
+		if(old == null || old.length <= chunkid) {
+			ChunkRow row = rows.get(fileid);
+			int length = Math.max(chunkid + 1, row == null ? 0 : row.size);
 			
+			availability[fileid] = new int[length];
 			if(old != null) {
-				int i=0;
-				for(Status stat : old) {
-					this.status[fileid][i++] = stat;
-				}
+				System.arraycopy(old, 0, availability[fileid], 0, old.length);
+			}
+		}
+	}
+	
+	/**
+	 * Status of every chunk in one file, one bit per chunk in each bitset:
+	 * 	- complete: COMPLETE
+	 * 	- inProgress: INPROGRESS (unless complete is also set)
+	 * 	- known: anything but UNKNOWN. Clear, with the others clear, means UNKNOWN.
+	 */
+	private static class ChunkRow {
+		final int size;
+		final AtomicBitset complete;
+		final AtomicBitset inProgress;
+		final AtomicBitset known;
+		
+		// Number of set bits in complete
+		final AtomicInteger numComplete;
+		
+		// Number of COMPLETE chunks at the start of the file. Changed while holding this row's lock.
+		volatile int contiguous;
+		
+		ChunkRow(int size) {
+			this.size = size;
+			complete = new AtomicBitset(size);
+			inProgress = new AtomicBitset(size);
+			known = new AtomicBitset(size);
+			numComplete = new AtomicInteger(0);
+		}
+		
+		Status get(int chunkid) {
+			if(complete.get(chunkid)) {
+				return Status.COMPLETE;
+			} else if(inProgress.get(chunkid)) {
+				return Status.INPROGRESS;
+			} else if(known.get(chunkid)) {
+				return Status.INCOMPLETE;
+			}
+			return Status.UNKNOWN;
+		}
+		
+		/**
+		 * Moves {@link #contiguous} on (or back) after chunkid was completed (or un-completed).
+		 * Only done when a chunk changes, so the lock is rarely contended.
+		 */
+		synchronized void updateContiguous(int chunkid) {
+			if(!complete.get(chunkid) && chunkid < contiguous) {
+				contiguous = chunkid;
+			}
+			
+			int first = contiguous;
+			while(first < size && complete.get(first)) {
+				first++;
 			}
+			contiguous = first;
 		}
 	}
 }
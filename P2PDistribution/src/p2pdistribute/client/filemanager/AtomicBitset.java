@@ -0,0 +1,85 @@
+package p2pdistribute.client.filemanager;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size set of bits which can be set and cleared from any thread without locking.
+ *
+ * Bit i is bit (i % 64) of word (i / 64). Each change is a compare-and-set of the word holding the bit,
+ * 		and reports whether the bit actually changed, so callers can keep counts of set bits exactly.
+ */
+public class AtomicBitset {
+	
+	private final AtomicLongArray words;
+	private final int size;
+	
+	public AtomicBitset(int size) {
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+	
+	/**
+	 * Returns the number of bits
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public boolean get(int index) {
+		return (words.get(index >>> 6) & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Sets bit index.
+	 * @return true if the bit was clear before this call.
+	 */
+	public boolean set(int index) {
+		int word = index >>> 6;
+		long bit = 1L << index;
+		
+		while(true) {
+			long old = words.get(word);
+			if((old & bit) != 0) {
+				return false;
+			}
+			
+			if(words.compareAndSet(word, old, old | bit)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Clears bit index.
+	 * @return true if the bit was set before this call.
+	 */
+	public boolean clear(int index) {
+		int word = index >>> 6;
+		long bit = 1L << index;
+		
+		while(true) {
+			long old = words.get(word);
+			if((old & bit) == 0) {
+				return false;
+			}
+			
+			if(words.compareAndSet(word, old, old & ~bit)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of 64 bit words holding the bits.
+	 */
+	public int numWords() {
+		return words.length();
+	}
+	
+	/**
+	 * Returns bits (64 * word) to (64 * word + 63). Bits past {@link #size()} are always clear.
+	 */
+	public long getWord(int word) {
+		return words.get(word);
+	}
+}
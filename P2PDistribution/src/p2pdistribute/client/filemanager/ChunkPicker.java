@@ -0,0 +1,22 @@
+package p2pdistribute.client.filemanager;
+
+/**
+ * Strategy used by {@link AcquisitionStatus#pickUsefulChunk} to choose which chunk to request next.
+ * 
+ * 	- {@link RandomChunkPicker}: any useful chunk, at random.
+ * 	- {@link RarestFirstChunkPicker}: the useful chunk fewest connected peers have.
+ * 	- {@link StreamingChunkPicker}: the first useful chunk near the start of the file, for reading while downloading.
+ * 
+ * Pickers should read only as many words of useful as they need, rather than every useful chunk,
+ * 		so picking stays cheap for files of millions of chunks.
+ * 
+ * @note Called with the AcquisitionStatus locked, so one picker is only used by one thread at a time.
+ */
+public interface ChunkPicker {
+	
+	/**
+	 * Chooses one of the useful chunks to request.
+	 * @return the position of the chunk within useful, or -1 if there are no useful chunks.
+	 */
+	public long pick(UsefulChunks useful);
+}
@@ -0,0 +1,254 @@
+package p2pdistribute.client.filemanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Streams received chunk data to disk without holding the whole chunk in memory.
+ *
+ * Data is passed in as it is read off the socket, in slices of any size (typically at most {@link #SLICE_SIZE} bytes).
+ * 		Each slice updates an incremental digest and is written at its offset within the chunk.
+ * 		The chunk is only marked COMPLETE if the final digest matches the chunk hash.
+ *
+ * One ChunkReceiver should be used per connection. Memory use is constant regardless of chunk size.
+ *
+ * Chunks which are already complete, or are being received by another connection, are read and discarded.
+ * 		So of several copies of a chunk (e.g. in the endgame) the first to start arriving is kept, not the first to finish.
+ *
+ * Blocks of a chunk (see {@link FileManager#BLOCK_SIZE}) can be received too. They are written without being hashed,
+ * 		and the chunk is verified once all of its blocks have been written, see {@link FileManager#endBlockWrite}.
+ *
+ * Usage: {@link #begin}, any number of {@link #update}, then {@link #finish}.
+ * 		Or for each Data message (frame) of a chunk: {@link #beginFrame}, any number of {@link #update}, then {@link #endFrame}.
+ * 		For a block, call {@link #beginBlock} before the block's first frame.
+ */
+public class ChunkReceiver {
+	
+	// Suggested amount of chunk data to read off the socket at once.
+	public static final int SLICE_SIZE = 64 * 1024;
+	
+	private final FileManager files;
+	private final MessageDigest digest;
+	
+	private int fileid;
+	private int chunkid;
+	private int offset;
+	private int remaining;
+	
+	// Size of the chunk (or block) being received. Bytes received so far is size - remaining
+	private int size;
+	
+	// Position within the chunk of the first byte being received. 0 unless receiving a block.
+	private int start;
+	private boolean block;
+	
+	// True between begin and finish/abort
+	private boolean active;
+	
+	// False if the data being received is to be read and thrown away. e.g. chunk already complete
+	private boolean writing;
+	
+	// True if the data is being thrown away because the chunk is complete or being received from another peer
+	private boolean duplicate;
+	
+	public ChunkReceiver(FileManager files) {
+		this.files = files;
+		this.digest = files.newDigest();
+	}
+	
+	/**
+	 * Starts receiving length bytes of data for (fileid, chunkid).
+	 * If the chunk is already complete, or is being received from another peer, the data will be discarded.
+	 * @throws IOException thrown if fileid/chunkid are invalid.
+	 */
+	public void begin(int fileid, int chunkid, int length) throws IOException {
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+		this.offset = 0;
+		this.remaining = length;
+		this.size = length;
+		this.start = 0;
+		this.block = false;
+		this.active = true;
+		
+		digest.reset();
+		
+		// Duplicates are expected (e.g. the same chunk requested from several peers in the endgame), so are discarded quietly
+		writing = files.beginChunkWrite(fileid, chunkid);
+		duplicate = !writing;
+		
+		if(writing && length != files.getChunkSize(fileid, chunkid)) {
+			System.err.println("Received unexpected chunk data length");
+			abort();
+		}
+	}
+	
+	/**
+	 * Starts receiving length bytes at offset within (fileid, chunkid), a block we requested, abandoning 
+	 * 		anything which was not finished. The block's frames are then passed to {@link #beginFrame}.
+	 * If the block is no longer wanted (e.g. another peer sent it first), the data will be discarded.
+	 * @throws IOException thrown if fileid/chunkid are invalid.
+	 */
+	public void beginBlock(int fileid, int chunkid, int offset, int length) throws IOException {
+		abort();
+		
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+		this.offset = offset;
+		this.remaining = length;
+		this.size = length;
+		this.start = offset;
+		this.block = true;
+		this.active = true;
+		
+		writing = files.beginBlockWrite(fileid, chunkid, offset, length);
+		duplicate = !writing;
+	}
+	
+	/**
+	 * Returns true if a frame at offset within (fileid, chunkid) would continue the chunk or block being received.
+	 */
+	public boolean continues(int fileid, int chunkid, int offset) {
+		return active && remaining > 0 && fileid == this.fileid && chunkid == this.chunkid 
+				&& offset == start + size - remaining;
+	}
+	
+	/**
+	 * Starts receiving one frame of chunk data. Frames of a chunk must arrive in order, starting at offset 0.
+	 * A frame at offset 0 starts a new chunk, abandoning any chunk which was not finished, 
+	 * 		unless it is the first frame of a block just started with {@link #beginBlock}.
+	 * If the frame is out of order its data will be discarded, and {@link #endFrame()} will return INCOMPLETE.
+	 * @param offset - Position within the chunk of the first byte in this frame
+	 * @param length - Number of bytes of chunk data in this frame
+	 * @throws IOException thrown if fileid/chunkid are invalid.
+	 */
+	public void beginFrame(int fileid, int chunkid, int offset, int length) throws IOException {
+		if(offset == 0 && !(block && continues(fileid, chunkid, offset))) {
+			abort();
+			begin(fileid, chunkid, files.getChunkSize(fileid, chunkid));
+		}
+		
+		if(!continues(fileid, chunkid, offset) || length > remaining) {
+			System.err.println("Received chunk data out of order");
+			abort();
+		}
+	}
+	
+	/**
+	 * Hashes and writes the next slice of chunk data. All remaining bytes of data are consumed.
+	 * @throws IOException thrown on disk error.
+	 */
+	public void update(ByteBuffer data) throws IOException {
+		int length = data.remaining();
+		
+		if(!active) {
+			data.position(data.limit());
+			return;
+		}
+		remaining -= length;
+		
+		if(!writing) {
+			data.position(data.limit());
+			return;
+		}
+		
+		if(block) {
+			if(!files.writeBlockSlice(fileid, chunkid, start, offset, data)) {
+				// Another peer sent the block first
+				writing = false;
+				duplicate = true;
+				data.position(data.limit());
+			}
+			offset += length;
+			return;
+		}
+		
+		digest.update(data.duplicate());
+		
+		files.writeChunkSlice(fileid, chunkid, offset, data);
+		offset += length;
+	}
+	
+	/**
+	 * Ends the frame started by {@link #beginFrame}, once all of its data has been passed to {@link #update}.
+	 * @return INPROGRESS if more frames are needed, COMPLETE if the chunk is now COMPLETE (or the block written),
+	 * 		INCOMPLETE if the data was discarded, out of order, or did not match the chunk hash.
+	 */
+	public Status endFrame() {
+		if(!active) {
+			return Status.INCOMPLETE;
+		}
+		
+		if(remaining > 0) {
+			return Status.INPROGRESS;
+		}
+		
+		return finish() ? Status.COMPLETE : Status.INCOMPLETE;
+	}
+	
+	/**
+	 * Returns true if the current (or last) chunk's data was discarded because the chunk was already complete,
+	 * 		or was being received from another peer. {@link #endFrame()} returns INCOMPLETE for these.
+	 */
+	public boolean isDuplicate() {
+		return duplicate;
+	}
+	
+	/**
+	 * Returns true if the current (or last) data received is a block, rather than a whole chunk.
+	 */
+	public boolean isBlock() {
+		return block;
+	}
+	
+	/**
+	 * Returns the position within the chunk of the current (or last) block.
+	 */
+	public int getBlockOffset() {
+		return start;
+	}
+	
+	/**
+	 * Returns the number of bytes still expected for the current chunk.
+	 */
+	public int remaining() {
+		return remaining;
+	}
+	
+	/**
+	 * Finishes receiving the current chunk, verifying the digest of all the data received.
+	 * @return true if the chunk is now COMPLETE, or for a block, if the block was written.
+	 */
+	public boolean finish() {
+		active = false;
+		if(!writing) {
+			return false;
+		}
+		writing = false;
+		
+		if(block) {
+			if(!files.endBlockWrite(fileid, chunkid, start)) {
+				duplicate = true;
+				return false;
+			}
+			return true;
+		}
+		
+		return files.endChunkWrite(fileid, chunkid, digest.digest());
+	}
+	
+	/**
+	 * Gives up on the current chunk (e.g. the connection was lost part way through)
+	 */
+	public void abort() {
+		active = false;
+		duplicate = false;
+		if(writing) {
+			if(!block) {
+				files.abortChunkWrite(fileid, chunkid);
+			}
+			writing = false;
+		}
+	}
+}
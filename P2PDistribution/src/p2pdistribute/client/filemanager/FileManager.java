@@ -1,10 +1,19 @@
 package p2pdistribute.client.filemanager;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import p2pdistribute.common.p2pmeta.FileMetadata;
 import p2pdistribute.common.p2pmeta.P2PMetadata;
@@ -15,6 +24,10 @@ import p2pdistribute.common.p2pmeta.P2PMetadata;
  */
 public class FileManager {
 	
+	// Chunks larger than this are downloaded in blocks of this size from peers which support block requests.
+	// Blocks of one chunk can be requested from several peers at once. Smaller chunks are requested whole.
+	public static int BLOCK_SIZE = 1024 * 1024; // TODO Future Task: Settings file
+	
 	public final Path destinationFolder;
 	private P2PFile[] files;
 	
@@ -22,6 +35,15 @@ public class FileManager {
 	
 	public AcquisitionStatus status;
 	
+	private HashAlgorithm hashFunc;
+	
+	// Chunks currently being streamed to disk by a ChunkReceiver, as (fileid << 32 | chunkid).
+	// Only one connection may write to a chunk at a time.
+	private Set<Long> chunksBeingWritten;
+	
+	// Chunks being downloaded in blocks, as (fileid << 32 | chunkid), in the order they were started.
+	private Map<Long, PartialChunk> partialChunks;
+	
 	public FileManager(P2PMetadata metadata, String destinationPath) {
 		destinationFolder = Paths.get(destinationPath);
 		
@@ -30,19 +52,40 @@ public class FileManager {
 		files = new P2PFile[metadata.files.length];
 		
 		status = new AcquisitionStatus(this.numFiles());
+		
+		chunksBeingWritten = new HashSet<>();
+		partialChunks = new LinkedHashMap<>();
+	}
+	
+	/**
+	 * Sets the priority of fileid. See {@link AcquisitionStatus#setPriority(int, int)}
+	 * Files with priority {@link AcquisitionStatus#SKIP} are not downloaded, and not created if they do not exist.
+	 * @note Must be called before {@link #setup()}
+	 * @throws IOException thrown if fileid is invalid
+	 */
+	public void setPriority(int fileid, int priority) throws IOException {
+		if(fileid < 0 || fileid >= numFiles()) {
+			throw new IOException("Invalid FileID: " + fileid + ". Num files: " + numFiles());
+		}
+		
+		status.setPriority(fileid, priority);
 	}
 	
 	/**
 	 * Attempts to check files expected from the Metadata for validity.
-	 * If the files do not exist, they will be allocated when this function is called.
+	 * If the files do not exist, they will be allocated when this function is called. Skipped files are not allocated.
+	 * 	- Skipped files already present are not read here. Their chunks are verified afterwards on a background
+	 * 	  thread, and become COMPLETE (so are advertised and uploaded) one at a time as they pass.
 	 * @throws FileManagerSetupException thrown if there is an error creating/reading directories or files.
 	 */
 	public void setup() throws FileManagerSetupException {
 
 		prepareDirectory();
 		
-		HashAlgorithm hashFunc = makeHashAlgorithm(metadata.hashType);
+		hashFunc = makeHashAlgorithm(metadata.hashType);
 		prepareFiles(hashFunc);
+		
+		verifySkippedFiles();
 	}
 	
 	/**
@@ -54,30 +97,326 @@ public class FileManager {
 	 * @return
 	 * @throws IOException
 	 */
-	public synchronized boolean setChunkData(int fileid, int chunkid, byte[] data) throws IOException {
+	public boolean setChunkData(int fileid, int chunkid, byte[] data) throws IOException {
 		
 		if(fileid >= files.length) {
 			System.err.println("Err wtf");
 			throw new IOException("Invalid FileID: " + fileid + ". Num files: " + files.length);
 		}
 		
-		if(status.getStatus(fileid, chunkid) == Status.COMPLETE) {
-			// Chunk is already complete, this message is weird. Malcious?
-			System.out.println("Attempt to overwrite complete chunk");
+		// Reserve the chunk rather than holding the lock while writing to disk
+		if(!beginChunkWrite(fileid, chunkid)) {
+			// Chunk is already complete or being written. Expected in the endgame, when chunks are requested twice.
+			return false;
+		}
+		
+		Status status;
+		try {
+			status = files[fileid].writeChunkData(chunkid, data);
+			
+			if(status == Status.COMPLETE) {
+				this.status.setStatus(fileid, chunkid, status);
+			}
+		} finally {
+			abortChunkWrite(fileid, chunkid);
+		}
+		
+		return status == Status.COMPLETE;
+	}
+	
+	/**
+	 * Reserves a chunk so that its data can be streamed to disk with {@link #writeChunkSlice}.
+	 * Must be followed by {@link #endChunkWrite} or {@link #abortChunkWrite}.
+	 * @return false if the chunk is already complete, is being written by another connection, or its file is skipped.
+	 * @throws IOException thrown if fileid or chunkid are invalid.
+	 */
+	public synchronized boolean beginChunkWrite(int fileid, int chunkid) throws IOException {
+		getFile(fileid).getChunkSize(chunkid);
+		
+		if(status.getStatus(fileid, chunkid) == Status.COMPLETE || status.getPriority(fileid) == AcquisitionStatus.SKIP) {
+			return false;
+		}
+		
+		long key = chunkKey(fileid, chunkid);
+		
+		PartialChunk partial = partialChunks.get(key);
+		if(partial != null && partial.verifying) {
+			// Every block has been written, and is being checked
+			return false;
+		}
+		
+		if(!chunksBeingWritten.add(key)) {
+			return false;
+		}
+		
+		// Blocks of the chunk are no longer wanted, as it is being received whole
+		closePartial(key);
+		return true;
+	}
+	
+	/**
+	 * Returns true if (fileid, chunkid) is reserved with {@link #beginChunkWrite}, i.e. its data is arriving from a peer.
+	 */
+	public synchronized boolean isBeingWritten(int fileid, int chunkid) {
+		return chunksBeingWritten.contains(chunkKey(fileid, chunkid));
+	}
+	
+	/**
+	 * Writes part of a chunk reserved with {@link #beginChunkWrite} to disk. Data is not verified until 
+	 * 		{@link #endChunkWrite} is called.
+	 * @param offset - Position within the chunk to write the data
+	 */
+	public void writeChunkSlice(int fileid, int chunkid, int offset, ByteBuffer data) throws IOException {
+		
+		getFile(fileid).writeChunkSlice(chunkid, offset, data);
+	}
+	
+	/**
+	 * Finishes writing a chunk reserved with {@link #beginChunkWrite}.
+	 * Marks the chunk COMPLETE if digest matches the chunk's hash.
+	 * @param digest - Hash of all the data written to the chunk
+	 * @return true if the chunk data was valid.
+	 */
+	public boolean endChunkWrite(int fileid, int chunkid, byte[] digest) {
+		boolean valid = files[fileid].verifyChunkDigest(chunkid, digest) == Status.COMPLETE;
+		
+		if(valid) {
+			// Set COMPLETE before releasing the reservation, so no other connection can start writing in between.
+			status.setStatus(fileid, chunkid, Status.COMPLETE);
+		}
+		
+		abortChunkWrite(fileid, chunkid);
+		
+		return valid;
+	}
+	
+	/**
+	 * Releases a chunk reserved with {@link #beginChunkWrite} without changing its status.
+	 */
+	public synchronized void abortChunkWrite(int fileid, int chunkid) {
+		chunksBeingWritten.remove(chunkKey(fileid, chunkid));
+	}
+	
+	/**
+	 * Returns the length of the block of (fileid, chunkid) starting at offset, if the chunk is downloaded in blocks.
+	 * @return -1 if the chunk is not larger than {@link #BLOCK_SIZE}, or no block starts at offset.
+	 * @throws IOException thrown if fileid or chunkid are invalid.
+	 */
+	public int getBlockLength(int fileid, int chunkid, int offset) throws IOException {
+		int size = getChunkSize(fileid, chunkid);
+		
+		if(size <= BLOCK_SIZE || offset < 0 || offset >= size || offset % BLOCK_SIZE != 0) {
+			return -1;
+		}
+		return Math.min(BLOCK_SIZE, size - offset);
+	}
+	
+	/**
+	 * Starts downloading (fileid, chunkid) in blocks, or continues an earlier attempt, keeping the blocks it wrote.
+	 * The chunk should already be reserved, e.g. by {@link AcquisitionStatus#pickUsefulChunk}.
+	 * @return [fileid, chunkid, offset, length] of a block to request, reserved for the caller.
+	 * 		null if every block is already requested (or the chunk is being received whole).
+	 * @throws IOException thrown if fileid or chunkid are invalid.
+	 */
+	public synchronized int[] startBlocks(int fileid, int chunkid) throws IOException {
+		long key = chunkKey(fileid, chunkid);
+		
+		if(chunksBeingWritten.contains(key)) {
+			return null;
+		}
+		
+		PartialChunk partial = partialChunks.get(key);
+		if(partial == null) {
+			partial = new PartialChunk(getChunkSize(fileid, chunkid), BLOCK_SIZE);
+			partialChunks.put(key, partial);
+		}
+		
+		return requestBlock(fileid, chunkid, partial);
+	}
+	
+	/**
+	 * Picks a block peer has, of a chunk already being downloaded in blocks, which has not been requested.
+	 * Blocks of the chunks started first are picked first, so chunks are finished rather than more started.
+	 * @return [fileid, chunkid, offset, length] of a block to request, reserved for the caller, or null.
+	 */
+	public synchronized int[] pickBlock(PeerChunks peer) {
+		for(Map.Entry<Long, PartialChunk> entry : partialChunks.entrySet()) {
+			int fileid = (int)(entry.getKey() >>> 32);
+			int chunkid = (int)(long)entry.getKey();
+			
+			if(peer.has(fileid, chunkid)) {
+				int[] block = requestBlock(fileid, chunkid, entry.getValue());
+				if(block != null) {
+					return block;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns true if (fileid, chunkid) is being downloaded in blocks.
+	 */
+	public synchronized boolean isPartial(int fileid, int chunkid) {
+		return partialChunks.containsKey(chunkKey(fileid, chunkid));
+	}
+	
+	/**
+	 * Gives up a request for the block at offset, once it has arrived or will not arrive (e.g. the peer disconnected).
+	 * Once none of the chunk's blocks are requested, the chunk is released so other peers can be asked for it.
+	 * 		Blocks already written are kept.
+	 */
+	public synchronized void releaseBlock(int fileid, int chunkid, int offset) {
+		PartialChunk partial = partialChunks.get(chunkKey(fileid, chunkid));
+		if(partial == null) {
+			// Complete, or being received whole
+			return;
+		}
+		
+		int block = partial.getBlock(offset);
+		if(block >= 0) {
+			partial.release(block);
+		}
+		
+		if(partial.numRequested() == 0 && !partial.verifying) {
+			status.releaseChunk(fileid, chunkid);
+		}
+	}
+	
+	/**
+	 * Checks a block's data is still wanted before it is received with {@link #writeBlockSlice}.
+	 * Must be followed by {@link #endBlockWrite} once all of the block has been written.
+	 * @return false if the chunk is complete, the block has already been written, or the chunk is not being
+	 * 		downloaded in blocks of this size.
+	 * @throws IOException thrown if fileid or chunkid are invalid.
+	 */
+	public synchronized boolean beginBlockWrite(int fileid, int chunkid, int offset, int length) throws IOException {
+		getFile(fileid).getChunkSize(chunkid);
+		
+		PartialChunk partial = partialChunks.get(chunkKey(fileid, chunkid));
+		if(partial == null || status.getStatus(fileid, chunkid) == Status.COMPLETE) {
+			return false;
+		}
+		
+		int block = partial.getBlock(offset);
+		if(block < 0 || partial.getLength(block) != length) {
 			return false;
 		}
 		
-		Status status = files[fileid].writeChunkData(chunkid, data);
+		partial.lock.readLock().lock();
+		try {
+			return !partial.closed && !partial.isWritten(block);
+		} finally {
+			partial.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Writes part of a block to disk. Data is not verified until every block of the chunk has been written.
+	 * @param blockOffset - Position within the chunk of the block being written
+	 * @param offset - Position within the chunk to write the data
+	 * @return false if the block is no longer wanted (e.g. another peer sent it first). Nothing was written.
+	 * @throws IOException thrown on disk error.
+	 */
+	public boolean writeBlockSlice(int fileid, int chunkid, int blockOffset, int offset, ByteBuffer data) throws IOException {
+		PartialChunk partial;
+		synchronized(this) {
+			partial = partialChunks.get(chunkKey(fileid, chunkid));
+		}
 		
-		if(status != Status.COMPLETE) {
+		if(partial == null || partial.getBlock(blockOffset) < 0) {
 			return false;
 		}
 		
-		this.status.setStatus(fileid, chunkid, status);
+		// Blocks the chunk being closed or verified until the slice is written. Other blocks may be written meanwhile.
+		partial.lock.readLock().lock();
+		try {
+			if(partial.closed || partial.isWritten(partial.getBlock(blockOffset))) {
+				return false;
+			}
+			
+			getFile(fileid).writeChunkSlice(chunkid, offset, data);
+		} finally {
+			partial.lock.readLock().unlock();
+		}
+		return true;
+	}
+	
+	/**
+	 * Finishes writing the block at offset.
+	 * Once every block of the chunk is written, the chunk is read back and verified with {@link P2PChunk#verifyChunk}.
+	 * 		If it matches its hash it is marked COMPLETE, otherwise every block is downloaded again.
+	 * @return false if the block is no longer wanted (e.g. another peer sent it first).
+	 */
+	public boolean endBlockWrite(int fileid, int chunkid, int offset) {
+		long key = chunkKey(fileid, chunkid);
+		PartialChunk partial;
 		
+		synchronized(this) {
+			partial = partialChunks.get(key);
+			if(partial == null || partial.getBlock(offset) < 0) {
+				return false;
+			}
+			
+			partial.lock.writeLock().lock();
+			try {
+				if(partial.closed) {
+					return false;
+				}
+				partial.setWritten(partial.getBlock(offset));
+			} finally {
+				partial.lock.writeLock().unlock();
+			}
+			
+			if(!partial.allWritten() || partial.verifying) {
+				return true;
+			}
+			// No more blocks can be written now, so the data on disk can be checked without the lock
+			partial.verifying = true;
+		}
+		
+		Status result;
+		try {
+			result = files[fileid].verifyChunkData(chunkid);
+		} catch (IOException e) {
+			System.err.println("Unable to verify chunk " + fileid + "/" + chunkid + ": " + e.getMessage());
+			result = Status.INCOMPLETE;
+		}
+		
+		synchronized(this) {
+			partial.verifying = false;
+			
+			if(result == Status.COMPLETE) {
+				closePartial(key);
+			} else {
+				System.err.println("Blocks of chunk " + fileid + "/" + chunkid + " did not match its checksum. Downloading it again.");
+				
+				partial.lock.writeLock().lock();
+				try {
+					partial.reset();
+				} finally {
+					partial.lock.writeLock().unlock();
+				}
+				if(partial.numRequested() == 0) {
+					status.releaseChunk(fileid, chunkid);
+				}
+			}
+		}
+		
+		if(result == Status.COMPLETE) {
+			// Outside the lock, as this notifies every connection
+			status.setStatus(fileid, chunkid, Status.COMPLETE);
+		}
 		return true;
 	}
 	
+	/**
+	 * Returns a new MessageDigest for hashing chunk data of this metadata's hash type.
+	 */
+	public MessageDigest newDigest() {
+		return hashFunc.newDigest();
+	}
+	
 	public boolean complete() {
 		return status.complete();
 	}
@@ -137,7 +476,11 @@ public class FileManager {
 			Status[] fileStatus;
 			
 			try {
-				fileStatus = file.prepare();
+				if(status.getPriority(i) == AcquisitionStatus.SKIP) {
+					fileStatus = file.prepareExisting();
+				} else {
+					fileStatus = file.prepare();
+				}
 			} catch (P2PFilePreparationException e) {
 				throw new FileManagerSetupException("Error occured preparing file: " + e.getMessage()); 
 			}
@@ -148,6 +491,51 @@ public class FileManager {
 		}
 	}
 	
+	/**
+	 * Verifies the chunks of skipped files which are already present, on a daemon thread so startup isn't held up
+	 * 		hashing files we are not downloading. Each chunk found valid is set COMPLETE.
+	 * @note Skipped chunks are never written, so this is the only thread changing their status.
+	 */
+	private void verifySkippedFiles() {
+		final List<Integer> present = new ArrayList<>();
+		
+		for(int i=0; i<files.length; i++) {
+			if(status.getPriority(i) == AcquisitionStatus.SKIP && files[i].isOpen()) {
+				present.add(i);
+			}
+		}
+		
+		if(present.isEmpty()) {
+			return;
+		}
+		
+		Thread verifier = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int fileid : present) {
+					verifyFile(fileid);
+				}
+			}
+		}, "verify-skipped");
+		verifier.setDaemon(true);
+		verifier.start();
+	}
+	
+	private void verifyFile(int fileid) {
+		P2PFile file = files[fileid];
+		
+		for(int chunkid=0; chunkid<file.getTotalChunks(); chunkid++) {
+			try {
+				if(file.verifyChunkData(chunkid) == Status.COMPLETE) {
+					status.setStatus(fileid, chunkid, Status.COMPLETE);
+				}
+			} catch (IOException e) {
+				System.err.println("Unable to verify " + file.meta.filename + ", it will not be uploaded: " + e.getMessage());
+				return;
+			}
+		}
+	}
+	
 	public byte[] getChunkData(int fileid, int chunkid) throws IOException {
 
 		if(fileid >= files.length) {
@@ -157,4 +545,85 @@ public class FileManager {
 		
 		return files[fileid].readChunkData(chunkid);
 	}
+	
+	/**
+	 * Writes the data of a chunk straight from disk to target, avoiding any copies on the Java heap.
+	 * @see P2PFile#transferChunkData(int, WritableByteChannel)
+	 */
+	public void transferChunkData(int fileid, int chunkid, WritableByteChannel target) throws IOException {
+		
+		getFile(fileid).transferChunkData(chunkid, target);
+	}
+	
+	/**
+	 * Writes part of a chunk straight from disk to target.
+	 * @see P2PFile#transferChunkData(int, int, int, WritableByteChannel)
+	 * @return The number of bytes written. Less than length if target is non-blocking and became full.
+	 */
+	public int transferChunkData(int fileid, int chunkid, int offset, int length, WritableByteChannel target) throws IOException {
+		
+		return getFile(fileid).transferChunkData(chunkid, offset, length, target);
+	}
+	
+	/**
+	 * Returns the number of bytes from the start of fileid which have all been downloaded and verified.
+	 * Data before this can be read (e.g. played) while the rest of the file is still downloading.
+	 * @throws IOException thrown if fileid is invalid
+	 */
+	public long getContiguousBytes(int fileid) throws IOException {
+		
+		return getFile(fileid).getBytesBefore(status.getContiguousChunks(fileid));
+	}
+	
+	/**
+	 * Returns the size in bytes of a chunk
+	 * @throws IOException thrown if fileid or chunkid are invalid.
+	 */
+	public int getChunkSize(int fileid, int chunkid) throws IOException {
+		
+		return getFile(fileid).getChunkSize(chunkid);
+	}
+	
+	/**
+	 * Returns a block of partial to request, reserving the chunk in case it was released.
+	 */
+	private int[] requestBlock(int fileid, int chunkid, PartialChunk partial) {
+		int block = partial.nextUnrequested();
+		if(block < 0 || partial.verifying) {
+			return null;
+		}
+		
+		partial.request(block);
+		status.reserveChunk(fileid, chunkid);
+		
+		return new int[] { fileid, chunkid, partial.getOffset(block), partial.getLength(block) };
+	}
+	
+	/**
+	 * Stops downloading a chunk in blocks. Waits for any block data being written to it to finish.
+	 */
+	private void closePartial(long key) {
+		PartialChunk partial = partialChunks.remove(key);
+		
+		if(partial != null) {
+			partial.lock.writeLock().lock();
+			try {
+				partial.closed = true;
+			} finally {
+				partial.lock.writeLock().unlock();
+			}
+		}
+	}
+	
+	private static long chunkKey(int fileid, int chunkid) {
+		return ((long)fileid << 32) | (chunkid & 0xffffffffL);
+	}
+	
+	private P2PFile getFile(int fileid) throws IOException {
+		if(fileid < 0 || fileid >= files.length) {
+			throw new IOException("Invalid FileID: " + fileid + ". Num files: " + files.length);
+		}
+		
+		return files[fileid];
+	}
 }
@@ -16,13 +16,26 @@ public class HashAlgorithm {
 		digestFunction = MessageDigest.getInstance(hashType);
 	}
 	
+	/**
+	 * Creates a new MessageDigest of the same algorithm, for hashing data incrementally.
+	 * Each thread hashing data should use its own MessageDigest.
+	 */
+	public MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(digestFunction.getAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			// Cannot happen: the algorithm was available when this HashAlgorithm was constructed.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Checks data against expectedHash. Safe to call from multiple threads, e.g. verifying chunks written in blocks.
+	 */
 	public boolean verifyData(byte[] data, byte[] expectedHash) {
 		
-		digestFunction.update(data);
-		byte[] digest = digestFunction.digest();
+		byte[] digest = newDigest().digest(data);
 		
-		digestFunction.reset();
-				
 		return Arrays.equals(expectedHash, digest);
 	}
 }
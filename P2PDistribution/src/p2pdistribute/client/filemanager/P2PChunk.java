@@ -1,5 +1,7 @@
 package p2pdistribute.client.filemanager;
 
+import java.util.Arrays;
+
 import p2pdistribute.common.p2pmeta.chunk.ChunkMetadata;
 
 public class P2PChunk {
@@ -22,4 +24,16 @@ public class P2PChunk {
 		
 		return Status.INCOMPLETE;
 	}
+	
+	/**
+	 * Verifies a digest computed incrementally as the chunk data was received.
+	 */
+	public Status verifyDigest(byte[] digest) {
+		
+		if(Arrays.equals(meta.hash, digest)) {
+			return Status.COMPLETE;
+		}
+		
+		return Status.INCOMPLETE;
+	}
 }
@@ -2,8 +2,13 @@ package p2pdistribute.client.filemanager;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 import p2pdistribute.common.p2pmeta.FileMetadata;
 import p2pdistribute.common.p2pmeta.chunk.ChunkMetadata;
@@ -19,19 +24,27 @@ public class P2PFile {
 	public final long fileSize;
 	
 	private final Path destinationFolder;
+	private final HashAlgorithm hashFunc;
 	private P2PChunk[] chunks;
+	private long[] chunkOffsets;
 	private RandomAccessFile file;
 	
 	public P2PFile(Path destination, FileMetadata meta, HashAlgorithm hashFunc) {
 		this.meta = meta;
 		this.destinationFolder = destination;
+		this.hashFunc = hashFunc;
 		
 		this.fileSize = calculateFileSize(meta.chunks);
 		
 		chunks = new P2PChunk[meta.chunks.length];
 		
+		chunkOffsets = new long[meta.chunks.length];
+		
+		long offset = 0;
 		for(int i=0; i<chunks.length; i++) {
 			chunks[i] = new P2PChunk(meta.chunks[i], hashFunc);
+			chunkOffsets[i] = offset;
+			offset += meta.chunks[i].size;
 		}
 	}
 
@@ -50,6 +63,40 @@ public class P2PFile {
 		return verifyChunks();
 	}
 	
+	/**
+	 * Prepares a file which is not being downloaded (e.g. skipped) for uploading.
+	 * Nothing is created or allocated. If the file already exists at the correct size it is opened read only, so
+	 * 		its chunks can be checked later with {@link #verifyChunkData(int)} and uploaded. See {@link #isOpen()}
+	 * 
+	 * @return INCOMPLETE for every chunk. The file is not read here.
+	 * @throws P2PFilePreparationException - Unable to open the existing file
+	 */
+	public Status[] prepareExisting() throws P2PFilePreparationException {
+		Path path = destinationFolder.resolve(meta.filename);
+		
+		Status[] statuses = new Status[chunks.length];
+		Arrays.fill(statuses, Status.INCOMPLETE);
+		
+		if(!Files.isRegularFile(path) || path.toFile().length() != fileSize) {
+			return statuses;
+		}
+		
+		try {
+			file = new RandomAccessFile(path.toFile(), "r");
+		} catch(IOException e) {
+			throw new P2PFilePreparationException("Unable to open file " + meta.filename + ": " + e.getMessage());
+		}
+		
+		return statuses;
+	}
+	
+	/**
+	 * Returns true if the file is open, i.e. prepared, or skipped but already present.
+	 */
+	public boolean isOpen() {
+		return file != null;
+	}
+	
 	/**
 	 * Returns the number of chunks this file is made up of
 	 */
@@ -73,8 +120,9 @@ public class P2PFile {
 		}
 		long offset = getChunkOffset(chunkid);
 		
-		file.seek(offset);
-		file.write(data, 0, data.length);
+		RandomAccessFile openFile = getOpenFile();
+		openFile.seek(offset);
+		openFile.write(data, 0, data.length);
 		
 		return chunks[chunkid].verifyChunk(data);
 	}
@@ -92,21 +140,167 @@ public class P2PFile {
 		}
 		long offset = getChunkOffset(chunkid);
 		
-		file.seek(offset);
+		RandomAccessFile openFile = getOpenFile();
+		openFile.seek(offset);
 		byte[] data = new byte[meta.chunks[chunkid].size];
-		file.read(data, 0, data.length);
+		openFile.read(data, 0, data.length);
 
 		return data;
 	}
 	
-	private long getChunkOffset(int chunkid) {
-
-		long offset = 0;
-		for(int i=0; i<chunkid; i++) {
-			offset += chunks[i].meta.size;
+	/**
+	 * Sends chunk data from disk directly to target, without copying it into the Java heap.
+	 * Uses {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which the OS can 
+	 * 		perform as a zero-copy transfer when target is a socket.
+	 * @param chunkid
+	 * @param target - The channel to write the chunk data to. Will block until all data is written.
+	 * @throws IOException thrown on IO error reading from file or writing to target.
+	 */
+	public void transferChunkData(int chunkid, WritableByteChannel target) throws IOException {
+		int size = getChunkSize(chunkid);
+		int sent = 0;
+		
+		while(sent < size) {
+			sent += transferChunkData(chunkid, sent, size - sent, target);
+		}
+	}
+	
+	/**
+	 * Sends part of a chunk's data from disk directly to target.
+	 * If target is non-blocking, stops early once target will not accept any more data.
+	 * @see #transferChunkData(int, WritableByteChannel)
+	 * @param offset - Position within the chunk of the first byte to send
+	 * @param length - Number of bytes to send
+	 * @return The number of bytes sent.
+	 */
+	public int transferChunkData(int chunkid, int offset, int length, WritableByteChannel target) throws IOException {
+		if(offset < 0 || length < 0 || offset + length > getChunkSize(chunkid)) {
+			throw new IOException("Cannot read outside of chunk " + chunkid);
+		}
+		long position = getChunkOffset(chunkid) + offset;
+		long remaining = length;
+		
+		FileChannel channel = getOpenFile().getChannel();
+		
+		while(remaining > 0) {
+			long sent = channel.transferTo(position, remaining, target);
+			if(sent <= 0) {
+				if(position >= channel.size()) {
+					throw new IOException("Reached end of file whilst sending chunk.");
+				}
+				// target is full
+				break;
+			}
+			position += sent;
+			remaining -= sent;
+		}
+		
+		return (int)(length - remaining);
+	}
+	
+	/**
+	 * Returns the size of a chunk in bytes
+	 * @throws IOException thrown if chunkid is invalid
+	 */
+	public int getChunkSize(int chunkid) throws IOException {
+		if(chunkid < 0 || chunkid >= chunks.length) {
+			throw new IOException("Invalid chunkid: " + chunkid);
 		}
 		
-		return offset;
+		return meta.chunks[chunkid].size;
+	}
+	
+	/**
+	 * Returns the number of bytes at the start of the file held by its first numChunks chunks.
+	 * i.e. the offset of chunk numChunks, or the file size if numChunks is the number of chunks.
+	 */
+	public long getBytesBefore(int numChunks) {
+		if(numChunks >= chunks.length) {
+			return fileSize;
+		}
+		
+		return numChunks <= 0 ? 0 : getChunkOffset(numChunks);
+	}
+	
+	/**
+	 * Writes part of a chunk's data to the file, without verifying it.
+	 * Safe to call from multiple threads, as long as they write to different chunks.
+	 * @param chunkid - Chunk ID to write data to
+	 * @param offset - Position within the chunk to write data at
+	 * @param data - The data to write. All remaining bytes are written.
+	 * @throws IOException thrown on IO error writing to file, or if data does not fit within the chunk.
+	 */
+	public void writeChunkSlice(int chunkid, int offset, ByteBuffer data) throws IOException {
+		if(offset < 0 || offset + data.remaining() > getChunkSize(chunkid)) {
+			throw new IOException("Chunk data does not fit in chunk " + chunkid);
+		}
+		
+		long position = getChunkOffset(chunkid) + offset;
+		
+		FileChannel channel = getOpenFile().getChannel();
+		while(data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+	
+	/**
+	 * Reads a chunk's data back from disk and checks it against the hash from the metadata.
+	 * Used for chunks written in pieces by several connections, see {@link FileManager#endBlockWrite}.
+	 * Safe to call from multiple threads.
+	 * @note Read and hashed {@link ChunkReceiver#SLICE_SIZE} bytes at a time, so large chunks are never held in memory.
+	 * @return COMPLETE if the data on disk matches, otherwise INCOMPLETE
+	 * @throws IOException thrown on IO error reading from file.
+	 */
+	public Status verifyChunkData(int chunkid) throws IOException {
+		int size = getChunkSize(chunkid);
+		long position = getChunkOffset(chunkid);
+		
+		MessageDigest digest = hashFunc.newDigest();
+		ByteBuffer slice = ByteBuffer.allocate(Math.min(size, ChunkReceiver.SLICE_SIZE));
+		
+		FileChannel channel = getOpenFile().getChannel();
+		int done = 0;
+		while(done < size) {
+			slice.clear();
+			slice.limit(Math.min(slice.capacity(), size - done));
+			
+			int read = channel.read(slice, position + done);
+			if(read < 0) {
+				return Status.INCOMPLETE;
+			}
+			
+			digest.update(slice.array(), 0, read);
+			done += read;
+		}
+		
+		return verifyChunkDigest(chunkid, digest.digest());
+	}
+	
+	/**
+	 * Checks the digest of a chunk's data against the hash from the metadata
+	 * @return COMPLETE if the digest matches, otherwise INCOMPLETE
+	 */
+	public Status verifyChunkDigest(int chunkid, byte[] digest) {
+		assert chunkid < chunks.length;
+		
+		return chunks[chunkid].verifyDigest(digest);
+	}
+	
+	/**
+	 * Returns the open file, once prepared.
+	 * @throws IOException thrown if the file was never opened, e.g. it was skipped and we do not have it.
+	 */
+	private RandomAccessFile getOpenFile() throws IOException {
+		if(file == null) {
+			throw new IOException("File " + meta.filename + " is not open");
+		}
+		
+		return file;
+	}
+	
+	private long getChunkOffset(int chunkid) {
+
+		return chunkOffsets[chunkid];
 	}
 	
 	private void allocateFile() throws P2PFilePreparationException {
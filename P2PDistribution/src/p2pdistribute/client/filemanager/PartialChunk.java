@@ -0,0 +1,129 @@
+package p2pdistribute.client.filemanager;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A chunk being downloaded as blocks, which may be requested from several peers at once.
+ *
+ * The chunk is split into blocks of blockSize bytes (the last may be shorter). Each block is written to disk as
+ * 		it arrives. Once every block has been written the chunk is read back and checked against its hash.
+ *
+ * @note State is guarded by the FileManager's lock. Writing a block's data also holds the read side of {@link #lock},
+ * 		and closing the chunk or marking a block written holds the write side. So slices of different blocks can be
+ * 		written at once, but once the chunk is closed or a block is written, no connection can still be writing to it.
+ * 		A ReentrantReadWriteLock rather than synchronized, so a virtual thread writing to disk does not pin its carrier.
+ */
+class PartialChunk {
+	
+	final int size;
+	final int blockSize;
+	
+	// Number of outstanding requests for each block
+	private final int[] requested;
+	private final boolean[] written;
+	
+	private int numWritten;
+	private int numRequested;
+	
+	// True while every block is written and the chunk is being checked
+	boolean verifying;
+	
+	// True once the chunk no longer wants block data. e.g. it is being received whole from another peer.
+	// Changed with the write side of lock held.
+	boolean closed;
+	
+	final ReentrantReadWriteLock lock;
+	
+	PartialChunk(int size, int blockSize) {
+		this.size = size;
+		this.blockSize = blockSize;
+		
+		int numBlocks = (size + blockSize - 1) / blockSize;
+		requested = new int[numBlocks];
+		written = new boolean[numBlocks];
+		
+		lock = new ReentrantReadWriteLock();
+	}
+	
+	int numBlocks() {
+		return written.length;
+	}
+	
+	int getOffset(int block) {
+		return block * blockSize;
+	}
+	
+	int getLength(int block) {
+		return Math.min(blockSize, size - getOffset(block));
+	}
+	
+	/**
+	 * Returns the block starting at offset, or -1 if no block starts there.
+	 */
+	int getBlock(int offset) {
+		if(offset < 0 || offset >= size || offset % blockSize != 0) {
+			return -1;
+		}
+		return offset / blockSize;
+	}
+	
+	/**
+	 * Returns the first block which is neither written nor requested, or -1.
+	 */
+	int nextUnrequested() {
+		for(int i=0; i<written.length; i++) {
+			if(!written[i] && requested[i] == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	void request(int block) {
+		requested[block]++;
+		numRequested++;
+	}
+	
+	/**
+	 * Removes a request for block, if there is one.
+	 */
+	void release(int block) {
+		if(requested[block] > 0) {
+			requested[block]--;
+			numRequested--;
+		}
+	}
+	
+	/**
+	 * Returns the number of block requests outstanding, across every peer.
+	 */
+	int numRequested() {
+		return numRequested;
+	}
+	
+	boolean isWritten(int block) {
+		return written[block];
+	}
+	
+	void setWritten(int block) {
+		if(!written[block]) {
+			written[block] = true;
+			numWritten++;
+		}
+	}
+	
+	boolean allWritten() {
+		return numWritten == written.length;
+	}
+	
+	/**
+	 * Forgets every written block, e.g. the chunk did not match its hash.
+	 */
+	void reset() {
+		for(int i=0; i<written.length; i++) {
+			written[i] = false;
+		}
+		numWritten = 0;
+		verifying = false;
+	}
+}
@@ -0,0 +1,157 @@
+package p2pdistribute.client.filemanager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The chunks a remote peer has told us it has. One bit per chunk.
+ *
+ * Files the peer has none of, or all of (e.g. the peer is a seed), take no storage beyond a reference.
+ * 		A file's bitset is only allocated once the peer has some but not all of its chunks,
+ * 		and is dropped again once the peer has every chunk.
+ *
+ * @note Chunks should only be added by one thread (the connection's), but can be read from any thread.
+ */
+public class PeerChunks {
+	
+	// Stands in for the bitset of a file the peer has every chunk of
+	private static final AtomicBitset ALL = new AtomicBitset(0);
+	
+	// Per file: null if the peer has none of its chunks, ALL if it has all of them, otherwise one bit per chunk
+	private final AtomicReferenceArray<AtomicBitset> files;
+	private final int[] numChunks;
+	
+	// Chunks the peer has of each file. Only used by the adding thread.
+	private final int[] fileComplete;
+	
+	private final AtomicInteger numComplete;
+	private final int total;
+	
+	/**
+	 * Starts knowing of no chunks.
+	 * @param chunkCounts - Number of chunks in each file. See {@link AcquisitionStatus#getChunkCounts()}
+	 */
+	public PeerChunks(int[] chunkCounts) {
+		files = new AtomicReferenceArray<>(chunkCounts.length);
+		numChunks = chunkCounts.clone();
+		fileComplete = new int[chunkCounts.length];
+		numComplete = new AtomicInteger(0);
+		
+		int sum = 0;
+		for(int i=0; i<chunkCounts.length; i++) {
+			sum += chunkCounts[i];
+			
+			if(chunkCounts[i] == 0) {
+				files.set(i, ALL);
+			}
+		}
+		total = sum;
+	}
+	
+	public int numFiles() {
+		return numChunks.length;
+	}
+	
+	/**
+	 * Returns the number of chunks in fileid, or 0 if fileid does not exist.
+	 */
+	public int numChunks(int fileid) {
+		if(fileid < 0 || fileid >= numChunks.length) {
+			return 0;
+		}
+		return numChunks[fileid];
+	}
+	
+	/**
+	 * Returns true if (fileid, chunkid) exists.
+	 */
+	public boolean isValid(int fileid, int chunkid) {
+		return chunkid >= 0 && chunkid < numChunks(fileid);
+	}
+	
+	/**
+	 * Returns true if the peer has (fileid, chunkid)
+	 */
+	public boolean has(int fileid, int chunkid) {
+		if(!isValid(fileid, chunkid)) {
+			return false;
+		}
+		
+		AtomicBitset bits = files.get(fileid);
+		return bits == ALL || (bits != null && bits.get(chunkid));
+	}
+	
+	/**
+	 * Records that the peer has (fileid, chunkid).
+	 * @return true if we did not already know the peer had it.
+	 */
+	public boolean add(int fileid, int chunkid) {
+		if(!isValid(fileid, chunkid)) {
+			return false;
+		}
+		
+		AtomicBitset bits = files.get(fileid);
+		if(bits == ALL) {
+			return false;
+		}
+		
+		if(bits == null) {
+			bits = new AtomicBitset(numChunks[fileid]);
+			files.set(fileid, bits);
+		}
+		
+		if(!bits.set(chunkid)) {
+			return false;
+		}
+		
+		fileComplete[fileid]++;
+		if(fileComplete[fileid] == numChunks[fileid]) {
+			// No need to remember each chunk
+			files.set(fileid, ALL);
+		}
+		
+		numComplete.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Returns true if the peer has every chunk.
+	 */
+	public boolean complete() {
+		return numComplete.get() == total;
+	}
+	
+	/**
+	 * Returns the number of chunks the peer has.
+	 */
+	public int numChunksComplete() {
+		return numComplete.get();
+	}
+	
+	/**
+	 * Returns the peer's chunks (64 * word) to (64 * word + 63) of fileid, one bit each, as in {@link AtomicBitset#getWord(int)}.
+	 */
+	public long getWord(int fileid, int word) {
+		AtomicBitset bits = files.get(fileid);
+		
+		if(bits == null) {
+			return 0;
+		} else if(bits != ALL) {
+			return bits.getWord(word);
+		}
+		
+		// Every chunk, up to the end of the file
+		int remaining = numChunks[fileid] - (word << 6);
+		if(remaining >= 64) {
+			return -1L;
+		}
+		return remaining <= 0 ? 0 : (1L << remaining) - 1;
+	}
+	
+	/**
+	 * Returns the number of words {@link #getWord(int, int)} holds the chunks of fileid in.
+	 */
+	public int numWords(int fileid) {
+		return (numChunks(fileid) + 63) >>> 6;
+	}
+}
@@ -0,0 +1,45 @@
+package p2pdistribute.client.filemanager;
+
+import java.util.Random;
+
+/**
+ * Picks any useful chunk at random, ignoring how many peers have it.
+ * 
+ * Starts at a random word and takes a random chunk from the first word holding any useful chunks,
+ * 		so only reads far when there are few useful chunks.
+ */
+public class RandomChunkPicker implements ChunkPicker {
+	
+	private final Random random = new Random();
+	
+	@Override
+	public long pick(UsefulChunks useful) {
+		int numWords = useful.numWords();
+		if(numWords == 0) {
+			return -1;
+		}
+		
+		int start = random.nextInt(numWords);
+		
+		for(int i=0; i<numWords; i++) {
+			int word = (start + i) % numWords;
+			long bits = useful.getWord(word);
+			
+			if(bits != 0) {
+				return ((long)word << 6) + nthSetBit(bits, random.nextInt(Long.bitCount(bits)));
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the index of the nth (from 0) lowest set bit of bits.
+	 */
+	static int nthSetBit(long bits, int n) {
+		for(int i=0; i<n; i++) {
+			bits &= bits - 1;
+		}
+		return Long.numberOfTrailingZeros(bits);
+	}
+}
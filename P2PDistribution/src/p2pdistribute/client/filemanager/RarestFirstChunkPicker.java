@@ -0,0 +1,61 @@
+package p2pdistribute.client.filemanager;
+
+import java.util.Random;
+
+/**
+ * Picks the useful chunk which the fewest connected peers have. Ties are broken at random.
+ * 
+ * Spreads rare chunks through the swarm early, so peers are less likely to all be left waiting on 
+ * 		the same few chunks (e.g. ones only the seed has) near the end of the download.
+ * 
+ * To keep picking cheap, only the first {@link #SAMPLE_SIZE} useful chunks from a random starting word are
+ * 		compared. With fewer useful chunks than that (e.g. near the end of the download) the rarest is always found.
+ */
+public class RarestFirstChunkPicker implements ChunkPicker {
+	
+	// Number of useful chunks compared by each pick.
+	public static int SAMPLE_SIZE = 64; // TODO Future Task: Settings file
+	
+	private final Random random = new Random();
+	
+	@Override
+	public long pick(UsefulChunks useful) {
+		int numWords = useful.numWords();
+		if(numWords == 0) {
+			return -1;
+		}
+		
+		int start = random.nextInt(numWords);
+		
+		long best = -1;
+		int bestCount = Integer.MAX_VALUE;
+		int ties = 0;
+		int sampled = 0;
+		
+		for(int i=0; i<numWords && sampled < SAMPLE_SIZE; i++) {
+			int word = (start + i) % numWords;
+			long bits = useful.getWord(word);
+			
+			while(bits != 0 && sampled < SAMPLE_SIZE) {
+				long position = ((long)word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				sampled++;
+				
+				int count = useful.getAvailability(position);
+				if(count < bestCount) {
+					best = position;
+					bestCount = count;
+					ties = 1;
+				} else if(count == bestCount) {
+					// Each of the equally rare chunks seen so far is kept with equal probability
+					ties++;
+					if(random.nextInt(ties) == 0) {
+						best = position;
+					}
+				}
+			}
+		}
+		
+		return best;
+	}
+}
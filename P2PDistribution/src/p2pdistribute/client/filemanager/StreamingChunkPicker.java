@@ -0,0 +1,50 @@
+package p2pdistribute.client.filemanager;
+
+/**
+ * Downloads files roughly in order, so the start of a file can be used (e.g. played) before the rest has arrived.
+ * 
+ * Picks the lowest useful chunk within a window of WINDOW_SIZE chunks starting at the first chunk we do not have.
+ * 		The window slides on as the chunks at its start complete. When the peer has nothing we need inside the window,
+ * 		the fallback picker chooses from all useful chunks, so the peer's upload is not wasted.
+ * 
+ * @note Files are streamed in order: the window starts in the first file we do not have every chunk of.
+ */
+public class StreamingChunkPicker implements ChunkPicker {
+	
+	// TODO Future Task: Settings file
+	public static int WINDOW_SIZE = 32;
+	
+	private final ChunkPicker fallback;
+	
+	/**
+	 * @param fallback - Picks chunks when there are none useful within the window. e.g. {@link RarestFirstChunkPicker}
+	 */
+	public StreamingChunkPicker(ChunkPicker fallback) {
+		this.fallback = fallback;
+	}
+	
+	@Override
+	public long pick(UsefulChunks useful) {
+		long first = useful.getFirstMissing();
+		
+		if(first >= 0) {
+			long end = Math.min(first + WINDOW_SIZE, (long)useful.numWords() << 6);
+			
+			long position = first;
+			while(position < end) {
+				int word = (int)(position >>> 6);
+				long bits = useful.getWord(word) & (-1L << position);
+				
+				if(bits != 0) {
+					long found = ((long)word << 6) + Long.numberOfTrailingZeros(bits);
+					
+					return found < end ? found : fallback.pick(useful);
+				}
+				
+				position = (long)(word + 1) << 6;
+			}
+		}
+		
+		return fallback.pick(useful);
+	}
+}
@@ -0,0 +1,128 @@
+package p2pdistribute.client.filemanager;
+
+/**
+ * The chunks a peer has which we need (neither COMPLETE nor INPROGRESS), as seen by a {@link ChunkPicker}.
+ *
+ * Nothing is copied: each word is worked out from our status and the peer's chunks when it is asked for.
+ * 		Every file's chunks are laid end to end, each file starting on a new word. A chunk's position is
+ * 		(64 * word + bit), which {@link AcquisitionStatus#pickUsefulChunk} turns back into [fileid, chunkid].
+ *
+ * Only files of the priority currently being picked from are included; the chunks of every other file are left out.
+ *
+ * @note Only valid during {@link ChunkPicker#pick}. Reused for every pick, so should not be kept.
+ */
+public class UsefulChunks {
+	
+	private final AcquisitionStatus local;
+	private PeerChunks peer;
+	
+	// First word of each file, plus the total number of words at the end
+	private int[] fileStart;
+	
+	// Only files of this priority are included
+	private int priority;
+	private int[] priorities;
+	
+	UsefulChunks(AcquisitionStatus local, int numFiles) {
+		this.local = local;
+		this.fileStart = new int[numFiles + 1];
+	}
+	
+	/**
+	 * Points this at peer's chunks, for the next pick.
+	 */
+	void reset(PeerChunks peer) {
+		this.peer = peer;
+		
+		int word = 0;
+		for(int i=0; i<peer.numFiles(); i++) {
+			fileStart[i] = word;
+			word += peer.numWords(i);
+		}
+		fileStart[peer.numFiles()] = word;
+	}
+	
+	/**
+	 * Includes only the files whose priority is priority, for the next pick.
+	 */
+	void setPriority(int priority, int[] priorities) {
+		this.priority = priority;
+		this.priorities = priorities;
+	}
+	
+	/**
+	 * Returns the number of words the useful chunks are held in.
+	 */
+	public int numWords() {
+		return fileStart[fileStart.length - 1];
+	}
+	
+	/**
+	 * Returns the useful chunks at positions (64 * word) to (64 * word + 63), one bit each.
+	 */
+	public long getWord(int word) {
+		int fileid = fileOf(word);
+		int fileWord = word - fileStart[fileid];
+		
+		if(priorities[fileid] != priority) {
+			return 0;
+		}
+		return peer.getWord(fileid, fileWord) & ~local.getUnavailableWord(fileid, fileWord);
+	}
+	
+	/**
+	 * Returns the number of connected peers which have the chunk at position.
+	 */
+	public int getAvailability(long position) {
+		int word = (int)(position >>> 6);
+		int fileid = fileOf(word);
+		
+		return local.availabilityOf(fileid, (int)(position - ((long)fileStart[fileid] << 6)));
+	}
+	
+	/**
+	 * Returns the position of the first chunk we do not have, in the first included file we do not have every chunk of.
+	 * Whether or not it is useful. Returns -1 if we have every chunk.
+	 */
+	public long getFirstMissing() {
+		for(int i=0; i<peer.numFiles(); i++) {
+			int contiguous = local.getContiguousChunks(i);
+			
+			if(priorities[i] == priority && contiguous < peer.numChunks(i)) {
+				return ((long)fileStart[i] << 6) + contiguous;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the [fileid, chunkid] of the chunk at position.
+	 */
+	int[] getChunk(long position) {
+		int word = (int)(position >>> 6);
+		int fileid = fileOf(word);
+		
+		return new int[] { fileid, (int)(position - ((long)fileStart[fileid] << 6)) };
+	}
+	
+	/**
+	 * Returns the file holding word. Binary search, as there are usually far fewer files than words.
+	 */
+	private int fileOf(int word) {
+		int low = 0;
+		int high = fileStart.length - 2;
+		
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			
+			if(fileStart[mid] <= word) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		
+		return low;
+	}
+}
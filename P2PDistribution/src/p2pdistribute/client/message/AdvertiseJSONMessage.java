@@ -17,17 +17,30 @@ public class AdvertiseJSONMessage extends JSONMessage {
 	
 	// Map<FileID, ChunkID>.
 	public final List<List<Integer>> chunksComplete;
+	
+	// Highest P2P protocol version the sender supports. null if not sent (version 0 peer)
+	public final Integer protocolVersion;
 
 	public AdvertiseJSONMessage(List<List<Integer>> chunksComplete, String cmd, String metaHash) {
+		this(chunksComplete, cmd, metaHash, null);
+	}
+	
+	public AdvertiseJSONMessage(List<List<Integer>> chunksComplete, String cmd, String metaHash, Integer protocolVersion) {
 		super(cmd, metaHash);
 		
 		this.chunksComplete = chunksComplete;
+		this.protocolVersion = protocolVersion;
 	}
 	
 	public AdvertiseJSONMessage(int[][] chunksComplete, byte[] metaHash) {
+		this(chunksComplete, metaHash, null);
+	}
+	
+	public AdvertiseJSONMessage(int[][] chunksComplete, byte[] metaHash, Integer protocolVersion) {
 		super("advertise_chunks", new String(Hex.encodeHex(metaHash)));
 		
 		this.chunksComplete = convertIntsToLists(chunksComplete);
+		this.protocolVersion = protocolVersion;
 	}
 
 	@Override
@@ -36,6 +49,10 @@ public class AdvertiseJSONMessage extends JSONMessage {
 		
 		map.put("chunks", chunksComplete);
 		
+		if(protocolVersion != null) {
+			map.put("version", protocolVersion);
+		}
+		
 		return map;
 	}
 	
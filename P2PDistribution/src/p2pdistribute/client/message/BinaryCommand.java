@@ -0,0 +1,22 @@
+package p2pdistribute.client.message;
+
+/**
+ * Commands of version 1 (binary) control messages.
+ * The ordinal is the value of the command byte on the wire.
+ * 
+ * REQUEST_BLOCK and CANCEL_BLOCK are only sent to peers which support {@link P2PMessageParser#BLOCK_VERSION}.
+ * REQUEST_RANGE and CANCEL_RANGE are only sent to peers which support {@link P2PMessageParser#RANGE_VERSION}.
+ * CHOKE and UNCHOKE are only sent to peers which support {@link P2PMessageParser#CHOKE_VERSION}.
+ */
+public enum BinaryCommand {
+	ADVERTISE,
+	REQUEST,
+	CANCEL,
+	HAVE,
+	REQUEST_BLOCK,
+	CANCEL_BLOCK,
+	REQUEST_RANGE,
+	CANCEL_RANGE,
+	CHOKE,
+	UNCHOKE
+}
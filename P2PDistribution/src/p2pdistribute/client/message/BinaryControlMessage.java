@@ -0,0 +1,16 @@
+package p2pdistribute.client.message;
+
+/**
+ * Stores the properties common to every version 1 (binary) P2P control message
+ *
+ */
+public class BinaryControlMessage extends Message {
+	
+	public final BinaryCommand cmd;
+
+	public BinaryControlMessage(BinaryCommand cmd, short version, int length) {
+		super(version, MessageType.CONTROL, length);
+		
+		this.cmd = cmd;
+	}
+}
@@ -0,0 +1,32 @@
+package p2pdistribute.client.message;
+
+/**
+ * Represents a binary advertise message: one bitfield of complete chunks per file.
+ * 
+ * Bit (chunkid % 8) of byte (chunkid / 8) is set if chunkid is complete, most significant bit first.
+ */
+public class BitfieldAdvertiseMessage extends BinaryControlMessage {
+	
+	// Number of chunks each bitfield describes
+	public final int[] chunkCounts;
+	public final byte[][] bitfields;
+	
+	// Highest protocol version the sender supports. null if not sent (version 1 peers)
+	public final Integer protocolVersion;
+
+	public BitfieldAdvertiseMessage(int[] chunkCounts, byte[][] bitfields, Integer protocolVersion, short version, int length) {
+		super(BinaryCommand.ADVERTISE, version, length);
+		
+		this.chunkCounts = chunkCounts;
+		this.bitfields = bitfields;
+		this.protocolVersion = protocolVersion;
+	}
+	
+	/**
+	 * Returns true if the bitfield for fileid marks chunkid as complete.
+	 * @note No bounds checking is performed.
+	 */
+	public boolean isComplete(int fileid, int chunkid) {
+		return (bitfields[fileid][chunkid >>> 3] & (0x80 >>> (chunkid & 7))) != 0;
+	}
+}
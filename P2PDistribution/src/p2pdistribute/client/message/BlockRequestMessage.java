@@ -0,0 +1,20 @@
+package p2pdistribute.client.message;
+
+/**
+ * Represents a binary request or cancel message for a block: part of a single chunk.
+ *
+ */
+public class BlockRequestMessage extends ChunkRequestMessage {
+	
+	// Position within the chunk of the first byte of the block
+	public final int offset;
+	// Number of bytes in the block
+	public final int blockLength;
+	
+	public BlockRequestMessage(BinaryCommand cmd, int fileid, int chunkid, int offset, int blockLength, short version, int length) {
+		super(cmd, fileid, chunkid, version, length);
+		
+		this.offset = offset;
+		this.blockLength = blockLength;
+	}
+}
@@ -0,0 +1,18 @@
+package p2pdistribute.client.message;
+
+/**
+ * Represents a binary request or cancel message for a single chunk.
+ *
+ */
+public class ChunkRequestMessage extends BinaryControlMessage {
+
+	public final int fileid;
+	public final int chunkid;
+	
+	public ChunkRequestMessage(BinaryCommand cmd, int fileid, int chunkid, short version, int length) {
+		super(cmd, version, length);
+		
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+	}
+}
@@ -11,15 +11,40 @@ public class DataMessage extends Message {
 	public final byte[] metaHash;
 	public final int fileid;
 	public final int chunkid;
+	// Position within the chunk of the first byte of data. Always 0 for version 0 messages (whole chunk)
+	public final int offset;
 	public final byte[] data;
+	
+	// Number of bytes of chunk data. If data is null, these bytes have not yet been read from the stream.
+	public final int dataLength;
 
 	public DataMessage(byte[] metaHash, int fileid, int chunkid, byte[] chunkData, short version, MessageType type, int length) {
+		this(metaHash, fileid, chunkid, 0, chunkData, version, type, length);
+	}
+	
+	public DataMessage(byte[] metaHash, int fileid, int chunkid, int offset, byte[] chunkData, short version, MessageType type, int length) {
 		super(version, type, length);
 		
 		this.metaHash = metaHash;
 		this.fileid = fileid;
 		this.chunkid = chunkid;
+		this.offset = offset;
 		this.data = chunkData;
+		this.dataLength = chunkData.length;
+	}
+	
+	/**
+	 * Constructs a DataMessage whose chunk data has been left on the stream to be read separately.
+	 */
+	public DataMessage(byte[] metaHash, int fileid, int chunkid, int offset, int dataLength, short version, MessageType type, int length) {
+		super(version, type, length);
+		
+		this.metaHash = metaHash;
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+		this.offset = offset;
+		this.data = null;
+		this.dataLength = dataLength;
 	}
 
 }
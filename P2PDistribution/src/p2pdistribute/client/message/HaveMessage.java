@@ -0,0 +1,19 @@
+package p2pdistribute.client.message;
+
+/**
+ * Represents a binary have message: the chunks the sender has completed since it last advertised.
+ *
+ */
+public class HaveMessage extends BinaryControlMessage {
+	
+	// chunk i is (fileids[i], chunkids[i])
+	public final int[] fileids;
+	public final int[] chunkids;
+
+	public HaveMessage(int[] fileids, int[] chunkids, short version, int length) {
+		super(BinaryCommand.HAVE, version, length);
+		
+		this.fileids = fileids;
+		this.chunkids = chunkids;
+	}
+}
@@ -2,6 +2,7 @@ package p2pdistribute.client.message;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
@@ -22,6 +23,25 @@ import p2pdistribute.common.p2pmeta.ParserException;
  */
 public class P2PMessageParser {
 	
+	// Version 0: Control messages are JSON
+	public static final short JSON_VERSION = 0;
+	// Version 1: Control messages are binary: [1 byte BinaryCommand][command fields]
+	// 		Data messages carry a 4 byte offset after the chunk ID, so a chunk can be sent as several frames.
+	public static final short BINARY_VERSION = 1;
+	// Version 2: Adds REQUEST_BLOCK / CANCEL_BLOCK binary commands for part of a chunk. Messages are still encoded as
+	// 		version 1; support is only known from the version in the advertise each peer sends first.
+	public static final short BLOCK_VERSION = 2;
+	// Version 3: Adds REQUEST_RANGE / CANCEL_RANGE binary commands for consecutive chunks of a file.
+	public static final short RANGE_VERSION = 3;
+	// Version 4: Adds CHOKE / UNCHOKE binary commands. Requests sent to a peer which has choked us are not served.
+	public static final short CHOKE_VERSION = 4;
+	
+	// Highest protocol version we support, advertised to peers.
+	public static final short HIGHEST_VERSION = CHOKE_VERSION;
+	
+	// Message header + sizeof(hashLength) + largest hashLength + sizeof(int) + sizeof(int) + sizeof(int)
+	public static final int MAX_DATA_HEADER_LENGTH = 4 + 1 + 255 + 4 + 4 + 4;
+	
 	/**
 	 * Reads a message from the given InputStream, returning the parsed Message or throwing an Exception
 	 * @param stream
@@ -30,13 +50,26 @@ public class P2PMessageParser {
 	 * @throws IOException - Socket error occurred
 	 */
 	public static Message readMessage(InputStream stream) throws ParserException, IOException {
+		return readMessage(stream, true);
+	}
+	
+	/**
+	 * Reads a message from the given InputStream, returning the parsed Message or throwing an Exception
+	 * @param stream
+	 * @param readData - If false, the chunk data of a Data message is left unread on the stream, 
+	 * 		and must be read by the caller (see {@link DataMessage#dataLength}).
+	 * @return Message on success
+	 * @throws ParserException - Invalid data read off socket
+	 * @throws IOException - Socket error occurred
+	 */
+	public static Message readMessage(InputStream stream, boolean readData) throws ParserException, IOException {
 		
 		byte[] header = readBytes(stream, 4);
 		
-		byte version = (byte) (header[0] & (byte)0xf0);
+		byte version = (byte) ((header[0] >> 4) & 0x0f);
 		byte typeValue = (byte) (header[0] & (byte)0x0f);
 		
-		if(version != 0) {
+		if(version != JSON_VERSION && version != BINARY_VERSION) {
 			throw new ParserException("Encountered unsupported version: " + version);
 		}
 		
@@ -51,9 +84,12 @@ public class P2PMessageParser {
 		
 		switch(type) {
 		case CONTROL:
+			if(version == BINARY_VERSION) {
+				return readBinaryControlMessage(stream, version, length);
+			}
 			return readControlMessage(stream, version, length);
 		case DATA:
-			return readDataMessage(stream, version, length);
+			return readDataMessage(stream, version, length, readData);
 		default:
 			throw new ParserException("Unsupported Message type: " + typeValue);
 		}
@@ -86,6 +122,120 @@ public class P2PMessageParser {
 		return data;
 	}
 
+	/**
+	 * Serialises an advertise message containing one bitfield of complete chunks per file.
+	 * 
+	 * Format: [4 bytes number of files] then for each file 
+	 * 		[4 bytes number of chunks][(number of chunks + 7) / 8 bytes bitfield]
+	 * 		then [4 bytes highest protocol version supported]. Version 1 peers ignore this last field.
+	 * @param chunkCounts - The number of chunks in each file
+	 * @param bitfields - One bitfield per file. See {@link BitfieldAdvertiseMessage}
+	 * @return Message encoded and stored in a byte array
+	 */
+	public static byte[] serialiseBitfieldAdvertise(int[] chunkCounts, byte[][] bitfields) {
+		int length = 1 + 4 + 4;
+		for(int count : chunkCounts) {
+			length += 4 + getBitfieldLength(count);
+		}
+		
+		ByteBuffer buffer = allocateBinaryControl(BinaryCommand.ADVERTISE, length);
+		
+		buffer.putInt(chunkCounts.length);
+		for(int i=0; i<chunkCounts.length; i++) {
+			buffer.putInt(chunkCounts[i]);
+			buffer.put(bitfields[i], 0, getBitfieldLength(chunkCounts[i]));
+		}
+		buffer.putInt(HIGHEST_VERSION);
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Serialises a binary message referring to a single chunk. e.g. REQUEST or CANCEL
+	 * 
+	 * Format: [4 bytes fileid][4 bytes chunkid]
+	 * @return Message encoded and stored in a byte array
+	 */
+	public static byte[] serialiseChunkRequest(BinaryCommand cmd, int fileid, int chunkid) {
+		
+		ByteBuffer buffer = allocateBinaryControl(cmd, 1 + 4 + 4);
+		buffer.putInt(fileid);
+		buffer.putInt(chunkid);
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Serialises a binary message referring to part of a chunk. e.g. REQUEST_BLOCK or CANCEL_BLOCK
+	 * 
+	 * Format: [4 bytes fileid][4 bytes chunkid][4 bytes offset within chunk][4 bytes length]
+	 * @return Message encoded and stored in a byte array
+	 */
+	public static byte[] serialiseBlockRequest(BinaryCommand cmd, int fileid, int chunkid, int offset, int length) {
+		
+		ByteBuffer buffer = allocateBinaryControl(cmd, 1 + 4 + 4 + 4 + 4);
+		buffer.putInt(fileid);
+		buffer.putInt(chunkid);
+		buffer.putInt(offset);
+		buffer.putInt(length);
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Serialises a binary message referring to count consecutive chunks of a file. e.g. REQUEST_RANGE or CANCEL_RANGE
+	 * 
+	 * Format: [4 bytes fileid][4 bytes first chunkid][4 bytes number of chunks]
+	 * @return Message encoded and stored in a byte array
+	 */
+	public static byte[] serialiseRangeRequest(BinaryCommand cmd, int fileid, int chunkid, int count) {
+		
+		ByteBuffer buffer = allocateBinaryControl(cmd, 1 + 4 + 4 + 4);
+		buffer.putInt(fileid);
+		buffer.putInt(chunkid);
+		buffer.putInt(count);
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Serialises a binary message with no fields. e.g. CHOKE or UNCHOKE
+	 * 
+	 * Format: Just the command byte
+	 * @return Message encoded and stored in a byte array
+	 */
+	public static byte[] serialiseCommand(BinaryCommand cmd) {
+		
+		return allocateBinaryControl(cmd, 1).array();
+	}
+	
+	/**
+	 * Serialises a have message, listing newly completed chunks.
+	 * 
+	 * Format: [4 bytes number of chunks] then for each chunk [4 bytes fileid][4 bytes chunkid]
+	 * @param chunks - [fileid, chunkid] of each completed chunk
+	 * @return Message encoded and stored in a byte array
+	 */
+	public static byte[] serialiseHave(int[][] chunks) {
+		
+		ByteBuffer buffer = allocateBinaryControl(BinaryCommand.HAVE, 1 + 4 + (chunks.length * 8));
+		buffer.putInt(chunks.length);
+		
+		for(int[] chunk : chunks) {
+			buffer.putInt(chunk[0]);
+			buffer.putInt(chunk[1]);
+		}
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Returns the number of bytes in a bitfield describing numChunks chunks
+	 */
+	public static int getBitfieldLength(int numChunks) {
+		return (numChunks + 7) / 8;
+	}
+	
 	/**
 	 * 
 	 * Serialises a Data message into a byte array which can be sent over the network
@@ -97,26 +247,116 @@ public class P2PMessageParser {
 	 */
 	public static byte[] serialiseData(byte[] data, byte[] metaHash, int fileid, int chunkid) {
 		
-		int length = 1 + metaHash.length + 4 + 4 + data.length; 
+		ByteBuffer dataBuffer = ByteBuffer.allocate(getDataHeaderLength(metaHash) + data.length);
 		
-		ByteBuffer dataBuffer = ByteBuffer.allocate(4 + length).order(ByteOrder.BIG_ENDIAN);
-		dataBuffer.putInt(length);
-
-		dataBuffer.put((byte)metaHash.length);
-		dataBuffer.put(metaHash);
-		dataBuffer.putInt(fileid);
-		dataBuffer.putInt(chunkid);
+		serialiseDataHeader(dataBuffer, metaHash, fileid, chunkid, data.length);
 		dataBuffer.put(data);
 		
-		byte[] serialised = dataBuffer.array();
+		return dataBuffer.array();
+	}
+	
+	/**
+	 * Writes everything of a Data message except the chunk data itself into buffer.
+	 * The chunk data must then be sent immediately after the header (e.g. straight from the file).
+	 * @param buffer - The buffer to write into. Must have {@link #getDataHeaderLength(byte[])} bytes remaining
+	 * @param metaHash - The metahash this data relates to
+	 * @param fileid - The file ID the data relates to
+	 * @param chunkid - The chunk ID of the data
+	 * @param dataLength - The number of bytes of chunk data which will follow the header
+	 */
+	public static void serialiseDataHeader(ByteBuffer buffer, byte[] metaHash, int fileid, int chunkid, int dataLength) {
+		
+		int length = 1 + metaHash.length + 4 + 4 + dataLength;
 		
-		// Set first two bytes to 0x01 (version zero, MessageType 1)
-		serialised[0] = 0x01;
+		buffer.order(ByteOrder.BIG_ENDIAN);
 		
-		return serialised;
+		// First byte 0x01 (version zero, MessageType 1), followed by 3 bytes of length
+		buffer.putInt((0x01 << 24) | length);
+
+		buffer.put((byte)metaHash.length);
+		buffer.put(metaHash);
+		buffer.putInt(fileid);
+		buffer.putInt(chunkid);
 	}
 	
-	private static DataMessage readDataMessage(InputStream stream, byte version, int length) throws IOException {
+	/**
+	 * Writes the header of a version 1 Data message (a frame of chunk data) into buffer.
+	 * The frame's chunk data must be sent immediately after the header.
+	 * @param buffer - The buffer to write into. Must have {@link #getDataFrameHeaderLength(byte[])} bytes remaining
+	 * @param metaHash - The metahash this data relates to
+	 * @param fileid - The file ID the data relates to
+	 * @param chunkid - The chunk ID of the data
+	 * @param offset - The position within the chunk of the first byte of this frame
+	 * @param dataLength - The number of bytes of chunk data in this frame
+	 */
+	public static void serialiseDataFrameHeader(ByteBuffer buffer, byte[] metaHash, int fileid, int chunkid, int offset, int dataLength) {
+		
+		int length = 1 + metaHash.length + 4 + 4 + 4 + dataLength;
+		
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		
+		// First byte 0x11 (version one, MessageType 1), followed by 3 bytes of length
+		buffer.putInt((BINARY_VERSION << 28) | (0x01 << 24) | length);
+
+		buffer.put((byte)metaHash.length);
+		buffer.put(metaHash);
+		buffer.putInt(fileid);
+		buffer.putInt(chunkid);
+		buffer.putInt(offset);
+	}
+	
+	/**
+	 * Returns the number of bytes {@link #serialiseDataFrameHeader} will write.
+	 */
+	public static int getDataFrameHeaderLength(byte[] metaHash) {
+		return getDataHeaderLength(metaHash) + 4;
+	}
+	
+	/**
+	 * Returns the number of bytes {@link #serialiseDataHeader(ByteBuffer, byte[], int, int, int)} will write.
+	 */
+	public static int getDataHeaderLength(byte[] metaHash) {
+		// Message header + sizeof(hashLength) + hashLength + sizeof(int) + sizeof(int)
+		return 4 + 1 + metaHash.length + 4 + 4;
+	}
+	
+	/**
+	 * Works out how many bytes of the message at the start of buffer must be received before it can be read 
+	 * 		by {@link #readMessage(InputStream, boolean)} with readData false.
+	 * For Data messages this is the header only (the chunk data follows), otherwise it is the whole message.
+	 * Used to read messages from a non-blocking socket.
+	 * @param buffer - Received bytes, from position to limit. Not modified.
+	 * @return The number of bytes needed, or -1 if more bytes must be received to tell.
+	 */
+	public static int getReadLength(ByteBuffer buffer) {
+		if(buffer.remaining() < 4) {
+			return -1;
+		}
+		
+		int header = buffer.duplicate().order(ByteOrder.BIG_ENDIAN).getInt();
+		int version = (header >> 28) & 0x0f;
+		int typeValue = (header >> 24) & 0x0f;
+		int length = header & 0x00ffffff;
+		
+		if(typeValue != MessageType.DATA.ordinal()) {
+			return 4 + length;
+		}
+		
+		if(buffer.remaining() < 5) {
+			return -1;
+		}
+		int hashLength = getShortFromByte(buffer.get(buffer.position() + 4));
+		
+		// Message header + sizeof(hashLength) + hashLength + sizeof(int) + sizeof(int) (+ sizeof(int) in version 1)
+		int headerLength = 4 + 1 + hashLength + 4 + 4;
+		if(version == BINARY_VERSION) {
+			headerLength += 4;
+		}
+		
+		return headerLength;
+	}
+	
+	private static DataMessage readDataMessage(InputStream stream, byte version, int length, boolean readData) throws IOException, ParserException {
 		
 		// read 1 byte (hash length): N
 		short hashLength = getShortFromByte(readBytes(stream, 1)[0]);
@@ -134,9 +374,127 @@ public class P2PMessageParser {
 		int chunkid = buffer.getInt();
 		
 				// sizeof(hashLength) - sizeof(int) - sizeof(int) - hashLength
-		byte[] data = readBytes(stream, length - 1 - 4 - 4 -hashLength);
+		int dataLength = length - 1 - 4 - 4 -hashLength;
+		
+		// Version 1: Read 4 bytes (offset within chunk)
+		int offset = 0;
+		if(version == BINARY_VERSION) {
+			offset = ByteBuffer.wrap(readBytes(stream, 4)).order(ByteOrder.BIG_ENDIAN).getInt();
+			dataLength -= 4;
+		}
+		
+		if(dataLength < 0) {
+			throw new ParserException("Data message too short for its header");
+		}
 		
-		return new DataMessage(metaHash, fileid, chunkid, data, version, MessageType.DATA, length);
+		if(!readData) {
+			return new DataMessage(metaHash, fileid, chunkid, offset, dataLength, version, MessageType.DATA, length);
+		}
+		
+		byte[] data = readBytes(stream, dataLength);
+		
+		return new DataMessage(metaHash, fileid, chunkid, offset, data, version, MessageType.DATA, length);
+	}
+	
+	/**
+	 * Allocates a buffer for a binary control message, with the message header and command byte already written
+	 * @param length - Length of the message, including the command byte
+	 */
+	private static ByteBuffer allocateBinaryControl(BinaryCommand cmd, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + length).order(ByteOrder.BIG_ENDIAN);
+		
+		// First byte 0x10 (version one, MessageType 0), followed by 3 bytes of length
+		buffer.putInt((BINARY_VERSION << 28) | length);
+		buffer.put((byte)cmd.ordinal());
+		
+		return buffer;
+	}
+	
+	private static BinaryControlMessage readBinaryControlMessage(InputStream stream, byte version, int length) throws IOException, ParserException {
+		
+		ByteBuffer buffer = ByteBuffer.wrap(readBytes(stream, length)).order(ByteOrder.BIG_ENDIAN);
+		
+		try {
+			int cmdValue = buffer.get();
+			
+			if(cmdValue < 0 || cmdValue >= BinaryCommand.values().length) {
+				throw new ParserException("Received invalid binary message command: " + cmdValue);
+			}
+			
+			BinaryCommand cmd = BinaryCommand.values()[cmdValue];
+			
+			switch(cmd) {
+			case ADVERTISE:
+				return parseBitfieldAdvertise(buffer, version, length);
+			case REQUEST:
+			case CANCEL:
+				return new ChunkRequestMessage(cmd, buffer.getInt(), buffer.getInt(), version, length);
+			case REQUEST_BLOCK:
+			case CANCEL_BLOCK:
+				return new BlockRequestMessage(cmd, buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), version, length);
+			case REQUEST_RANGE:
+			case CANCEL_RANGE:
+				return new RangeRequestMessage(cmd, buffer.getInt(), buffer.getInt(), buffer.getInt(), version, length);
+			case HAVE:
+				return parseHave(buffer, version, length);
+			case CHOKE:
+			case UNCHOKE:
+				return new BinaryControlMessage(cmd, version, length);
+			default:
+				throw new ParserException("Received invalid binary message command: " + cmdValue);
+			}
+		} catch(BufferUnderflowException e) {
+			throw new ParserException("Binary control message shorter than its contents");
+		}
+	}
+	
+	private static BitfieldAdvertiseMessage parseBitfieldAdvertise(ByteBuffer buffer, byte version, int length) throws ParserException {
+		int numFiles = buffer.getInt();
+		
+		// Each file takes at least 4 bytes, don't allocate for more files than could possibly be present
+		if(numFiles < 0 || numFiles > buffer.remaining() / 4) {
+			throw new ParserException("Invalid number of files in advertise: " + numFiles);
+		}
+		
+		int[] chunkCounts = new int[numFiles];
+		byte[][] bitfields = new byte[numFiles][];
+		
+		for(int i=0; i<numFiles; i++) {
+			chunkCounts[i] = buffer.getInt();
+			
+			if(chunkCounts[i] < 0 || getBitfieldLength(chunkCounts[i]) > buffer.remaining()) {
+				throw new ParserException("Invalid number of chunks in advertise: " + chunkCounts[i]);
+			}
+			
+			bitfields[i] = new byte[getBitfieldLength(chunkCounts[i])];
+			buffer.get(bitfields[i]);
+		}
+		
+		// Absent from version 1 peers
+		Integer protocolVersion = null;
+		if(buffer.remaining() >= 4) {
+			protocolVersion = buffer.getInt();
+		}
+		
+		return new BitfieldAdvertiseMessage(chunkCounts, bitfields, protocolVersion, version, length);
+	}
+	
+	private static HaveMessage parseHave(ByteBuffer buffer, byte version, int length) throws ParserException {
+		int count = buffer.getInt();
+		
+		if(count < 0 || count > buffer.remaining() / 8) {
+			throw new ParserException("Invalid number of chunks in have: " + count);
+		}
+		
+		int[] fileids = new int[count];
+		int[] chunkids = new int[count];
+		
+		for(int i=0; i<count; i++) {
+			fileids[i] = buffer.getInt();
+			chunkids[i] = buffer.getInt();
+		}
+		
+		return new HaveMessage(fileids, chunkids, version, length);
 	}
 	
 	private static ControlMessage readControlMessage(InputStream stream, byte version, int length) throws IOException, ParserException {
@@ -175,7 +533,14 @@ public class P2PMessageParser {
 			chunksComplete.add(Arrays.asList(new Integer[] { values[0], values[1] }));
 		}
 		
-		return new AdvertiseJSONMessage(chunksComplete, cmd, metaHash);
+		// Highest protocol version the sender supports. Absent from version 0 peers.
+		Integer protocolVersion = null;
+		if(json.get("version") != null) {
+			MessageParserUtils.validateFieldType(json, "version", Long.class);
+			protocolVersion = ((Long)json.get("version")).intValue();
+		}
+		
+		return new AdvertiseJSONMessage(chunksComplete, cmd, metaHash, protocolVersion);
 	}
 
 	private static JSONMessage parseRequestMessage(JSONObject json, String cmd, String metaHash) throws ParserException {
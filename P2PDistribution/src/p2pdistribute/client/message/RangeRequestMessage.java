@@ -0,0 +1,22 @@
+package p2pdistribute.client.message;
+
+/**
+ * Represents a binary request or cancel message for a range of consecutive chunks in one file.
+ *
+ */
+public class RangeRequestMessage extends BinaryControlMessage {
+	
+	public final int fileid;
+	// First chunk of the range
+	public final int chunkid;
+	// Number of chunks in the range
+	public final int count;
+	
+	public RangeRequestMessage(BinaryCommand cmd, int fileid, int chunkid, int count, short version, int length) {
+		super(cmd, version, length);
+		
+		this.fileid = fileid;
+		this.chunkid = chunkid;
+		this.count = count;
+	}
+}
@@ -0,0 +1,50 @@
+package p2pdistribute.common;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used for each connection (peer read/write threads, listeners, swarm manager client handlers).
+ *
+ * If {@link #VIRTUAL} is set and the JVM supports them (Java 21+), these are virtual threads, so thousands of
+ * 		blocked connections cost little more than their stacks. Otherwise normal platform threads are used.
+ *
+ * @note Virtual threads are looked up by reflection so the code still builds and runs on older JDKs.
+ */
+public class Threads {
+	
+	// Use virtual threads where supported
+	public static boolean VIRTUAL = false; // TODO Future Task: Settings file
+	
+	// Thread.ofVirtual().factory(). null if virtual threads are not supported.
+	private static final ThreadFactory virtualFactory = lookupVirtualFactory();
+	
+	/**
+	 * Returns true if this JVM can create virtual threads.
+	 */
+	public static boolean virtualSupported() {
+		return virtualFactory != null;
+	}
+	
+	/**
+	 * Creates (but does not start) a thread to run task.
+	 * @return a virtual thread if {@link #VIRTUAL} is set and supported, otherwise a platform thread.
+	 */
+	public static Thread newThread(Runnable task) {
+		if(VIRTUAL && virtualSupported()) {
+			return virtualFactory.newThread(task);
+		}
+		
+		return new Thread(task);
+	}
+	
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			// Older JVM, or virtual threads are a preview feature which is not enabled
+			return null;
+		}
+	}
+}
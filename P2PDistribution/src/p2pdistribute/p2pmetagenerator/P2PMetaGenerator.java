@@ -8,6 +8,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -26,6 +27,20 @@ public class P2PMetaGenerator {
 	private static int numInputFiles;
 
 	public static void main(String[] args) {
+		// Larger chunks are downloaded in blocks from several peers, see FileManager.BLOCK_SIZE
+		if(args.length >= 2 && args[0].equals("--chunk-size")) {
+			try {
+				CHUNK_SIZE = Integer.parseInt(args[1]);
+			} catch(NumberFormatException e) {
+				CHUNK_SIZE = 0;
+			}
+			if(CHUNK_SIZE <= 0) {
+				System.out.println("Invalid chunk size: " + args[1]);
+				return;
+			}
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		
 		if(!verifyArgs(args)) {
 			return;
 		}
@@ -55,7 +70,7 @@ public class P2PMetaGenerator {
 	
 	private static boolean verifyArgs(String[] args) {
 		if(args.length < 3) {
-			System.out.println("Usage: <SwarmManagerHostname> <FileToSend1> ... <FileToSendN> <P2PMetaOutputFile>");
+			System.out.println("Usage: [--chunk-size <bytes>] <SwarmManagerHostname> <FileToSend1> ... <FileToSendN> <P2PMetaOutputFile>");
 			return false;
 		}
 		smHostname = args[0];
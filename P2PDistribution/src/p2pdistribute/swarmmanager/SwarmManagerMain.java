@@ -7,11 +7,26 @@ import java.net.Socket;
 import java.util.Iterator;
 import java.util.LinkedList;
 
+import p2pdistribute.common.Threads;
+
 public class SwarmManagerMain {
 
 	public static final int PORT = 8889; // TODO Future Task: Settings file. Or store SM Port in .p2pmeta file
 	
 	public static void main(String[] args) {
+		for(String arg : args) {
+			if(arg.equals("--virtual-threads")) {
+				Threads.VIRTUAL = true;
+			} else {
+				System.out.println("Usage: [--virtual-threads]");
+				return;
+			}
+		}
+		
+		if(Threads.VIRTUAL && !Threads.virtualSupported()) {
+			System.out.println("Virtual threads are not supported by this JVM. Using platform threads.");
+		}
+		
 		ServerSocket server;
 		
 		try {
@@ -88,7 +103,7 @@ public class SwarmManagerMain {
 	private static Thread startClientThread(Socket client, SwarmIndex index) {
 		Thread clientThread;
 		try {
-			clientThread = new Thread(new ClientHandler(client, index));
+			clientThread = Threads.newThread(new ClientHandler(client, index));
 		} catch (IOException e) {
 			System.out.println("Error occured when accepting client. Continuing...");
 			return null;
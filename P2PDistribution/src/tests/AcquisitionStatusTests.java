@@ -0,0 +1,361 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.ChunkPicker;
+import p2pdistribute.client.filemanager.ChunkStatusChangeHandler;
+import p2pdistribute.client.filemanager.PeerChunks;
+import p2pdistribute.client.filemanager.RandomChunkPicker;
+import p2pdistribute.client.filemanager.RarestFirstChunkPicker;
+import p2pdistribute.client.filemanager.Status;
+import p2pdistribute.client.filemanager.StreamingChunkPicker;
+
+public class AcquisitionStatusTests {
+	
+	private AcquisitionStatus local;
+	private AcquisitionStatus peer;
+	
+	@Before
+	public void setUp() {
+		// One file of 4 chunks, none of which we have
+		local = new AcquisitionStatus(1);
+		local.setStatus(0, new Status[] { Status.INCOMPLETE, Status.INCOMPLETE, Status.INCOMPLETE, Status.INCOMPLETE });
+		
+		// Peer has every chunk
+		peer = new AcquisitionStatus(local);
+		for(int i=0; i<4; i++) {
+			peer.setStatus(0, i, Status.COMPLETE);
+		}
+	}
+	
+	// Test rarest first always picks the chunk fewest peers have
+	@Test
+	public void testRarestFirst() {
+		local.setPicker(new RarestFirstChunkPicker());
+		
+		for(int i=0; i<4; i++) {
+			for(int j=i; j<4; j++) {
+				local.addAvailability(0, j);
+			}
+		}
+		local.addAvailability(0, 3);
+		
+		// Chunk 0 is the rarest and chunk 3 the most common.
+		for(int i=0; i<4; i++) {
+			assertArrayEquals(new int[] { 0, i }, local.pickUsefulChunk(peer));
+			assertEquals(Status.INPROGRESS, local.getStatus(0, i));
+		}
+		
+		assertNull(local.pickUsefulChunk(peer));
+	}
+	
+	// Test availability is reduced once a peer leaves
+	@Test
+	public void testRemoveAvailability() {
+		local.setPicker(new RarestFirstChunkPicker());
+		
+		for(int i=0; i<4; i++) {
+			local.addAvailability(0, i);
+		}
+		local.addAvailability(0, 2);
+		
+		local.removeAvailability(0, 0);
+		local.removeAvailability(0, 1);
+		local.removeAvailability(0, 3);
+		
+		assertEquals(2, local.getAvailability(0, 2));
+		assertEquals(0, local.getAvailability(0, 3));
+		
+		// Chunk 2 is the only one still available from another peer, so it is picked last
+		for(int i=0; i<3; i++) {
+			assertNotEquals(2, local.pickUsefulChunk(peer)[1]);
+		}
+		assertArrayEquals(new int[] { 0, 2 }, local.pickUsefulChunk(peer));
+	}
+	
+	// Test only chunks we need which the peer has are picked
+	@Test
+	public void testRandomPicksUsefulChunks() {
+		local.setPicker(new RandomChunkPicker());
+		local.setStatus(0, 1, Status.COMPLETE);
+		
+		AcquisitionStatus partialPeer = new AcquisitionStatus(local);
+		partialPeer.setStatus(0, 1, Status.COMPLETE);
+		partialPeer.setStatus(0, 2, Status.COMPLETE);
+		
+		assertArrayEquals(new int[] { 0, 2 }, local.pickUsefulChunk(partialPeer));
+		assertNull(local.pickUsefulChunk(partialPeer));
+	}
+	
+	// Test the running totals follow every change of status
+	@Test
+	public void testCompleteCounts() {
+		assertEquals(0, local.numChunksComplete());
+		assertFalse(local.complete());
+		
+		local.setStatus(0, 0, Status.COMPLETE);
+		local.setStatus(0, 0, Status.COMPLETE);
+		local.setStatus(0, 1, Status.INPROGRESS);
+		local.setStatus(0, 1, Status.COMPLETE);
+		assertEquals(2, local.numChunksComplete());
+		
+		local.setStatus(0, 1, Status.INCOMPLETE);
+		assertEquals(1, local.numChunksComplete());
+		
+		for(int i=0; i<4; i++) {
+			local.setStatus(0, i, Status.COMPLETE);
+		}
+		assertEquals(4, local.numChunksComplete());
+		assertTrue(local.complete());
+		assertTrue(peer.complete());
+		
+		// Replacing a file's statuses replaces its counts
+		local.setStatus(0, new Status[] { Status.COMPLETE, Status.INCOMPLETE });
+		assertEquals(1, local.numChunksComplete());
+		assertFalse(local.complete());
+	}
+	
+	// Test handlers are told about each chunk once, when it becomes COMPLETE
+	@Test
+	public void testHandlerCalledOnce() {
+		final int[] calls = new int[1];
+		local.registerHandler(new ChunkStatusChangeHandler() {
+			@Override
+			public void onChunkComplete(int fileid, int chunkid) {
+				calls[0]++;
+			}
+		});
+		
+		local.setStatus(0, 2, Status.COMPLETE);
+		local.setStatus(0, 2, Status.COMPLETE);
+		
+		assertEquals(1, calls[0]);
+	}
+	
+	// Test releasing a picked chunk does not undo it being completed
+	@Test
+	public void testReleaseChunk() {
+		int[] chunk = local.pickUsefulChunk(peer);
+		assertEquals(Status.INPROGRESS, local.getStatus(chunk[0], chunk[1]));
+		
+		local.setStatus(chunk[0], chunk[1], Status.COMPLETE);
+		
+		assertFalse(local.releaseChunk(chunk[0], chunk[1]));
+		assertEquals(Status.COMPLETE, local.getStatus(chunk[0], chunk[1]));
+		
+		chunk = local.pickUsefulChunk(peer);
+		assertTrue(local.releaseChunk(chunk[0], chunk[1]));
+		assertEquals(Status.INCOMPLETE, local.getStatus(chunk[0], chunk[1]));
+	}
+	
+	// Test chunks are found across several files, including empty ones and chunks past the first word
+	@Test
+	public void testPickAcrossFiles() {
+		AcquisitionStatus status = new AcquisitionStatus(3);
+		status.setStatus(0, new Status[70]);
+		status.setStatus(1, new Status[0]);
+		status.setStatus(2, new Status[130]);
+		
+		PeerChunks chunks = new PeerChunks(status.getChunkCounts());
+		chunks.add(0, 69);
+		chunks.add(2, 129);
+		
+		for(ChunkPicker picker : new ChunkPicker[] { new RandomChunkPicker(), new RarestFirstChunkPicker() }) {
+			status.setPicker(picker);
+			
+			int[] first = status.pickUsefulChunk(chunks);
+			int[] second = status.pickUsefulChunk(chunks);
+			assertNull(status.pickUsefulChunk(chunks));
+			
+			assertEquals(1, (first[0] == 0 ? 1 : 0) + (second[0] == 0 ? 1 : 0));
+			assertEquals(first[0] == 0 ? 69 : 129, first[1]);
+			assertEquals(second[0] == 0 ? 69 : 129, second[1]);
+			
+			status.releaseChunk(first[0], first[1]);
+			status.releaseChunk(second[0], second[1]);
+		}
+	}
+	
+	@Test
+	public void testStreaming() {
+		Status[] statuses = new Status[100];
+		for(int i=0; i<statuses.length; i++) {
+			statuses[i] = (i < 10 || i == 11) ? Status.COMPLETE : Status.INCOMPLETE;
+		}
+		
+		AcquisitionStatus status = new AcquisitionStatus(1);
+		status.setStatus(0, statuses);
+		status.setPicker(new StreamingChunkPicker(new RandomChunkPicker()));
+		assertEquals(10, status.getContiguousChunks(0));
+		
+		PeerChunks all = new PeerChunks(status.getChunkCounts());
+		for(int i=0; i<100; i++) {
+			all.add(0, i);
+		}
+		
+		// Lowest chunks not COMPLETE or INPROGRESS
+		assertEquals(10, status.pickUsefulChunk(all)[1]);
+		assertEquals(12, status.pickUsefulChunk(all)[1]);
+		
+		status.setStatus(0, 12, Status.COMPLETE);
+		assertEquals(10, status.getContiguousChunks(0));
+		status.setStatus(0, 10, Status.COMPLETE);
+		assertEquals(13, status.getContiguousChunks(0));
+		
+		// Nothing inside the window, so falls back
+		PeerChunks far = new PeerChunks(status.getChunkCounts());
+		far.add(0, 90);
+		assertEquals(90, status.pickUsefulChunk(far)[1]);
+		
+		status.setStatus(0, 5, Status.INCOMPLETE);
+		assertEquals(5, status.getContiguousChunks(0));
+	}
+	
+	@Test
+	public void testPriorities() {
+		AcquisitionStatus status = new AcquisitionStatus(3);
+		status.setStatus(0, incomplete(10));
+		status.setStatus(1, incomplete(10));
+		status.setStatus(2, incomplete(10));
+		
+		status.setPriority(0, AcquisitionStatus.NORMAL);
+		status.setPriority(1, 5);
+		status.setPriority(2, AcquisitionStatus.SKIP);
+		
+		PeerChunks all = new PeerChunks(status.getChunkCounts());
+		for(int f=0; f<3; f++) {
+			for(int c=0; c<10; c++) {
+				all.add(f, c);
+			}
+		}
+		
+		// Higher priority file first, then normal, never the skipped file
+		for(int i=0; i<10; i++) {
+			assertEquals(1, status.pickUsefulChunk(all)[0]);
+		}
+		for(int i=0; i<10; i++) {
+			assertEquals(0, status.pickUsefulChunk(all)[0]);
+		}
+		assertNull(status.pickUsefulChunk(all));
+		
+		// Skipped file is not needed to be complete
+		for(int f=0; f<2; f++) {
+			for(int c=0; c<10; c++) {
+				assertFalse(status.complete());
+				status.setStatus(f, c, Status.COMPLETE);
+			}
+		}
+		assertTrue(status.complete());
+		assertEquals(20, status.numWantedChunks());
+		assertEquals(20, status.numWantedChunksComplete());
+	}
+	
+	@Test
+	public void testPickRange() {
+		Status[] statuses = incomplete(20);
+		statuses[0] = Status.COMPLETE;
+		statuses[5] = Status.COMPLETE;
+		
+		AcquisitionStatus status = new AcquisitionStatus(1);
+		status.setStatus(0, statuses);
+		status.setPicker(new StreamingChunkPicker(new RandomChunkPicker()));
+		
+		PeerChunks all = new PeerChunks(status.getChunkCounts());
+		for(int i=0; i<20; i++) {
+			all.add(0, i);
+		}
+		
+		// Stops before a chunk we have
+		assertArrayEquals(new int[] { 0, 1, 4 }, status.pickUsefulRange(all, 8));
+		assertEquals(Status.INPROGRESS, status.getStatus(0, 4));
+		
+		// Stops at the limit
+		assertArrayEquals(new int[] { 0, 6, 8 }, status.pickUsefulRange(all, 8));
+		
+		// Stops before a chunk the peer does not have
+		PeerChunks some = new PeerChunks(status.getChunkCounts());
+		for(int i=0; i<17; i++) {
+			some.add(0, i);
+		}
+		assertArrayEquals(new int[] { 0, 14, 3 }, status.pickUsefulRange(some, 8));
+		assertNull(status.pickUsefulRange(some, 8));
+	}
+	
+	@Test
+	public void testEndgameChunks() {
+		AcquisitionStatus status = new AcquisitionStatus(1);
+		status.setStatus(0, incomplete(100));
+		
+		PeerChunks all = new PeerChunks(status.getChunkCounts());
+		for(int i=0; i<100; i++) {
+			all.add(0, i);
+		}
+		
+		int[] reserved = status.pickUsefulChunk(all);
+		assertTrue(status.getEndgameChunks(all).isEmpty());
+		
+		// Leave only the reserved chunk and one other missing
+		int other = -1;
+		for(int i=0; i<100; i++) {
+			if(i == reserved[1]) {
+				continue;
+			}
+			if(other < 0) {
+				other = i;
+			} else {
+				status.setStatus(0, i, Status.COMPLETE);
+			}
+		}
+		
+		// Only chunks already being downloaded are requested twice
+		List<int[]> chunks = status.getEndgameChunks(all);
+		assertEquals(1, chunks.size());
+		assertEquals(reserved[1], chunks.get(0)[1]);
+		
+		PeerChunks none = new PeerChunks(status.getChunkCounts());
+		assertTrue(status.getEndgameChunks(none).isEmpty());
+		
+		status.setStatus(0, reserved[1], Status.COMPLETE);
+		assertTrue(status.getEndgameChunks(all).isEmpty());
+	}
+	
+	// Test the endgame starts once no more than ENDGAME_CHUNKS wanted chunks are missing, not counting skipped files
+	@Test
+	public void testEndgameThreshold() {
+		AcquisitionStatus status = new AcquisitionStatus(2);
+		status.setStatus(0, incomplete(AcquisitionStatus.ENDGAME_CHUNKS + 1));
+		status.setStatus(1, incomplete(10));
+		status.setPriority(1, AcquisitionStatus.SKIP);
+		
+		PeerChunks all = new PeerChunks(status.getChunkCounts());
+		for(int f=0; f<2; f++) {
+			for(int c=0; c<status.getChunkCounts()[f]; c++) {
+				all.add(f, c);
+			}
+		}
+		
+		int[] reserved = status.pickUsefulChunk(all);
+		assertEquals(0, reserved[0]);
+		status.reserveChunk(1, 0);
+		
+		assertTrue(status.getEndgameChunks(all).isEmpty());
+		
+		status.setStatus(0, reserved[1] == 0 ? 1 : 0, Status.COMPLETE);
+		List<int[]> chunks = status.getEndgameChunks(all);
+		assertEquals(1, chunks.size());
+		assertArrayEquals(reserved, chunks.get(0));
+	}
+	
+	private static Status[] incomplete(int numChunks) {
+		Status[] statuses = new Status[numChunks];
+		Arrays.fill(statuses, Status.INCOMPLETE);
+		return statuses;
+	}
+}
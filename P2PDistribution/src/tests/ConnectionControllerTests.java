@@ -0,0 +1,82 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import p2pdistribute.client.ConnectionController;
+
+public class ConnectionControllerTests {
+	
+	private static final long INTERVAL = ConnectionController.ADJUST_INTERVAL_MS * 1000000L;
+	
+	// Test peers are added while the rate rises, and shed once it stops rising
+	@Test
+	public void testHillClimb() {
+		ConnectionController controller = new ConnectionController(0);
+		int initial = controller.getTarget();
+		int step = ConnectionController.STEP;
+		
+		// Not adjusted until a whole interval has passed
+		assertFalse(controller.update(1000, initial, INTERVAL / 2));
+		
+		long bytes = 0;
+		long now = 0;
+		
+		// First measurement, then the rate rises
+		for(int i=1; i<=2; i++) {
+			bytes += i * 1000000L;
+			now += INTERVAL;
+			assertTrue(controller.update(bytes, controller.getTarget(), now));
+			assertEquals(initial + i * step, controller.getTarget());
+		}
+		
+		// Same rate again: more peers didn't help
+		bytes += 2000000L;
+		now += INTERVAL;
+		controller.update(bytes, controller.getTarget(), now);
+		assertEquals(initial + step, controller.getTarget());
+		
+		// Shedding made it worse
+		bytes += 1000000L;
+		now += INTERVAL;
+		controller.update(bytes, controller.getTarget(), now);
+		assertEquals(initial + 2 * step, controller.getTarget());
+	}
+	
+	// Test the target is held while it can't be reached, and kept within bounds
+	@Test
+	public void testBounds() {
+		ConnectionController controller = new ConnectionController(0);
+		int initial = controller.getTarget();
+		
+		controller.update(1000000L, 1, INTERVAL);
+		assertEquals(initial, controller.getTarget());
+		
+		long bytes = 1000000L;
+		long now = INTERVAL;
+		for(int i=0; i<100; i++) {
+			// Flat rate sheds peers down to the lower bound
+			bytes += 1000000L;
+			now += INTERVAL;
+			controller.update(bytes, controller.getTarget(), now);
+		}
+		assertEquals(ConnectionController.MIN_PEERS, controller.getTarget());
+		
+		// Rate falls, so peers are added again
+		bytes += 500000L;
+		now += INTERVAL;
+		controller.update(bytes, controller.getTarget(), now);
+		assertEquals(ConnectionController.MIN_PEERS + ConnectionController.STEP, controller.getTarget());
+		
+		long perInterval = 500000L;
+		for(int i=0; i<30; i++) {
+			// Rate keeps rising, adds peers up to the upper bound
+			perInterval = perInterval * 5 / 4;
+			bytes += perInterval;
+			now += INTERVAL;
+			controller.update(bytes, controller.getTarget(), now);
+		}
+		assertEquals(ConnectionController.MAX_PEERS, controller.getTarget());
+	}
+}
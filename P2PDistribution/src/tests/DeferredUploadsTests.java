@@ -0,0 +1,100 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import p2pdistribute.client.DeferredUploads;
+import p2pdistribute.client.RequestWindow;
+
+public class DeferredUploadsTests {
+	
+	private static final int WHOLE = RequestWindow.WHOLE_CHUNK;
+	
+	// Test repeating the same range request adds nothing, however many times it is sent
+	@Test
+	public void testRepeatedRange() {
+		DeferredUploads uploads = new DeferredUploads(4);
+		
+		for(int i=0; i<1000; i++) {
+			assertTrue(uploads.addRange(0, 0, 16));
+		}
+		assertEquals(1, uploads.size());
+		assertEquals(16, uploads.numUploads());
+		
+		for(int i=0; i<16; i++) {
+			assertArrayEquals(new int[] { 0, i, 0, WHOLE }, uploads.poll());
+		}
+		assertNull(uploads.poll());
+	}
+	
+	// Test a range overlapping chunks already held only adds the chunks which are not
+	@Test
+	public void testOverlappingRange() {
+		DeferredUploads uploads = new DeferredUploads(8);
+		
+		assertTrue(uploads.addChunk(0, 5));
+		assertTrue(uploads.addRange(0, 0, 3));
+		assertTrue(uploads.addRange(0, 2, 6));
+		
+		// [5], [0-2], then 3, 4, 6 and 7 of the last range
+		assertEquals(4, uploads.size());
+		assertEquals(8, uploads.numUploads());
+		
+		// The same chunks of another file are not held
+		assertTrue(uploads.addChunk(1, 5));
+		assertEquals(9, uploads.numUploads());
+		
+		int[] order = { 5, 0, 1, 2, 3, 4, 6, 7 };
+		for(int chunkid : order) {
+			assertArrayEquals(new int[] { 0, chunkid, 0, WHOLE }, uploads.poll());
+		}
+		assertArrayEquals(new int[] { 1, 5, 0, WHOLE }, uploads.poll());
+	}
+	
+	// Test requests which would take it over capacity are refused, without adding any of them
+	@Test
+	public void testCapacity() {
+		DeferredUploads uploads = new DeferredUploads(2);
+		
+		assertTrue(uploads.addChunk(0, 1));
+		assertTrue(uploads.addBlock(0, 9, 0, 100));
+		
+		assertFalse(uploads.addChunk(0, 2));
+		assertFalse(uploads.addBlock(0, 9, 100, 100));
+		// Would be split around chunk 1
+		assertFalse(uploads.addRange(0, 0, 4));
+		assertEquals(2, uploads.size());
+		
+		// Already held, so still accepted
+		assertTrue(uploads.addBlock(0, 9, 0, 100));
+		assertTrue(uploads.addRange(0, 1, 1));
+		
+		uploads.poll();
+		assertTrue(uploads.addRange(0, 0, 4));
+	}
+	
+	// Test cancelling chunks cuts a range short or splits it, and blocks are cancelled on their own
+	@Test
+	public void testCancel() {
+		DeferredUploads uploads = new DeferredUploads(8);
+		
+		uploads.addRange(0, 0, 10);
+		uploads.addBlock(0, 3, 0, 100);
+		
+		uploads.cancelChunks(0, 3, 2);
+		assertEquals(3, uploads.size());
+		assertEquals(9, uploads.numUploads());
+		
+		assertFalse(uploads.cancelBlock(0, 3, 100, 100));
+		assertTrue(uploads.cancelBlock(0, 3, 0, 100));
+		
+		uploads.cancelChunks(0, 8, 5);
+		
+		int[] order = { 0, 1, 2, 5, 6, 7 };
+		for(int chunkid : order) {
+			assertArrayEquals(new int[] { 0, chunkid, 0, WHOLE }, uploads.poll());
+		}
+		assertNull(uploads.poll());
+	}
+}
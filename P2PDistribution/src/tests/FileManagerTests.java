@@ -0,0 +1,236 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import p2pdistribute.client.filemanager.FileManager;
+import p2pdistribute.client.filemanager.PeerChunks;
+import p2pdistribute.client.filemanager.Status;
+import p2pdistribute.common.p2pmeta.FileMetadata;
+import p2pdistribute.common.p2pmeta.P2PMetadata;
+import p2pdistribute.common.p2pmeta.chunk.ChunkMetadata;
+
+public class FileManagerTests {
+	
+	private static final int[] CHUNK_SIZES = { 100, 100, 50 };
+	
+	private static final int BLOCK_SIZE = FileManager.BLOCK_SIZE;
+	
+	private File folder;
+	private byte[][] data;
+	private FileManager fileManager;
+	
+	@Before
+	public void setUp() throws Exception {
+		// Chunks of 100 bytes are blocks of 40, 40 and 20. The last chunk is blocks of 40 and 10.
+		FileManager.BLOCK_SIZE = 40;
+		
+		folder = Files.createTempDirectory("filemanager").toFile();
+		
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		
+		data = new byte[CHUNK_SIZES.length][];
+		ChunkMetadata[] chunks = new ChunkMetadata[CHUNK_SIZES.length];
+		for(int i=0; i<chunks.length; i++) {
+			data[i] = new byte[CHUNK_SIZES[i]];
+			for(int j=0; j<data[i].length; j++) {
+				data[i][j] = (byte)(i * 31 + j);
+			}
+			chunks[i] = new ChunkMetadata(data[i].length, digest.digest(data[i]));
+		}
+		
+		FileMetadata file = new FileMetadata("data", new byte[1], chunks);
+		P2PMetadata metadata = new P2PMetadata("SHA-256", new byte[1], "localhost", new FileMetadata[] { file });
+		
+		fileManager = new FileManager(metadata, folder.getPath());
+		fileManager.setup();
+	}
+	
+	@After
+	public void tearDown() {
+		FileManager.BLOCK_SIZE = BLOCK_SIZE;
+		
+		for(File file : folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+	
+	// Test the readable bytes only grow once every chunk before them is complete
+	@Test
+	public void testContiguousBytes() throws Exception {
+		assertEquals(0, fileManager.getContiguousBytes(0));
+		
+		assertTrue(fileManager.setChunkData(0, 1, data[1]));
+		assertEquals(0, fileManager.getContiguousBytes(0));
+		
+		assertTrue(fileManager.setChunkData(0, 0, data[0]));
+		assertEquals(200, fileManager.getContiguousBytes(0));
+		
+		// Bad data does not count
+		assertFalse(fileManager.setChunkData(0, 2, new byte[50]));
+		assertEquals(200, fileManager.getContiguousBytes(0));
+		
+		assertTrue(fileManager.setChunkData(0, 2, data[2]));
+		assertEquals(250, fileManager.getContiguousBytes(0));
+	}
+	
+	// Test only the first copy of a chunk to start arriving is written, and copies arriving after it completes are ignored
+	@Test
+	public void testDuplicateChunk() throws Exception {
+		assertTrue(fileManager.beginChunkWrite(0, 0));
+		assertTrue(fileManager.isBeingWritten(0, 0));
+		
+		// A second copy, e.g. an endgame request to another peer
+		assertFalse(fileManager.beginChunkWrite(0, 0));
+		
+		fileManager.writeChunkSlice(0, 0, 0, ByteBuffer.wrap(data[0]));
+		assertTrue(fileManager.endChunkWrite(0, 0, MessageDigest.getInstance("SHA-256").digest(data[0])));
+		assertFalse(fileManager.isBeingWritten(0, 0));
+		assertEquals(Status.COMPLETE, fileManager.status.getStatus(0, 0));
+		
+		assertFalse(fileManager.beginChunkWrite(0, 0));
+		assertFalse(fileManager.setChunkData(0, 0, data[0]));
+		
+		// A copy which fails its check releases the chunk for the next copy
+		assertTrue(fileManager.beginChunkWrite(0, 1));
+		assertFalse(fileManager.endChunkWrite(0, 1, new byte[32]));
+		assertTrue(fileManager.setChunkData(0, 1, data[1]));
+	}
+	
+	// Test the blocks of a chunk are handed out once each, written in any order, and verified once all are written
+	@Test
+	public void testBlocks() throws Exception {
+		assertEquals(20, fileManager.getBlockLength(0, 0, 80));
+		assertEquals(-1, fileManager.getBlockLength(0, 0, 10));
+		
+		PeerChunks peer = new PeerChunks(fileManager.status.getChunkCounts());
+		peer.add(0, 0);
+		
+		assertTrue(fileManager.status.reserveChunk(0, 0));
+		assertArrayEquals(new int[] { 0, 0, 0, 40 }, fileManager.startBlocks(0, 0));
+		assertTrue(fileManager.isPartial(0, 0));
+		
+		// e.g. from other peers
+		assertArrayEquals(new int[] { 0, 0, 40, 40 }, fileManager.pickBlock(peer));
+		assertArrayEquals(new int[] { 0, 0, 80, 20 }, fileManager.pickBlock(peer));
+		assertNull(fileManager.pickBlock(peer));
+		
+		// Wrong length
+		assertFalse(fileManager.beginBlockWrite(0, 0, 80, 40));
+		
+		// In two slices
+		assertTrue(fileManager.beginBlockWrite(0, 0, 40, 40));
+		assertTrue(fileManager.writeBlockSlice(0, 0, 40, 40, ByteBuffer.wrap(data[0], 40, 20)));
+		assertTrue(fileManager.writeBlockSlice(0, 0, 40, 60, ByteBuffer.wrap(data[0], 60, 20)));
+		assertTrue(fileManager.endBlockWrite(0, 0, 40));
+		
+		// A second copy of a written block is not wanted
+		assertFalse(fileManager.beginBlockWrite(0, 0, 40, 40));
+		assertFalse(fileManager.writeBlockSlice(0, 0, 40, 40, ByteBuffer.wrap(data[0], 40, 40)));
+		
+		writeBlock(0, 0, 80, 20, data[0]);
+		assertEquals(Status.INPROGRESS, fileManager.status.getStatus(0, 0));
+		
+		writeBlock(0, 0, 0, 40, data[0]);
+		assertEquals(Status.COMPLETE, fileManager.status.getStatus(0, 0));
+		assertFalse(fileManager.isPartial(0, 0));
+		assertFalse(fileManager.beginBlockWrite(0, 0, 0, 40));
+		
+		assertArrayEquals(data[0], fileManager.getChunkData(0, 0));
+	}
+	
+	// Test a chunk whose blocks do not match its hash is downloaded again, once its last request is given up
+	@Test
+	public void testBadBlocks() throws Exception {
+		byte[] bad = data[1].clone();
+		bad[50] ^= 1;
+		
+		PeerChunks peer = new PeerChunks(fileManager.status.getChunkCounts());
+		peer.add(0, 1);
+		
+		fileManager.status.reserveChunk(0, 1);
+		fileManager.startBlocks(0, 1);
+		fileManager.pickBlock(peer);
+		fileManager.pickBlock(peer);
+		
+		writeBlock(0, 1, 0, 40, bad);
+		fileManager.releaseBlock(0, 1, 0);
+		writeBlock(0, 1, 40, 40, bad);
+		fileManager.releaseBlock(0, 1, 40);
+		writeBlock(0, 1, 80, 20, bad);
+		
+		// Still reserved until the last request is released
+		assertEquals(Status.INPROGRESS, fileManager.status.getStatus(0, 1));
+		fileManager.releaseBlock(0, 1, 80);
+		assertEquals(Status.INCOMPLETE, fileManager.status.getStatus(0, 1));
+		
+		// Every block is wanted again
+		assertTrue(fileManager.isPartial(0, 1));
+		assertArrayEquals(new int[] { 0, 1, 0, 40 }, fileManager.startBlocks(0, 1));
+		assertEquals(Status.INPROGRESS, fileManager.status.getStatus(0, 1));
+		assertArrayEquals(new int[] { 0, 1, 40, 40 }, fileManager.pickBlock(peer));
+		assertArrayEquals(new int[] { 0, 1, 80, 20 }, fileManager.pickBlock(peer));
+		
+		writeBlock(0, 1, 0, 40, data[1]);
+		writeBlock(0, 1, 40, 40, data[1]);
+		writeBlock(0, 1, 80, 20, data[1]);
+		assertEquals(Status.COMPLETE, fileManager.status.getStatus(0, 1));
+	}
+	
+	// Test giving up a block releases the chunk but keeps the blocks already written
+	@Test
+	public void testReleaseBlock() throws Exception {
+		PeerChunks peer = new PeerChunks(fileManager.status.getChunkCounts());
+		peer.add(0, 2);
+		
+		fileManager.status.reserveChunk(0, 2);
+		assertArrayEquals(new int[] { 0, 2, 0, 40 }, fileManager.startBlocks(0, 2));
+		writeBlock(0, 2, 0, 40, data[2]);
+		fileManager.releaseBlock(0, 2, 0);
+		
+		// e.g. the peer disconnected before sending it
+		assertArrayEquals(new int[] { 0, 2, 40, 10 }, fileManager.pickBlock(peer));
+		fileManager.releaseBlock(0, 2, 40);
+		assertEquals(Status.INCOMPLETE, fileManager.status.getStatus(0, 2));
+		
+		assertArrayEquals(new int[] { 0, 2, 40, 10 }, fileManager.startBlocks(0, 2));
+		writeBlock(0, 2, 40, 10, data[2]);
+		assertEquals(Status.COMPLETE, fileManager.status.getStatus(0, 2));
+	}
+	
+	// Test receiving a chunk whole stops its blocks being written
+	@Test
+	public void testWholeChunkClosesBlocks() throws Exception {
+		fileManager.status.reserveChunk(0, 0);
+		fileManager.startBlocks(0, 0);
+		assertTrue(fileManager.beginBlockWrite(0, 0, 0, 40));
+		
+		assertTrue(fileManager.beginChunkWrite(0, 0));
+		assertFalse(fileManager.isPartial(0, 0));
+		assertNull(fileManager.startBlocks(0, 0));
+		
+		assertFalse(fileManager.writeBlockSlice(0, 0, 0, 0, ByteBuffer.wrap(data[0], 0, 40)));
+		assertFalse(fileManager.endBlockWrite(0, 0, 0));
+		
+		fileManager.writeChunkSlice(0, 0, 0, ByteBuffer.wrap(data[0]));
+		assertTrue(fileManager.endChunkWrite(0, 0, MessageDigest.getInstance("SHA-256").digest(data[0])));
+	}
+	
+	/**
+	 * Writes the block of chunk at offset, taking its data from the same position in chunk.
+	 */
+	private void writeBlock(int fileid, int chunkid, int offset, int length, byte[] chunk) throws Exception {
+		assertTrue(fileManager.beginBlockWrite(fileid, chunkid, offset, length));
+		assertTrue(fileManager.writeBlockSlice(fileid, chunkid, offset, offset, ByteBuffer.wrap(chunk, offset, length)));
+		assertTrue(fileManager.endBlockWrite(fileid, chunkid, offset));
+	}
+}
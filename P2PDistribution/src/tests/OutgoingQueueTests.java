@@ -0,0 +1,141 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import p2pdistribute.client.OutgoingMessage;
+import p2pdistribute.client.OutgoingQueue;
+import p2pdistribute.client.SerialisedMessage;
+
+public class OutgoingQueueTests {
+	
+	// Test control messages are taken ahead of bulk messages queued before them
+	@Test
+	public void testControlBeforeBulk() {
+		OutgoingQueue queue = new OutgoingQueue(1024);
+		
+		OutgoingMessage bulk = new SerialisedMessage(new byte[100]);
+		OutgoingMessage control = new SerialisedMessage(new byte[10]);
+		
+		queue.addBulk(bulk);
+		queue.addControl(control);
+		
+		assertTrue(queue.waitForMessages());
+		
+		List<OutgoingMessage> batch = new ArrayList<>();
+		queue.drainControl(batch, 10);
+		
+		assertEquals(1, batch.size());
+		assertSame(control, batch.get(0));
+		assertSame(bulk, queue.nextBulk());
+	}
+	
+	// Test queued bytes are counted against the budget until written
+	@Test
+	public void testQueuedBytesBudget() {
+		OutgoingQueue queue = new OutgoingQueue(150);
+		
+		queue.addBulk(new SerialisedMessage(new byte[100]));
+		assertTrue(queue.hasSpace());
+		
+		queue.addBulk(new SerialisedMessage(new byte[100]));
+		assertFalse(queue.hasSpace());
+		assertEquals(200, queue.getQueuedBytes());
+		
+		queue.finishWrite(queue.nextBulk());
+		
+		assertTrue(queue.hasSpace());
+		assertEquals(100, queue.getQueuedBytes());
+		assertEquals(200, queue.getPeakQueuedBytes());
+	}
+	
+	// Test the space listener is called once a write leaves the queue within budget
+	@Test
+	public void testSpaceListener() {
+		OutgoingQueue queue = new OutgoingQueue(50);
+		final int[] calls = new int[1];
+		
+		queue.setSpaceListener(new Runnable() {
+			@Override
+			public void run() {
+				calls[0]++;
+			}
+		});
+		
+		queue.addBulk(new SerialisedMessage(new byte[100]));
+		queue.addBulk(new SerialisedMessage(new byte[100]));
+		
+		queue.finishWrite(queue.nextBulk());
+		assertEquals(0, calls[0]);
+		
+		queue.finishWrite(queue.nextBulk());
+		assertEquals(1, calls[0]);
+	}
+	
+	// Test uploads not yet started are dropped, but not the one being sent or control messages
+	@Test
+	public void testCancelUploads() {
+		OutgoingQueue queue = new OutgoingQueue(1024);
+		
+		OutgoingMessage control = new SerialisedMessage(new byte[10]);
+		OutgoingMessage sending = new SerialisedMessage(new byte[100]);
+		
+		queue.addBulk(sending);
+		queue.addBulk(new SerialisedMessage(new byte[100]));
+		queue.addBulk(new SerialisedMessage(new byte[100]));
+		queue.addControl(control);
+		
+		assertSame(sending, queue.nextBulk());
+		assertEquals(2, queue.cancelUploads());
+		assertEquals(110, queue.getQueuedBytes());
+		
+		List<OutgoingMessage> batch = new ArrayList<>();
+		queue.drainControl(batch, 10);
+		assertSame(control, batch.get(0));
+		
+		queue.finishWrite(sending);
+		assertNull(queue.nextBulk());
+	}
+	
+	// Test a single upload is cancelled by its chunk, when sent as a serialised Data message too
+	@Test
+	public void testCancelUpload() {
+		OutgoingQueue queue = new OutgoingQueue(1024);
+		
+		OutgoingMessage sending = new SerialisedMessage(new byte[120], 0, 1, 100);
+		OutgoingMessage other = new SerialisedMessage(new byte[120]);
+		
+		queue.addBulk(sending);
+		queue.addBulk(new SerialisedMessage(new byte[120], 0, 3, 100));
+		queue.addBulk(other);
+		
+		// Already being sent
+		assertSame(sending, queue.nextBulk());
+		assertFalse(queue.cancelUpload(0, 1, 0, 100));
+		
+		assertFalse(queue.cancelUpload(0, 3, 0, 50));
+		assertFalse(queue.cancelUpload(1, 3, 0, 100));
+		assertTrue(queue.cancelUpload(0, 3, 0, 100));
+		assertFalse(queue.cancelUpload(0, 3, 0, 100));
+		assertEquals(240, queue.getQueuedBytes());
+		
+		queue.finishWrite(sending);
+		assertSame(other, queue.nextBulk());
+	}
+	
+	// Test a closed queue stops the writer
+	@Test
+	public void testClose() {
+		OutgoingQueue queue = new OutgoingQueue(1024);
+		
+		queue.addControl(new SerialisedMessage(new byte[10]));
+		queue.close();
+		
+		assertFalse(queue.waitForMessages());
+		assertEquals(0, queue.getQueuedBytes());
+	}
+}
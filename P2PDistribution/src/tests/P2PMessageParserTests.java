@@ -19,11 +19,18 @@ import org.junit.Before;
 import org.junit.Test;
 
 import p2pdistribute.client.message.AdvertiseJSONMessage;
+import p2pdistribute.client.message.BinaryCommand;
+import p2pdistribute.client.message.BinaryControlMessage;
+import p2pdistribute.client.message.BitfieldAdvertiseMessage;
+import p2pdistribute.client.message.BlockRequestMessage;
+import p2pdistribute.client.message.ChunkRequestMessage;
 import p2pdistribute.client.message.ControlMessage;
 import p2pdistribute.client.message.DataMessage;
+import p2pdistribute.client.message.HaveMessage;
 import p2pdistribute.client.message.Message;
 import p2pdistribute.client.message.MessageType;
 import p2pdistribute.client.message.P2PMessageParser;
+import p2pdistribute.client.message.RangeRequestMessage;
 import p2pdistribute.client.message.RequestChunkJSONMessage;
 import p2pdistribute.common.p2pmeta.ParserException;
 
@@ -177,4 +184,267 @@ public class P2PMessageParserTests {
 		
 	}
 	
+	// Test a data message sent as a separate header + data is identical to a serialised data message
+	@Test
+	public void testDataHeaderSerialisation() throws IOException, DecoderException, ParserException {
+		byte[] metaHash = Hex.decodeHex("2a8593d74a066ec1f3902e72ae468489bbda8b0444758a19fd6b8bf29ed1bf43".toCharArray());
+		byte[] data = new byte[] { 0x55, 0x00, 0x55, 0x00, 0x12 };
+		
+		ByteBuffer header = ByteBuffer.allocate(P2PMessageParser.MAX_DATA_HEADER_LENGTH);
+		P2PMessageParser.serialiseDataHeader(header, metaHash, 3, 7, data.length);
+		
+		assertEquals(P2PMessageParser.getDataHeaderLength(metaHash), header.position());
+		
+		byte[] serialised = P2PMessageParser.serialiseData(data, metaHash, 3, 7);
+		assertArrayEquals(Arrays.copyOf(header.array(), header.position()), Arrays.copyOf(serialised, header.position()));
+		
+		out.write(header.array(), 0, header.position());
+		out.write(data);
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof DataMessage);
+		
+		DataMessage msg = (DataMessage)message;
+		
+		assertArrayEquals(metaHash, msg.metaHash);
+		assertArrayEquals(data, msg.data);
+		assertEquals(3, msg.fileid);
+		assertEquals(7, msg.chunkid);
+	}
+	
+	// Test a version 1 data frame carries its offset within the chunk
+	@Test
+	public void testDataFrameSerialisation() throws IOException, DecoderException, ParserException {
+		byte[] metaHash = Hex.decodeHex("2a8593d74a066ec1f3902e72ae468489bbda8b0444758a19fd6b8bf29ed1bf43".toCharArray());
+		byte[] data = new byte[] { 0x55, 0x00, 0x55, 0x00, 0x12 };
+		
+		ByteBuffer header = ByteBuffer.allocate(P2PMessageParser.MAX_DATA_HEADER_LENGTH);
+		P2PMessageParser.serialiseDataFrameHeader(header, metaHash, 3, 7, 65536, data.length);
+		
+		assertEquals(P2PMessageParser.getDataFrameHeaderLength(metaHash), header.position());
+		
+		out.write(header.array(), 0, header.position());
+		out.write(data);
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof DataMessage);
+		
+		DataMessage msg = (DataMessage)message;
+		
+		assertEquals(P2PMessageParser.BINARY_VERSION, msg.version);
+		assertArrayEquals(metaHash, msg.metaHash);
+		assertArrayEquals(data, msg.data);
+		assertEquals(3, msg.fileid);
+		assertEquals(7, msg.chunkid);
+		assertEquals(65536, msg.offset);
+	}
+	
+	// Test the number of bytes needed to parse a message can be worked out from a partial buffer
+	@Test
+	public void testReadLength() throws DecoderException {
+		byte[] metaHash = Hex.decodeHex("2a8593d74a066ec1f3902e72ae468489bbda8b0444758a19fd6b8bf29ed1bf43".toCharArray());
+		
+		byte[] request = P2PMessageParser.serialiseChunkRequest(BinaryCommand.REQUEST, 3, 7);
+		
+		assertEquals(-1, P2PMessageParser.getReadLength(ByteBuffer.wrap(request, 0, 3)));
+		assertEquals(request.length, P2PMessageParser.getReadLength(ByteBuffer.wrap(request, 0, 4)));
+		
+		// Data messages only need their header
+		ByteBuffer header = ByteBuffer.allocate(P2PMessageParser.MAX_DATA_HEADER_LENGTH);
+		P2PMessageParser.serialiseDataFrameHeader(header, metaHash, 3, 7, 0, 65536);
+		header.flip();
+		
+		assertEquals(P2PMessageParser.getDataFrameHeaderLength(metaHash), P2PMessageParser.getReadLength(header));
+		
+		header.limit(4);
+		assertEquals(-1, P2PMessageParser.getReadLength(header));
+	}
+	
+	// Test the chunk data of a data message can be left on the stream for the caller to read
+	@Test
+	public void testDataMessageLeftOnStream() throws IOException, DecoderException, ParserException {
+		byte[] metaHash = Hex.decodeHex("2a8593d74a066ec1f3902e72ae468489bbda8b0444758a19fd6b8bf29ed1bf43".toCharArray());
+		byte[] data = new byte[] { 0x55, 0x00, 0x55, 0x00 };
+		
+		out.write(P2PMessageParser.serialiseData(data, metaHash, 1, 2));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink, false);
+		
+		assertTrue(message instanceof DataMessage);
+		
+		DataMessage msg = (DataMessage)message;
+		
+		assertNull(msg.data);
+		assertEquals(data.length, msg.dataLength);
+		assertEquals(1, msg.fileid);
+		assertEquals(2, msg.chunkid);
+		
+		byte[] remaining = new byte[msg.dataLength];
+		assertEquals(data.length, pipeSink.read(remaining));
+		assertArrayEquals(data, remaining);
+	}
+	
+	// Test the version field of an advertise_chunks message
+	@Test
+	public void testAdvertiseMessageVersion() throws IOException, ParserException, DecoderException {
+		byte[] metaHash = Hex.decodeHex("2a8593d74a066ec1f3902e72ae468489bbda8b0444758a19fd6b8bf29ed1bf43".toCharArray());
+		
+		AdvertiseJSONMessage advertise = new AdvertiseJSONMessage(new int[][] { { 0, 1 } }, metaHash, 1);
+		out.write(P2PMessageParser.serialiseJSONMessage(advertise));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertEquals(0, message.version);
+		assertTrue(message instanceof ControlMessage);
+		assertEquals(Integer.valueOf(1), ((AdvertiseJSONMessage)((ControlMessage)message).payload).protocolVersion);
+	}
+	
+	// Test binary (version 1) bitfield advertise message
+	@Test
+	public void testBitfieldAdvertiseMessage() throws IOException, ParserException {
+		int[] chunkCounts = new int[] { 10, 3 };
+		byte[][] bitfields = new byte[][] { { (byte)0x81, (byte)0x40 }, { (byte)0x20 } };
+		
+		out.write(P2PMessageParser.serialiseBitfieldAdvertise(chunkCounts, bitfields));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertEquals(1, message.version);
+		assertEquals(MessageType.CONTROL, message.type);
+		assertTrue(message instanceof BitfieldAdvertiseMessage);
+		
+		BitfieldAdvertiseMessage msg = (BitfieldAdvertiseMessage)message;
+		
+		assertEquals(BinaryCommand.ADVERTISE, msg.cmd);
+		assertArrayEquals(chunkCounts, msg.chunkCounts);
+		assertArrayEquals(bitfields[0], msg.bitfields[0]);
+		assertArrayEquals(bitfields[1], msg.bitfields[1]);
+		
+		assertTrue(msg.isComplete(0, 0));
+		assertTrue(msg.isComplete(0, 7));
+		assertTrue(msg.isComplete(0, 9));
+		assertFalse(msg.isComplete(0, 8));
+		assertTrue(msg.isComplete(1, 2));
+		assertFalse(msg.isComplete(1, 0));
+		
+		assertEquals(Integer.valueOf(P2PMessageParser.HIGHEST_VERSION), msg.protocolVersion);
+	}
+	
+	// Test binary (version 1) request and cancel messages
+	@Test
+	public void testBinaryRequestMessage() throws IOException, ParserException {
+		out.write(P2PMessageParser.serialiseChunkRequest(BinaryCommand.REQUEST, 2, 70000));
+		out.write(P2PMessageParser.serialiseChunkRequest(BinaryCommand.CANCEL, 1, 5));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof ChunkRequestMessage);
+		ChunkRequestMessage msg = (ChunkRequestMessage)message;
+		assertEquals(BinaryCommand.REQUEST, msg.cmd);
+		assertEquals(2, msg.fileid);
+		assertEquals(70000, msg.chunkid);
+		
+		message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof ChunkRequestMessage);
+		msg = (ChunkRequestMessage)message;
+		assertEquals(BinaryCommand.CANCEL, msg.cmd);
+		assertEquals(1, msg.fileid);
+		assertEquals(5, msg.chunkid);
+	}
+	
+	// Test binary (version 2) block request and cancel messages
+	@Test
+	public void testBlockRequestMessage() throws IOException, ParserException {
+		out.write(P2PMessageParser.serialiseBlockRequest(BinaryCommand.REQUEST_BLOCK, 1, 70000, 2 * 1024 * 1024, 1024 * 1024));
+		out.write(P2PMessageParser.serialiseBlockRequest(BinaryCommand.CANCEL_BLOCK, 0, 3, 0, 100));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof BlockRequestMessage);
+		BlockRequestMessage msg = (BlockRequestMessage)message;
+		assertEquals(BinaryCommand.REQUEST_BLOCK, msg.cmd);
+		assertEquals(1, msg.fileid);
+		assertEquals(70000, msg.chunkid);
+		assertEquals(2 * 1024 * 1024, msg.offset);
+		assertEquals(1024 * 1024, msg.blockLength);
+		
+		message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof BlockRequestMessage);
+		msg = (BlockRequestMessage)message;
+		assertEquals(BinaryCommand.CANCEL_BLOCK, msg.cmd);
+		assertEquals(3, msg.chunkid);
+		assertEquals(0, msg.offset);
+		assertEquals(100, msg.blockLength);
+	}
+	
+	// Test binary choke and unchoke messages, which have no fields
+	@Test
+	public void testChokeMessages() throws IOException, ParserException {
+		out.write(P2PMessageParser.serialiseCommand(BinaryCommand.CHOKE));
+		out.write(P2PMessageParser.serialiseCommand(BinaryCommand.UNCHOKE));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof BinaryControlMessage);
+		assertEquals(BinaryCommand.CHOKE, ((BinaryControlMessage)message).cmd);
+		
+		message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof BinaryControlMessage);
+		assertEquals(BinaryCommand.UNCHOKE, ((BinaryControlMessage)message).cmd);
+	}
+	
+	// Test binary range request and cancel messages
+	@Test
+	public void testRangeRequestMessage() throws IOException, ParserException {
+		out.write(P2PMessageParser.serialiseRangeRequest(BinaryCommand.REQUEST_RANGE, 2, 400, 16));
+		out.write(P2PMessageParser.serialiseRangeRequest(BinaryCommand.CANCEL_RANGE, 2, 410, 6));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof RangeRequestMessage);
+		RangeRequestMessage msg = (RangeRequestMessage)message;
+		assertEquals(BinaryCommand.REQUEST_RANGE, msg.cmd);
+		assertEquals(2, msg.fileid);
+		assertEquals(400, msg.chunkid);
+		assertEquals(16, msg.count);
+		
+		message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof RangeRequestMessage);
+		msg = (RangeRequestMessage)message;
+		assertEquals(BinaryCommand.CANCEL_RANGE, msg.cmd);
+		assertEquals(410, msg.chunkid);
+		assertEquals(6, msg.count);
+	}
+	
+	// Test binary (version 1) have message
+	@Test
+	public void testHaveMessage() throws IOException, ParserException {
+		out.write(P2PMessageParser.serialiseHave(new int[][] { { 0, 4 }, { 1, 9 }, { 0, 5 } }));
+		
+		Message message = P2PMessageParser.readMessage(pipeSink);
+		
+		assertTrue(message instanceof HaveMessage);
+		HaveMessage msg = (HaveMessage)message;
+		assertEquals(BinaryCommand.HAVE, msg.cmd);
+		assertArrayEquals(new int[] { 0, 1, 0 }, msg.fileids);
+		assertArrayEquals(new int[] { 4, 9, 5 }, msg.chunkids);
+	}
+	
+	// Test a binary advertise which claims more data than it contains is rejected
+	@Test(expected=ParserException.class)
+	public void testTruncatedBitfieldAdvertise() throws IOException, ParserException {
+		byte[] message = P2PMessageParser.serialiseBitfieldAdvertise(new int[] { 64 }, new byte[][] { new byte[8] });
+		
+		// Claim 97 chunks, which needs 13 bytes of bitfield. Only 8 bytes of bitfield, and 4 of protocol version, follow.
+		ByteBuffer.wrap(message).putInt(4 + 1 + 4, 97);
+		out.write(message);
+		
+		P2PMessageParser.readMessage(pipeSink);
+	}
 }
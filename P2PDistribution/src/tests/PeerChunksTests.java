@@ -0,0 +1,64 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import p2pdistribute.client.filemanager.PeerChunks;
+
+public class PeerChunksTests {
+	
+	// Test chunks are only added once, and completion is tracked across files
+	@Test
+	public void testAdd() {
+		PeerChunks chunks = new PeerChunks(new int[] { 3, 2 });
+		
+		assertFalse(chunks.has(0, 1));
+		assertTrue(chunks.add(0, 1));
+		assertFalse(chunks.add(0, 1));
+		assertTrue(chunks.has(0, 1));
+		
+		assertTrue(chunks.add(0, 0));
+		assertTrue(chunks.add(0, 2));
+		assertTrue(chunks.add(1, 0));
+		assertFalse(chunks.complete());
+		
+		assertTrue(chunks.add(1, 1));
+		assertTrue(chunks.complete());
+		assertEquals(5, chunks.numChunksComplete());
+	}
+	
+	// Test invalid chunks are never added
+	@Test
+	public void testInvalidChunk() {
+		PeerChunks chunks = new PeerChunks(new int[] { 3 });
+		
+		assertFalse(chunks.isValid(0, 3));
+		assertFalse(chunks.isValid(1, 0));
+		assertFalse(chunks.add(0, 3));
+		assertFalse(chunks.add(-1, 0));
+		assertEquals(0, chunks.numChunksComplete());
+	}
+	
+	// Test words read the same whether a file is partly held or entirely held
+	@Test
+	public void testWords() {
+		PeerChunks chunks = new PeerChunks(new int[] { 70 });
+		
+		assertEquals(0, chunks.getWord(0, 0));
+		assertEquals(2, chunks.numWords(0));
+		
+		for(int i=0; i<69; i++) {
+			chunks.add(0, i);
+		}
+		assertEquals(-1L, chunks.getWord(0, 0));
+		assertEquals(0x1fL, chunks.getWord(0, 1));
+		
+		// Peer now has the whole file
+		chunks.add(0, 69);
+		assertEquals(-1L, chunks.getWord(0, 0));
+		assertEquals(0x3fL, chunks.getWord(0, 1));
+		assertTrue(chunks.has(0, 69));
+		assertFalse(chunks.add(0, 5));
+	}
+}
@@ -0,0 +1,294 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import p2pdistribute.client.ChokeManager;
+import p2pdistribute.client.PeerConnection;
+import p2pdistribute.client.ThreadedEngine;
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.FileManager;
+import p2pdistribute.common.Peer;
+import p2pdistribute.common.p2pmeta.FileMetadata;
+import p2pdistribute.common.p2pmeta.P2PMetadata;
+import p2pdistribute.common.p2pmeta.chunk.ChunkMetadata;
+
+/**
+ * Downloads between PeerConnections over loopback sockets.
+ */
+public class PeerConnectionTests {
+	
+	private static final long TIMEOUT_MS = 20000;
+	
+	private static final int ENDGAME_CHUNKS = AcquisitionStatus.ENDGAME_CHUNKS;
+	private static final int BLOCK_SIZE = FileManager.BLOCK_SIZE;
+	private static final long MAX_QUEUED_BYTES = PeerConnection.MAX_QUEUED_BYTES;
+	private static final boolean ZERO_COPY_UPLOAD = PeerConnection.ZERO_COPY_UPLOAD;
+	private static final int UPLOAD_SLOTS = ChokeManager.UPLOAD_SLOTS;
+	private static final int CHOKE_INTERVAL_MS = ChokeManager.CHOKE_INTERVAL_MS;
+	private static final int OPTIMISTIC_ROUNDS = ChokeManager.OPTIMISTIC_ROUNDS;
+	
+	private ThreadedEngine engine;
+	private List<File> folders;
+	private List<PeerConnection> connections;
+	
+	private byte[] data;
+	private P2PMetadata metadata;
+	
+	@Before
+	public void setUp() {
+		engine = new ThreadedEngine();
+		folders = new ArrayList<>();
+		connections = new ArrayList<>();
+	}
+	
+	@After
+	public void tearDown() {
+		AcquisitionStatus.ENDGAME_CHUNKS = ENDGAME_CHUNKS;
+		FileManager.BLOCK_SIZE = BLOCK_SIZE;
+		PeerConnection.MAX_QUEUED_BYTES = MAX_QUEUED_BYTES;
+		PeerConnection.ZERO_COPY_UPLOAD = ZERO_COPY_UPLOAD;
+		ChokeManager.UPLOAD_SLOTS = UPLOAD_SLOTS;
+		ChokeManager.CHOKE_INTERVAL_MS = CHOKE_INTERVAL_MS;
+		ChokeManager.OPTIMISTIC_ROUNDS = OPTIMISTIC_ROUNDS;
+		
+		for(PeerConnection conn : connections) {
+			conn.stop();
+		}
+		for(File folder : folders) {
+			for(File file : folder.listFiles()) {
+				file.delete();
+			}
+			folder.delete();
+		}
+	}
+	
+	// Test a download from two seeds where every chunk may be requested from both, so duplicates are received and cancelled
+	@Test
+	public void testEndgame() throws Exception {
+		createMetadata(40, 4000);
+		AcquisitionStatus.ENDGAME_CHUNKS = 40;
+		
+		FileManager seed1 = newFileManager(true);
+		FileManager seed2 = newFileManager(true);
+		FileManager leecher = newFileManager(false);
+		
+		connect(leecher, seed1);
+		connect(leecher, seed2);
+		
+		awaitComplete(leecher);
+		assertDownloaded(leecher);
+	}
+	
+	// Test a download of chunks larger than a block from two seeds, so blocks of one chunk may arrive from both
+	@Test
+	public void testBlocks() throws Exception {
+		createMetadata(10, 4000);
+		FileManager.BLOCK_SIZE = 1000;
+		
+		FileManager seed1 = newFileManager(true);
+		FileManager seed2 = newFileManager(true);
+		FileManager leecher = newFileManager(false);
+		
+		connect(leecher, seed1);
+		connect(leecher, seed2);
+		
+		awaitComplete(leecher);
+		assertDownloaded(leecher);
+	}
+	
+	// Test a download from a seed in ranges, with only a few chunks queued at once so the rest of each range waits
+	@Test
+	public void testRanges() throws Exception {
+		createMetadata(100, 3000);
+		PeerConnection.MAX_QUEUED_BYTES = 8000;
+		
+		FileManager seed = newFileManager(true);
+		FileManager leecher = newFileManager(false);
+		
+		connect(leecher, seed);
+		
+		awaitComplete(leecher);
+		assertDownloaded(leecher);
+	}
+	
+	// Test as testRanges, with chunks read into memory to be sent rather than sent straight from disk
+	@Test
+	public void testRangesSerialised() throws Exception {
+		PeerConnection.ZERO_COPY_UPLOAD = false;
+		testRanges();
+	}
+	
+	// Test only the upload slots plus one optimistic slot are unchoked, and the optimistic slot moves between peers
+	@Test
+	public void testChokeSlots() throws Exception {
+		createMetadata(10, 4000);
+		ChokeManager.UPLOAD_SLOTS = 1;
+		ChokeManager.CHOKE_INTERVAL_MS = 0;
+		ChokeManager.OPTIMISTIC_ROUNDS = 1;
+		
+		// No peer has any chunks, so none of them finish and close the connection
+		FileManager local = newFileManager(false);
+		
+		List<PeerConnection> uploads = new ArrayList<>();
+		for(int i=0; i<4; i++) {
+			uploads.add(connect(newFileManager(false), local));
+		}
+		awaitCanChoke(uploads);
+		
+		ChokeManager chokeManager = new ChokeManager(local);
+		boolean[] unchoked = new boolean[uploads.size()];
+		
+		for(int round=0; round<50; round++) {
+			chokeManager.update(uploads);
+			
+			int numUnchoked = 0;
+			for(int i=0; i<uploads.size(); i++) {
+				assertTrue(uploads.get(i).isAlive());
+				if(!uploads.get(i).isChoking()) {
+					unchoked[i] = true;
+					numUnchoked++;
+				}
+			}
+			assertEquals(2, numUnchoked);
+		}
+		
+		for(boolean peerUnchoked : unchoked) {
+			assertTrue(peerUnchoked);
+		}
+	}
+	
+	// Test peers finish downloading from a seed which is choking all but two of them at a time
+	@Test
+	public void testChokedPeersFinish() throws Exception {
+		createMetadata(100, 3000);
+		ChokeManager.UPLOAD_SLOTS = 1;
+		ChokeManager.CHOKE_INTERVAL_MS = 20;
+		ChokeManager.OPTIMISTIC_ROUNDS = 1;
+		
+		FileManager seed = newFileManager(true);
+		
+		List<FileManager> leechers = new ArrayList<>();
+		List<PeerConnection> uploads = new ArrayList<>();
+		for(int i=0; i<4; i++) {
+			leechers.add(newFileManager(false));
+			uploads.add(connect(leechers.get(i), seed));
+		}
+		
+		ChokeManager chokeManager = new ChokeManager(seed);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		
+		for(FileManager leecher : leechers) {
+			while(!leecher.complete()) {
+				assertTrue("Download did not complete", System.currentTimeMillis() < deadline);
+				chokeManager.update(uploads);
+				Thread.sleep(5);
+			}
+			assertDownloaded(leecher);
+		}
+	}
+	
+	/**
+	 * Creates the metadata of one file of numChunks chunks of chunkSize bytes, the last of which is shorter.
+	 */
+	private void createMetadata(int numChunks, int chunkSize) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		
+		int lastSize = chunkSize / 3 + 1;
+		data = new byte[(numChunks - 1) * chunkSize + lastSize];
+		for(int i=0; i<data.length; i++) {
+			data[i] = (byte)(i * 7 + i / 251);
+		}
+		
+		ChunkMetadata[] chunks = new ChunkMetadata[numChunks];
+		for(int i=0; i<numChunks; i++) {
+			int size = i == numChunks - 1 ? lastSize : chunkSize;
+			digest.update(data, i * chunkSize, size);
+			chunks[i] = new ChunkMetadata(size, digest.digest());
+		}
+		
+		FileMetadata file = new FileMetadata("data", new byte[1], chunks);
+		metadata = new P2PMetadata("SHA-256", new byte[1], "localhost", new FileMetadata[] { file });
+	}
+	
+	/**
+	 * Returns a FileManager in a new folder, holding every chunk if complete is true.
+	 */
+	private FileManager newFileManager(boolean complete) throws Exception {
+		File folder = Files.createTempDirectory("peerconnection").toFile();
+		folders.add(folder);
+		
+		FileManager fileManager = new FileManager(metadata, folder.getPath());
+		fileManager.setup();
+		
+		if(complete) {
+			int offset = 0;
+			for(int i=0; i<metadata.files[0].chunks.length; i++) {
+				int size = metadata.files[0].chunks[i].size;
+				
+				byte[] chunk = new byte[size];
+				System.arraycopy(data, offset, chunk, 0, size);
+				assertTrue(fileManager.setChunkData(0, i, chunk));
+				offset += size;
+			}
+		}
+		return fileManager;
+	}
+	
+	/**
+	 * Opens a connection from local to remote over loopback.
+	 * @return remote's end of the connection
+	 */
+	private PeerConnection connect(FileManager local, FileManager remote) throws Exception {
+		try(ServerSocket server = ServerSocketChannel.open().socket()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			
+			connections.add(new PeerConnection(new Peer(InetAddress.getLoopbackAddress(), server.getLocalPort()), local, engine));
+			
+			PeerConnection accepted = new PeerConnection(server.accept(), remote, engine);
+			connections.add(accepted);
+			return accepted;
+		}
+	}
+	
+	private static void awaitCanChoke(List<PeerConnection> conns) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		
+		for(PeerConnection conn : conns) {
+			while(!conn.canChoke()) {
+				assertTrue("Advertise was not exchanged", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+	}
+	
+	private static void awaitComplete(FileManager fileManager) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		
+		while(!fileManager.complete()) {
+			assertTrue("Download did not complete", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+	
+	private void assertDownloaded(FileManager fileManager) throws Exception {
+		assertArrayEquals(data, Files.readAllBytes(fileManager.destinationFolder.resolve("data")));
+		
+		for(PeerConnection conn : connections) {
+			assertEquals(0, conn.getFailedChunks());
+		}
+	}
+}
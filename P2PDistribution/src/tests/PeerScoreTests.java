@@ -0,0 +1,44 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import p2pdistribute.client.PeerScore;
+
+public class PeerScoreTests {
+	
+	@Test
+	public void testPeerScore() {
+		long second = 1000000000L;
+		int bytes = PeerScore.SCORE_REQUEST_BYTES;
+		
+		PeerScore score = new PeerScore();
+		score.connected(0);
+		assertTrue(score.isUntried());
+		assertEquals(0, score.getScore(), 0);
+		
+		// Not sampled until a whole interval has passed
+		score.sample(bytes, 0, -1, 1);
+		assertTrue(score.isUntried());
+		
+		score.sample(bytes, 0, -1, second);
+		assertFalse(score.isUntried());
+		assertEquals(bytes, score.getScore(), 1);
+		
+		// Latency of one second doubles the time a request takes
+		score.sample(2 * bytes, 0, second, 2 * second);
+		assertEquals(bytes / 2, score.getScore(), 1);
+		
+		// Halved for a failed chunk
+		score.sample(2 * bytes, 1, second, 2 * second);
+		assertEquals(1, score.getFailures());
+		assertEquals(bytes / 4, score.getScore(), 1);
+		
+		// Totals of a new connection start from zero
+		score.connected(2 * second);
+		score.sample(bytes, 0, second, 3 * second);
+		assertEquals(1, score.getFailures());
+		assertEquals(bytes, score.getBytesPerSecond(), 1);
+	}
+}
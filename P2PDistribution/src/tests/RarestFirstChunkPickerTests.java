@@ -0,0 +1,123 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.PeerChunks;
+import p2pdistribute.client.filemanager.RarestFirstChunkPicker;
+import p2pdistribute.client.filemanager.Status;
+
+public class RarestFirstChunkPickerTests {
+	
+	private static final int SAMPLE_SIZE = RarestFirstChunkPicker.SAMPLE_SIZE;
+	
+	@After
+	public void tearDown() {
+		RarestFirstChunkPicker.SAMPLE_SIZE = SAMPLE_SIZE;
+	}
+	
+	// Test every one of several equally rare chunks is picked some of the time
+	@Test
+	public void testTiesBrokenAtRandom() {
+		AcquisitionStatus status = newStatus(4);
+		PeerChunks all = hasAll(status);
+		
+		int[] picked = new int[4];
+		for(int i=0; i<200; i++) {
+			int[] chunk = status.pickUsefulChunk(all);
+			picked[chunk[1]]++;
+			status.releaseChunk(chunk[0], chunk[1]);
+		}
+		
+		for(int count : picked) {
+			assertTrue(count > 0);
+		}
+	}
+	
+	// Test the rarest is always found when there are fewer useful chunks than are sampled, wherever they are
+	@Test
+	public void testRarestAcrossWords() {
+		AcquisitionStatus status = newStatus(300);
+		
+		PeerChunks some = new PeerChunks(status.getChunkCounts());
+		for(int i=5; i<300; i+=30) {
+			some.add(0, i);
+			status.addAvailability(0, i);
+			status.addAvailability(0, i);
+		}
+		status.addAvailability(0, 5);
+		// Only one other peer has chunk 275, in the last word
+		status.removeAvailability(0, 275);
+		
+		for(int i=0; i<50; i++) {
+			assertArrayEquals(new int[] { 0, 275 }, status.pickUsefulChunk(some));
+			status.releaseChunk(0, 275);
+		}
+	}
+	
+	// Test chunks we have, chunks already picked and chunks the peer lacks are never picked, however rare
+	@Test
+	public void testOnlyUsefulChunks() {
+		AcquisitionStatus status = newStatus(6);
+		status.setStatus(0, 0, Status.COMPLETE);
+		status.reserveChunk(0, 1);
+		
+		PeerChunks some = new PeerChunks(status.getChunkCounts());
+		for(int i=0; i<5; i++) {
+			some.add(0, i);
+		}
+		
+		// Chunks 0, 1 and 5 are available from no other peer, chunk 2 from one, 3 from two and 4 from three
+		for(int i=2; i<5; i++) {
+			for(int j=1; j<i; j++) {
+				status.addAvailability(0, i);
+			}
+		}
+		
+		assertArrayEquals(new int[] { 0, 2 }, status.pickUsefulChunk(some));
+		assertEquals(Status.INPROGRESS, status.getStatus(0, 2));
+		assertArrayEquals(new int[] { 0, 3 }, status.pickUsefulChunk(some));
+		assertArrayEquals(new int[] { 0, 4 }, status.pickUsefulChunk(some));
+		assertNull(status.pickUsefulChunk(some));
+	}
+	
+	// Test a smaller sample still only picks useful chunks, and finds every one of them in the end
+	@Test
+	public void testSampleSize() {
+		RarestFirstChunkPicker.SAMPLE_SIZE = 1;
+		
+		AcquisitionStatus status = newStatus(200);
+		PeerChunks all = hasAll(status);
+		
+		boolean[] picked = new boolean[200];
+		for(int i=0; i<200; i++) {
+			int[] chunk = status.pickUsefulChunk(all);
+			assertFalse(picked[chunk[1]]);
+			picked[chunk[1]] = true;
+		}
+		assertNull(status.pickUsefulChunk(all));
+	}
+	
+	private static AcquisitionStatus newStatus(int numChunks) {
+		Status[] statuses = new Status[numChunks];
+		Arrays.fill(statuses, Status.INCOMPLETE);
+		
+		AcquisitionStatus status = new AcquisitionStatus(1);
+		status.setStatus(0, statuses);
+		status.setPicker(new RarestFirstChunkPicker());
+		return status;
+	}
+	
+	private static PeerChunks hasAll(AcquisitionStatus status) {
+		PeerChunks chunks = new PeerChunks(status.getChunkCounts());
+		for(int i=0; i<status.getChunkCounts()[0]; i++) {
+			chunks.add(0, i);
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,140 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import p2pdistribute.client.RequestWindow;
+
+public class RequestWindowTests {
+	
+	// Test the head is the oldest request, and its start moves on once the request before it is satisfied
+	@Test
+	public void testHead() throws InterruptedException {
+		RequestWindow window = new RequestWindow(4);
+		assertNull(window.getHead());
+		
+		window.add(0, 1);
+		window.add(2, 3);
+		assertArrayEquals(new int[] { 0, 1, RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK }, window.getHead());
+		
+		long firstStart = window.getHeadStart();
+		Thread.sleep(5);
+		
+		// Not the head
+		window.remove(2, 3);
+		assertEquals(firstStart, window.getHeadStart());
+		
+		window.add(2, 3);
+		window.remove(0, 1);
+		assertArrayEquals(new int[] { 2, 3, RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK }, window.getHead());
+		assertTrue(window.getHeadStart() > firstStart);
+	}
+	
+	// Test blocks of a chunk are tracked separately, and removed together once the chunk arrives
+	@Test
+	public void testBlocks() {
+		RequestWindow window = new RequestWindow(4);
+		
+		assertTrue(window.addBlock(0, 1, 0, 100));
+		assertTrue(window.addBlock(0, 1, 100, 50));
+		assertFalse(window.addBlock(0, 1, 100, 50));
+		assertTrue(window.add(2, 3));
+		
+		// Can't also request the whole chunk
+		assertFalse(window.add(0, 1));
+		assertTrue(window.contains(0, 1));
+		assertTrue(window.containsBlock(0, 1, 100));
+		assertFalse(window.containsBlock(0, 1, 50));
+		assertArrayEquals(new int[] { 0, 1, 0, 100 }, window.getHead());
+		
+		List<int[]> removed = window.removeChunk(0, 1);
+		assertEquals(2, removed.size());
+		assertArrayEquals(new int[] { 0, 1, 100, 50 }, removed.get(1));
+		assertFalse(window.contains(0, 1));
+		assertEquals(1, window.size());
+		
+		assertFalse(window.removeBlock(2, 3, 0));
+		assertTrue(window.remove(2, 3));
+	}
+	
+	// Test a range may take the window over its limit, but only when there is space for another request
+	@Test
+	public void testRange() {
+		RequestWindow window = new RequestWindow(4);
+		
+		assertTrue(window.add(0, 1));
+		assertFalse(window.addRange(0, 0, 3));
+		assertTrue(window.addRange(0, 2, 5));
+		assertEquals(6, window.size());
+		assertFalse(window.hasSpace());
+		assertFalse(window.addRange(1, 0, 2));
+		
+		assertTrue(window.contains(0, 6));
+		assertFalse(window.contains(0, 7));
+		assertTrue(window.remove(0, 1));
+		assertArrayEquals(new int[] { 0, 2, RequestWindow.WHOLE_CHUNK, RequestWindow.WHOLE_CHUNK }, window.getHead());
+	}
+	
+	// Test demoting halves the requests allowed, and promoting restores them one at a time
+	@Test
+	public void testDemote() {
+		RequestWindow window = new RequestWindow(4);
+		
+		window.demote();
+		assertEquals(2, window.getLimit());
+		window.demote();
+		window.demote();
+		assertEquals(1, window.getLimit());
+		
+		assertTrue(window.add(0, 0));
+		assertFalse(window.hasSpace());
+		assertFalse(window.add(0, 1));
+		
+		for(int i=0; i<10; i++) {
+			window.promote();
+		}
+		assertEquals(4, window.getLimit());
+		assertTrue(window.hasSpace());
+	}
+	
+	// Test endgame requests are told apart from requests for chunks reserved for this peer
+	@Test
+	public void testEndgame() {
+		RequestWindow window = new RequestWindow(4);
+		
+		assertTrue(window.add(0, 1));
+		assertTrue(window.addEndgame(0, 2));
+		assertFalse(window.addEndgame(0, 1));
+		assertFalse(window.add(0, 2));
+		
+		assertFalse(window.isEndgame(0, 1));
+		assertTrue(window.isEndgame(0, 2));
+		assertFalse(window.isEndgame(0, 3));
+		
+		// Removed like any other request, after which the chunk may be requested normally
+		assertTrue(window.remove(0, 2));
+		assertFalse(window.isEndgame(0, 2));
+		assertTrue(window.add(0, 2));
+		assertFalse(window.isEndgame(0, 2));
+	}
+	
+	// Test a larger capacity lets more requests out at once, unless the window is demoted
+	@Test
+	public void testCapacity() {
+		RequestWindow window = new RequestWindow(2);
+		
+		window.setCapacity(4);
+		assertEquals(4, window.getLimit());
+		
+		window.demote();
+		window.setCapacity(8);
+		assertEquals(2, window.getLimit());
+		
+		window.setCapacity(1);
+		assertEquals(1, window.getLimit());
+		assertEquals(1, window.getCapacity());
+	}
+}
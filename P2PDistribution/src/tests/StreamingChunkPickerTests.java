@@ -0,0 +1,159 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.ChunkPicker;
+import p2pdistribute.client.filemanager.PeerChunks;
+import p2pdistribute.client.filemanager.Status;
+import p2pdistribute.client.filemanager.StreamingChunkPicker;
+import p2pdistribute.client.filemanager.UsefulChunks;
+
+public class StreamingChunkPickerTests {
+	
+	private static final int WINDOW_SIZE = StreamingChunkPicker.WINDOW_SIZE;
+	
+	// Number of times the fallback picker was asked. It never picks anything.
+	private int fallbackPicks;
+	
+	private ChunkPicker fallback = new ChunkPicker() {
+		@Override
+		public long pick(UsefulChunks useful) {
+			fallbackPicks++;
+			return -1;
+		}
+	};
+	
+	@Before
+	public void setUp() {
+		StreamingChunkPicker.WINDOW_SIZE = 8;
+	}
+	
+	@After
+	public void tearDown() {
+		StreamingChunkPicker.WINDOW_SIZE = WINDOW_SIZE;
+	}
+	
+	// Test chunks are picked in order up to the end of the window, which only slides on once its first chunks complete
+	@Test
+	public void testInOrder() {
+		AcquisitionStatus status = newStatus(1, 20);
+		PeerChunks all = hasAll(status);
+		
+		for(int i=0; i<8; i++) {
+			assertArrayEquals(new int[] { 0, i }, status.pickUsefulChunk(all));
+		}
+		
+		// Chunks 0-7 are only INPROGRESS, so the window has not moved
+		assertNull(status.pickUsefulChunk(all));
+		assertEquals(1, fallbackPicks);
+		
+		for(int i=0; i<4; i++) {
+			status.setStatus(0, i, Status.COMPLETE);
+		}
+		for(int i=8; i<12; i++) {
+			assertArrayEquals(new int[] { 0, i }, status.pickUsefulChunk(all));
+		}
+		assertNull(status.pickUsefulChunk(all));
+		assertEquals(2, fallbackPicks);
+	}
+	
+	// Test the window is found correctly when it spans two words
+	@Test
+	public void testWindowAcrossWords() {
+		AcquisitionStatus status = newStatus(1, 100);
+		for(int i=0; i<60; i++) {
+			status.setStatus(0, i, Status.COMPLETE);
+		}
+		
+		// Window is chunks 60-67
+		PeerChunks inside = new PeerChunks(status.getChunkCounts());
+		inside.add(0, 66);
+		inside.add(0, 90);
+		assertArrayEquals(new int[] { 0, 66 }, status.pickUsefulChunk(inside));
+		assertEquals(0, fallbackPicks);
+		
+		PeerChunks outside = new PeerChunks(status.getChunkCounts());
+		outside.add(0, 68);
+		assertNull(status.pickUsefulChunk(outside));
+		assertEquals(1, fallbackPicks);
+	}
+	
+	// Test files are streamed one after another: the window stays in a file until every chunk of it is COMPLETE
+	@Test
+	public void testFilesInOrder() {
+		AcquisitionStatus status = newStatus(2, 10);
+		PeerChunks all = hasAll(status);
+		
+		for(int i=0; i<9; i++) {
+			status.setStatus(0, i, Status.COMPLETE);
+		}
+		assertArrayEquals(new int[] { 0, 9 }, status.pickUsefulChunk(all));
+		
+		// The last chunk of file 0 is still only INPROGRESS
+		assertNull(status.pickUsefulChunk(all));
+		assertEquals(1, fallbackPicks);
+		
+		status.setStatus(0, 9, Status.COMPLETE);
+		for(int i=0; i<8; i++) {
+			assertArrayEquals(new int[] { 1, i }, status.pickUsefulChunk(all));
+		}
+	}
+	
+	// Test the fallback is given every useful chunk, not just those in the window
+	@Test
+	public void testFallback() {
+		AcquisitionStatus status = newStatus(1, 20);
+		status.setPicker(new StreamingChunkPicker(new ChunkPicker() {
+			@Override
+			public long pick(UsefulChunks useful) {
+				// Last useful chunk
+				for(int word=useful.numWords()-1; word>=0; word--) {
+					long bits = useful.getWord(word);
+					if(bits != 0) {
+						return ((long)word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+					}
+				}
+				return -1;
+			}
+		}));
+		
+		PeerChunks some = new PeerChunks(status.getChunkCounts());
+		some.add(0, 10);
+		some.add(0, 19);
+		
+		assertArrayEquals(new int[] { 0, 19 }, status.pickUsefulChunk(some));
+		assertArrayEquals(new int[] { 0, 10 }, status.pickUsefulChunk(some));
+		assertNull(status.pickUsefulChunk(some));
+	}
+	
+	private AcquisitionStatus newStatus(int numFiles, int numChunks) {
+		AcquisitionStatus status = new AcquisitionStatus(numFiles);
+		for(int i=0; i<numFiles; i++) {
+			Status[] statuses = new Status[numChunks];
+			Arrays.fill(statuses, Status.INCOMPLETE);
+			status.setStatus(i, statuses);
+		}
+		
+		status.setPicker(new StreamingChunkPicker(fallback));
+		return status;
+	}
+	
+	private static PeerChunks hasAll(AcquisitionStatus status) {
+		int[] counts = status.getChunkCounts();
+		
+		PeerChunks chunks = new PeerChunks(counts);
+		for(int f=0; f<counts.length; f++) {
+			for(int c=0; c<counts[f]; c++) {
+				chunks.add(f, c);
+			}
+		}
+		return chunks;
+	}
+}
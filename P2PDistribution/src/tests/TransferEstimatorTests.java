@@ -0,0 +1,26 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import p2pdistribute.client.TransferEstimator;
+
+public class TransferEstimatorTests {
+	
+	@Test
+	public void testEstimate() {
+		TransferEstimator estimator = new TransferEstimator();
+		assertEquals(-1, estimator.estimateNanos(1000));
+		
+		estimator.addLatency(1000);
+		estimator.addTransfer(1000, 2000);
+		assertEquals(1000 + 2 * 500, estimator.estimateNanos(500));
+		
+		// Slower peer
+		for(int i=0; i<50; i++) {
+			estimator.addTransfer(1000, 10000);
+		}
+		assertEquals(1000 + 10 * 500, estimator.estimateNanos(500), 10);
+	}
+}
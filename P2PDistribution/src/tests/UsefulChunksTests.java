@@ -0,0 +1,172 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import p2pdistribute.client.filemanager.AcquisitionStatus;
+import p2pdistribute.client.filemanager.ChunkPicker;
+import p2pdistribute.client.filemanager.PeerChunks;
+import p2pdistribute.client.filemanager.Status;
+import p2pdistribute.client.filemanager.UsefulChunks;
+
+public class UsefulChunksTests {
+	
+	private AcquisitionStatus status;
+	private PeerChunks peer;
+	
+	// What the picker saw during its last pick, as the view is only valid during the pick
+	private long[] words;
+	private long firstMissing;
+	
+	@Before
+	public void setUp() {
+		// Files of 70, 0 and 10 chunks, so 2, 0 and 1 words
+		status = new AcquisitionStatus(3);
+		status.setStatus(0, incomplete(70));
+		status.setStatus(1, incomplete(0));
+		status.setStatus(2, incomplete(10));
+		
+		peer = new PeerChunks(status.getChunkCounts());
+	}
+	
+	// Test each file starts on a new word, and only chunks the peer has which are neither COMPLETE nor INPROGRESS are set
+	@Test
+	public void testWords() {
+		status.setStatus(0, 3, Status.COMPLETE);
+		status.reserveChunk(0, 4);
+		
+		for(int chunkid : new int[] { 3, 4, 5, 65 }) {
+			peer.add(0, chunkid);
+		}
+		peer.add(2, 0);
+		peer.add(2, 9);
+		
+		// Picks the last useful chunk, so every position seen must map back to the right chunk
+		status.setPicker(new RecordingPicker(128 + 9));
+		assertArrayEquals(new int[] { 2, 9 }, status.pickUsefulChunk(peer));
+		
+		assertEquals(3, words.length);
+		assertEquals(1L << 5, words[0]);
+		assertEquals(1L << 1, words[1]);
+		assertEquals((1L << 0) | (1L << 9), words[2]);
+		
+		// Picked chunk is no longer useful
+		status.setPicker(new RecordingPicker(-1));
+		assertNull(status.pickUsefulChunk(peer));
+		assertEquals(1L << 0, words[2]);
+	}
+	
+	// Test the availability of a position is that of the chunk it maps to, in whichever file
+	@Test
+	public void testAvailability() {
+		peer.add(0, 65);
+		peer.add(2, 9);
+		
+		status.addAvailability(0, 65);
+		for(int i=0; i<3; i++) {
+			status.addAvailability(2, 9);
+		}
+		
+		final int[] availability = new int[3];
+		status.setPicker(new ChunkPicker() {
+			@Override
+			public long pick(UsefulChunks useful) {
+				availability[0] = useful.getAvailability(65);
+				availability[1] = useful.getAvailability(128 + 9);
+				availability[2] = useful.getAvailability(128);
+				return -1;
+			}
+		});
+		
+		assertNull(status.pickUsefulChunk(peer));
+		assertArrayEquals(new int[] { 1, 3, 0 }, availability);
+	}
+	
+	// Test only the files of the priority being picked from are seen, highest priority first
+	@Test
+	public void testPriority() {
+		status.setPriority(2, 5);
+		peer.add(0, 0);
+		peer.add(2, 0);
+		
+		final long[][] seen = new long[2][];
+		status.setPicker(new ChunkPicker() {
+			private int pick = 0;
+			
+			@Override
+			public long pick(UsefulChunks useful) {
+				long[] words = new long[useful.numWords()];
+				for(int i=0; i<words.length; i++) {
+					words[i] = useful.getWord(i);
+				}
+				seen[pick++] = words;
+				return -1;
+			}
+		});
+		
+		assertNull(status.pickUsefulChunk(peer));
+		assertArrayEquals(new long[] { 0, 0, 1 }, seen[0]);
+		assertArrayEquals(new long[] { 1, 0, 0 }, seen[1]);
+	}
+	
+	// Test the first missing chunk is found whether or not it is useful, moving on to the next file once one is complete
+	@Test
+	public void testFirstMissing() {
+		status.setPicker(new RecordingPicker(-1));
+		for(int i=0; i<3; i++) {
+			status.setStatus(0, i, Status.COMPLETE);
+		}
+		status.reserveChunk(0, 3);
+		
+		assertNull(status.pickUsefulChunk(peer));
+		assertEquals(3, firstMissing);
+		
+		for(int i=3; i<70; i++) {
+			status.setStatus(0, i, Status.COMPLETE);
+		}
+		assertNull(status.pickUsefulChunk(peer));
+		assertEquals(128, firstMissing);
+		
+		for(int i=0; i<10; i++) {
+			status.setStatus(2, i, Status.COMPLETE);
+		}
+		assertNull(status.pickUsefulChunk(peer));
+		assertEquals(-1, firstMissing);
+	}
+	
+	/**
+	 * Records what it sees, then picks a fixed position (if it is useful).
+	 */
+	private class RecordingPicker implements ChunkPicker {
+		
+		private final long position;
+		
+		RecordingPicker(long position) {
+			this.position = position;
+		}
+		
+		@Override
+		public long pick(UsefulChunks useful) {
+			words = new long[useful.numWords()];
+			for(int i=0; i<words.length; i++) {
+				words[i] = useful.getWord(i);
+			}
+			firstMissing = useful.getFirstMissing();
+			
+			if(position < 0 || (words[(int)(position >>> 6)] & (1L << position)) == 0) {
+				return -1;
+			}
+			return position;
+		}
+	}
+	
+	private static Status[] incomplete(int numChunks) {
+		Status[] statuses = new Status[numChunks];
+		Arrays.fill(statuses, Status.INCOMPLETE);
+		return statuses;
+	}
+}